@@ -0,0 +1,15 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java runtime to use (JDK 21 or newer)
+export JAVA_HOME=${JAVA_HOME:-/usr/csshare/pkgs/jdk-21}
+export PATH=$JAVA_HOME/bin:$PATH
+
+# Builds target/messenger.jsa, an AppCDS archive of the classes a command
+# loads (Messenger's, the JDBC driver's and the JDK's), from one training run
+# of that command, "chats" unless another is given. The archive only matches
+# the jar it was built from, so run this again after every compile.sh.
+# Signs in from MESSENGER_LOGIN and MESSENGER_PASSWORD like messenger.sh.
+if [ $# -eq 0 ]; then
+   set -- chats
+fi
+java -XX:ArchiveClassesAtExit=$DIR/../target/messenger.jsa -jar $DIR/../target/messenger.jar project $PGPORT $USER "$@"
@@ -1,13 +1,12 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
-# Indicate the path of the java compiler to use
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+# Indicate the path of the java compiler to use (JDK 21 or newer)
+export JAVA_HOME=${JAVA_HOME:-/usr/csshare/pkgs/jdk-21}
 export PATH=$JAVA_HOME/bin:$PATH
 
-# compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java
+# compile the java program; the PostgreSQL JDBC driver is copied to target/lib
+mvn -q -f $DIR/../pom.xml package
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger project $PGPORT $USER
-
+java -jar $DIR/../target/messenger.jar project $PGPORT $USER
@@ -0,0 +1,17 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java runtime to use (JDK 21 or newer)
+export JAVA_HOME=${JAVA_HOME:-/usr/csshare/pkgs/jdk-21}
+export PATH=$JAVA_HOME/bin:$PATH
+
+# Runs one Messenger command for a script and exits, e.g.
+#    MESSENGER_LOGIN=... MESSENGER_PASSWORD=... messenger.sh send 12 "hello"
+# (see CommandRunner for the commands). Uses the class-data-sharing archive
+# if cds.sh has built one, and only the client compiler, which is all a run
+# this short gets to use.
+ARCHIVE=$DIR/../target/messenger.jsa
+OPTS="-XX:TieredStopAtLevel=1 -Xshare:auto"
+if [ -f $ARCHIVE ]; then
+   OPTS="$OPTS -XX:SharedArchiveFile=$ARCHIVE"
+fi
+exec java $OPTS -jar $DIR/../target/messenger.jar project $PGPORT $USER "$@"
@@ -0,0 +1,29 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use (JDK 21 or newer)
+export JAVA_HOME=${JAVA_HOME:-/usr/csshare/pkgs/jdk-21}
+export PATH=$JAVA_HOME/bin:$PATH
+
+# Sets up a primary and a streaming replica of it in a scratch directory,
+# loads the Messenger schema and runs the tests against the pair, so the
+# replica tests run too. Both servers are stopped and removed afterwards.
+#    replica_test.sh [<primary port>] [<replica port>]     default 5442 5443
+PRIMARY=${1:-5442}
+REPLICA=${2:-5443}
+WORK=$(mktemp -d)
+DB=messenger_test
+SQL=$DIR/../../sql/src
+trap 'pg_ctl -D $WORK/replica -m fast stop > /dev/null 2>&1; pg_ctl -D $WORK/primary -m fast stop > /dev/null 2>&1; rm -rf $WORK' EXIT
+
+initdb -A trust -D $WORK/primary > /dev/null || exit 1
+pg_ctl -D $WORK/primary -o "-p $PRIMARY -k $WORK" -l $WORK/primary.log -w start > /dev/null || exit 1
+createdb -h $WORK -p $PRIMARY $DB
+for f in create_tables triggers cache_triggers chat_triggers create_indexes; do
+   psql -q -h $WORK -p $PRIMARY $DB < $SQL/$f.sql 2>&1 | grep -v "does not exist"
+done
+
+# the replica starts from a copy of the primary and streams from it
+pg_basebackup -h $WORK -p $PRIMARY -D $WORK/replica -R || exit 1
+pg_ctl -D $WORK/replica -o "-p $REPLICA -k $WORK" -l $WORK/replica.log -w start > /dev/null || exit 1
+
+mvn -q -f $DIR/../pom.xml test -Dmessenger.test.port=$PRIMARY -Dmessenger.test.replica=$REPLICA -Dmessenger.test.db=$DB
@@ -0,0 +1,17 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use (JDK 21 or newer)
+export JAVA_HOME=${JAVA_HOME:-/usr/csshare/pkgs/jdk-21}
+export PATH=$JAVA_HOME/bin:$PATH
+
+# Creates a scratch database with the Messenger schema on $PGPORT and runs
+# the tests against it; without a database they are skipped.
+#    test_db.sh [<dbname>]     defaults to messenger_test
+DB=${1:-messenger_test}
+SQL=$DIR/../../sql/src
+dropdb -p $PGPORT --if-exists $DB
+createdb -p $PGPORT $DB
+for f in create_tables triggers cache_triggers chat_triggers create_indexes; do
+   psql -q -p $PGPORT $DB < $SQL/$f.sql 2>&1 | grep -v "does not exist"
+done
+mvn -q -f $DIR/../pom.xml test -Dmessenger.test.port=$PGPORT -Dmessenger.test.db=$DB
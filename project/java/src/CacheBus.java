@@ -0,0 +1,199 @@
+/*
+ * Cache invalidation bus for Messenger
+ * ====================================
+ *
+ * Delivers the change keys that cache_triggers.sql sends on the
+ * messenger_cache channel, so every application node can evict what
+ * another node changed.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps one LISTEN connection per database node (the directory
+ * node and every shard) and queues the keys it receives. The session drains
+ * the queue on its own thread before it reads a cache (see
+ * Messenger.applyInvalidations), so the caches need no locking.
+ *
+ * A key is only received once the transaction that changed the row has
+ * committed, so a node can briefly serve what it cached before; it never
+ * keeps serving it. While a listener is disconnected, changes can be missed:
+ * isLive() is false until it is back, and getEpoch() changes on every
+ * reconnect, so the caches can be dropped as a whole. The session's own
+ * writes come back as keys as well, but it evicts those itself right away.
+ *
+ * Settings are read from system properties:
+ *    messenger.cacheBus        false to not listen, which turns off the
+ *                              caches that depend on it (default true)
+ *    messenger.cacheBus.pollMs longest wait for a notification (default 500)
+ *
+ */
+public class CacheBus {
+
+   public static final String CHANNEL = "messenger_cache";
+
+   private static final int POLL_MILLIS = Integer.getInteger("messenger.cacheBus.pollMs", 500);
+
+   private final String _user;
+   private final String _passwd;
+   private final ConcurrentLinkedQueue<String> _keys = new ConcurrentLinkedQueue<String>();
+   private final List<Listener> _listeners = new ArrayList<Listener>();
+   private final AtomicInteger _down = new AtomicInteger();
+   private final AtomicLong _epoch = new AtomicLong();
+   private final AtomicLong _received = new AtomicLong();
+   private volatile boolean _closed = false;
+
+   /**
+    * @return whether the bus is turned on (messenger.cacheBus)
+    */
+   public static boolean isConfigured(){
+      return !"false".equals(System.getProperty("messenger.cacheBus"));
+   }//end isConfigured
+
+   /**
+    * Creates a bus that is not listening anywhere yet.
+    *
+    * @param user the user name used to login to the databases
+    * @param passwd the user login password
+    */
+   public CacheBus(String user, String passwd){
+      this._user = user;
+      this._passwd = passwd;
+   }//end CacheBus
+
+   /**
+    * Starts listening on a database node.
+    *
+    * @param hostPort the node's host:port
+    * @param dbname the node's database
+    * @throws java.sql.SQLException when the first connection fails
+    */
+   public void listen(String hostPort, String dbname) throws SQLException {
+      Listener listener = new Listener(RoutingDataSource.url(hostPort, dbname));
+      listener.connect();
+      synchronized(this._listeners){
+         this._listeners.add(listener);
+      }
+      listener.start();
+   }//end listen
+
+   /**
+    * @return whether every listener is connected, so no change can be missed
+    */
+   public boolean isLive(){
+      return !this._closed && this._down.get() == 0;
+   }//end isLive
+
+   /**
+    * @return a number that changes whenever a listener reconnects, after
+    *         which keys may have been missed
+    */
+   public long getEpoch(){
+      return this._epoch.get();
+   }//end getEpoch
+
+   /**
+    * @return the number of keys received so far
+    */
+   public long getReceivedCount(){
+      return this._received.get();
+   }//end getReceivedCount
+
+   /**
+    * @return the next key, or null if none is waiting
+    */
+   public String poll(){
+      return this._keys.poll();
+   }//end poll
+
+   /**
+    * Stops every listener and closes its connection.
+    */
+   public void close(){
+      this._closed = true;
+      synchronized(this._listeners){
+         for(Listener listener : this._listeners)
+            listener.interrupt();
+      }
+   }//end close
+
+   /*
+    * The LISTEN connection to one node, reconnecting after failures
+    **/
+   private class Listener extends Thread {
+      private final String _url;
+      private Connection _connection = null;
+
+      Listener(String url){
+         super("messenger-cache-bus");
+         this._url = url;
+         setDaemon(true);
+      }//end Listener
+
+      void connect() throws SQLException {
+         Connection conn = DriverManager.getConnection(this._url, _user, _passwd);
+         Statement stmt = conn.createStatement();
+         stmt.execute("LISTEN " + CHANNEL);
+         stmt.close();
+         this._connection = conn;
+      }//end connect
+
+      public void run(){
+         while(!_closed){
+            try{
+               if(this._connection == null){
+                  connect();
+                  // keys sent while this node was down are lost
+                  _epoch.incrementAndGet();
+                  _down.decrementAndGet();
+               }
+               PGNotification[] notifications = this._connection.unwrap(PGConnection.class).getNotifications(POLL_MILLIS);
+               if(notifications != null){
+                  for(PGNotification notification : notifications){
+                     _keys.add(notification.getParameter());
+                     _received.incrementAndGet();
+                  }
+               }
+            }catch(SQLException e){
+               if(_closed)
+                  break;
+               if(this._connection != null){
+                  _down.incrementAndGet();
+                  System.err.println("Cache bus lost " + this._url + ": " + e.getMessage());
+                  close(this._connection);
+                  this._connection = null;
+               }
+               try{
+                  Thread.sleep(1000);
+               }catch(InterruptedException ie){
+                  break;
+               }
+            }
+         }
+         if(this._connection != null)
+            close(this._connection);
+      }//end run
+
+      private void close(Connection conn){
+         try{
+            conn.close();
+         }catch(SQLException e){
+            // ignored.
+         }
+      }//end close
+   }//end Listener
+
+}//end CacheBus
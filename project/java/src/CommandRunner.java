@@ -0,0 +1,216 @@
+/*
+ * Command-line mode for Messenger
+ * ===============================
+ *
+ * Runs one Messenger operation for a script and exits, without the menus.
+ *
+ */
+
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This program is what Messenger runs when it is given a command after
+ * <dbname> <port> <user>. It signs the user in from MESSENGER_LOGIN and
+ * MESSENGER_PASSWORD in the environment, so the password never shows up in
+ * the process list, runs the command, prints its result as tab-separated
+ * lines and exits with 0. A failed command prints its error to stderr and
+ * exits with 1, a malformed one with 2.
+ *
+ * The session is lazy: it connects on its first statement, so a malformed
+ * command exits before any connection is made, and the cache bus, whose
+ * listeners a one-shot process has no use for, is off unless
+ * messenger.cacheBus is set. scripts/messenger.sh starts the JVM with the
+ * class-data-sharing archive that scripts/cds.sh builds from a training run.
+ *
+ * Commands:
+ *    send [--key K] <chat_id> <text>...   sends the words of text, joined by
+ *                                          spaces, and prints the msg_id; a
+ *                                          retry with the same K (up to 36
+ *                                          characters) sends nothing new and
+ *                                          prints the first msg_id
+ *    chats                                 prints chat_id, last message time
+ *                                          and unread count of every chat
+ *    history <chat_id> [N]                 prints the newest N messages
+ *                                          (default 10), archived ones
+ *                                          included, as msg_id, time,
+ *                                          sender and text, newest first
+ *
+ * Usage:
+ *    java Messenger <dbname> <port> <user> <command> [<args>...]
+ *
+ */
+public class CommandRunner {
+
+   private static final String USAGE = "<dbname> <port> <user> send [--key K] <chat_id> <text>... | chats | history <chat_id> [N]";
+
+   private final Messenger _esql;
+   private final String _login;
+
+   /**
+    * @param args the command line arguments, see the class comment
+    */
+   public static void main (String[] args) {
+      if(args.length < 4){
+         System.err.println("Usage: java " + Messenger.class.getName() + " " + USAGE);
+         System.exit(2);
+      }
+      if(System.getProperty("messenger.cacheBus") == null)
+         System.setProperty("messenger.cacheBus", "false");
+
+      int status = 1;
+      Messenger esql = null;
+      try{
+         esql = new Messenger(args[0], args[1], args[2], "", true);
+         CommandRunner runner = new CommandRunner(esql, System.getenv("MESSENGER_LOGIN"));
+         status = runner.run(args[3], Arrays.asList(args).subList(4, args.length));
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         if(esql != null)
+            esql.cleanup();
+      }
+      System.exit(status);
+   }//end main
+
+   /**
+    * Creates a runner acting for a user.
+    *
+    * @param esql the session
+    * @param login the user's login, checked before every command
+    */
+   public CommandRunner(Messenger esql, String login){
+      this._esql = esql;
+      this._login = login;
+   }//end CommandRunner
+
+   /**
+    * Method to run one command.
+    *
+    * @param command the command's name
+    * @param args the command's arguments
+    * @return the exit status: 0 when the command succeeded, 1 when it was
+    *         refused and 2 when it was malformed
+    * @throws java.sql.SQLException when a query failed or the user cannot
+    *                               sign in
+    */
+   public int run(String command, List<String> args) throws SQLException {
+      if(command.equals("send")){
+         String key = null;
+         if(args.size() >= 2 && args.get(0).equals("--key")){
+            key = args.get(1);
+            args = args.subList(2, args.size());
+         }
+         if(args.size() < 2 || !isId(args.get(0)))
+            return usage();
+         signIn();
+         return send(args.get(0), join(args.subList(1, args.size())), key);
+      }
+      if(command.equals("chats")){
+         if(!args.isEmpty())
+            return usage();
+         signIn();
+         return chats();
+      }
+      if(command.equals("history")){
+         if(args.isEmpty() || args.size() > 2 || !isId(args.get(0)) || (args.size() == 2 && !isId(args.get(1))))
+            return usage();
+         signIn();
+         return history(args.get(0), args.size() == 2 ? Integer.parseInt(args.get(1)) : 10);
+      }
+      return usage();
+   }//end run
+
+   /*
+    * Sends a message the way NewMessage does, without the prompts
+    **/
+   private int send(String chat, String text, String key) throws SQLException {
+      if(!this._esql.isChatMember(this._login, chat)){
+         System.err.println(this._login + " is not a member of chat " + chat);
+         return 1;
+      }
+      if(this._esql.isSendBlocked(this._login, chat)){
+         System.err.println("Every other member of chat " + chat + " has blocked " + this._login);
+         return 1;
+      }
+      System.out.println(this._esql.sendMessage(this._login, chat, text, key));
+      return 0;
+   }//end send
+
+   /*
+    * Prints the user's chats the way ListChat orders them
+    **/
+   private int chats() throws SQLException {
+      Map<String, Integer> unread = this._esql.getUnreadCounts(this._login);
+      for(List<String> summary : this._esql.getChatSummaries(this._login)){
+         String chat = summary.get(0).trim();
+         Integer count = unread.get(chat);
+         System.out.println(chat + "\t" + summary.get(1) + "\t" + (count == null ? 0 : count));
+      }
+      return 0;
+   }//end chats
+
+   /*
+    * Prints a chat's newest messages, hiding those of blocked senders like
+    * ChatViewer does and paging into the archive like it until count are
+    * shown or there are no more. The read cursor is left alone.
+    **/
+   private int history(String chat, int count) throws SQLException {
+      if(!this._esql.isChatMember(this._login, chat)){
+         System.err.println(this._login + " is not a member of chat " + chat);
+         return 1;
+      }
+      List<List<String>> history = this._esql.getChatHistory(chat);
+      List<List<String>> messages = this._esql.relations().filterBlocked(this._login, history);
+      try{
+         while(messages.size() < count){
+            int loaded = history.size();
+            history = this._esql.extendChatHistory(chat);
+            if(history.size() == loaded)
+               break;
+            messages = this._esql.relations().filterBlocked(this._login, history);
+         }
+      }catch(IOException e){
+         throw new SQLException(e.getMessage(), e);
+      }
+      for(List<String> message : messages.subList(0, Math.min(count, messages.size())))
+         System.out.println(message.get(0).trim() + "\t" + message.get(1) + "\t" + message.get(3).trim() + "\t" + message.get(2).trim());
+      return 0;
+   }//end history
+
+   /*
+    * Checks the login and password from the environment like LogIn does
+    **/
+   private void signIn() throws SQLException {
+      String password = System.getenv("MESSENGER_PASSWORD");
+      if(this._login == null || password == null)
+         throw new SQLException("Set MESSENGER_LOGIN and MESSENGER_PASSWORD to sign in");
+      int users = this._esql.executeQuery("SELECT * FROM Usr WHERE login = ? AND password = ? AND NOT deleted", this._login, password);
+      if(users == 0)
+         throw new SQLException("Incorrect user login or password!");
+   }//end signIn
+
+   private static int usage(){
+      System.err.println("Usage: java " + Messenger.class.getName() + " " + USAGE);
+      return 2;
+   }//end usage
+
+   private static boolean isId(String text){
+      return text.matches("[0-9]{1,9}");
+   }//end isId
+
+   private static String join(List<String> words){
+      StringBuilder text = new StringBuilder();
+      for(String word : words){
+         if(text.length() > 0)
+            text.append(' ');
+         text.append(word);
+      }
+      return text.toString();
+   }//end join
+
+}//end CommandRunner
@@ -0,0 +1,182 @@
+/*
+ * Deletion reaper for Messenger
+ * =============================
+ *
+ * Removes the rows of deleted accounts and chats in the background.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This program removes the accounts and chats that DeleteAccount and
+ * DeleteChat marked deleted. Those operations only set USR.deleted or
+ * CHAT.deleted, which hides the row at once; the rows behind it are removed
+ * here in batches of a bounded size, each its own transaction, with a pause
+ * after every batch. A large chat or a popular user therefore never holds
+ * locks or writes WAL in one long statement, and the user at the prompt does
+ * not wait for it. The work is found from the flags themselves, on the node
+ * that holds the row, so there is no queue that could disagree with them.
+ *
+ * For a deleted chat the reaper deletes its messages, read cursors, members,
+ * the CHAT row and its archived segments. Deleted chats go first, on every
+ * shard, since their rows may still name a deleted account. For a deleted
+ * account it deletes, on every shard, the user's read cursors, chat
+ * memberships and the messages the user sent, which still name the USR row,
+ * then the user from everyone else's lists, empties and drops the user's own
+ * lists and deletes the USR row. Archived messages stay in their segments,
+ * which cannot be changed. Each step can be repeated,
+ * so a chat or account whose removal failed is tried again on the next
+ * pass. Only one reaper should run at a time.
+ *
+ * Usage:
+ *    java DeletionReaper <dbname> <port> <user> [--batch N] [--pause MS] [--loop SECONDS]
+ *
+ * --batch defaults to messenger.reaper.batch (1000 rows) and --pause to
+ * messenger.reaper.pauseMs (100). Without --loop the program exits after one
+ * pass; with it, it looks for deleted rows again every SECONDS seconds.
+ *
+ */
+public class DeletionReaper {
+
+   private final Messenger _esql;
+   private final int _batch;
+   private final long _pause;
+
+   /**
+    * @param args the command line arguments, see the class comment
+    */
+   public static void main (String[] args) {
+      if(args.length < 3){
+         System.err.println("Usage: java " + DeletionReaper.class.getName() + " <dbname> <port> <user> [--batch N] [--pause MS] [--loop SECONDS]");
+         return;
+      }
+      int batch = Integer.getInteger("messenger.reaper.batch", 1000);
+      long pause = Long.getLong("messenger.reaper.pauseMs", 100);
+      int loop = 0;
+      for(int i = 3; i + 1 < args.length; i += 2){
+         if(args[i].equals("--batch"))
+            batch = Integer.parseInt(args[i + 1]);
+         else if(args[i].equals("--pause"))
+            pause = Long.parseLong(args[i + 1]);
+         else if(args[i].equals("--loop"))
+            loop = Integer.parseInt(args[i + 1]);
+      }
+
+      Messenger esql = null;
+      try{
+         esql = new Messenger(args[0], args[1], args[2], "");
+         DeletionReaper reaper = new DeletionReaper(esql, batch, pause);
+         do{
+            int done = reaper.reap();
+            if(done > 0)
+               System.out.println("Removed " + done + " deleted chat(s) and account(s)");
+            if(loop > 0)
+               Thread.sleep(loop * 1000L);
+         }while(loop > 0);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         if(esql != null)
+            esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Creates a reaper working through a session's connections.
+    *
+    * @param esql the session, on the directory node
+    * @param batch the most rows deleted by one statement
+    * @param pause milliseconds to wait after every batch
+    */
+   public DeletionReaper(Messenger esql, int batch, long pause){
+      this._esql = esql;
+      this._batch = batch;
+      this._pause = pause;
+   }//end DeletionReaper
+
+   /**
+    * Method to remove every chat and account marked deleted so far. One whose
+    * removal fails is left marked and tried again on the next call.
+    *
+    * @return the number of chats and accounts removed
+    * @throws java.sql.SQLException when the deleted rows cannot be found
+    */
+   public int reap() throws SQLException {
+      int done = 0;
+      for(List<String> chat : this._esql.executeQueryOnAllShards("SELECT chat_id FROM CHAT WHERE deleted"))
+         done += reap("chat", chat.get(0).trim());
+      for(List<String> user : this._esql.executeQueryAndReturnResult("SELECT login FROM USR WHERE deleted"))
+         done += reap("user", user.get(0).trim());
+      return done;
+   }//end reap
+
+   /*
+    * Removes one deleted chat or account, returning 1 if that worked
+    **/
+   private int reap(String kind, String target){
+      try{
+         if(kind.equals("chat"))
+            reapChat(target);
+         else
+            reapUser(target);
+         return 1;
+      }catch(Exception e){
+         System.err.println("Deleting " + kind + " " + target + ": " + e.getMessage());
+         return 0;
+      }
+   }//end reap
+
+   /*
+    * Deletes a chat's rows, its messages in batches
+    **/
+   private void reapChat(String chat) throws Exception {
+      Messenger node = this._esql.shard(chat);
+      int chatId = Integer.parseInt(chat);
+      deleteInBatches(node, "DELETE FROM MESSAGE WHERE msg_id IN (SELECT msg_id FROM MESSAGE WHERE chat_id=? LIMIT ?)", chatId);
+      node.executeUpdate("DELETE FROM CHAT_READ_CURSOR WHERE chat_id=?", chatId);
+      node.executeUpdate("DELETE FROM CHAT_LIST WHERE chat_id=?", chatId);
+      node.executeUpdate("DELETE FROM CHAT WHERE chat_id=?", chatId);
+      this._esql.getArchive().dropChat(chat);
+   }//end reapChat
+
+   /*
+    * Deletes the chat rows naming a user and the user's list rows in
+    * batches, then the user and the lists
+    **/
+   private void reapUser(String login) throws Exception {
+      for(Messenger node : this._esql.allShards()){
+         deleteInBatches(node, "DELETE FROM CHAT_READ_CURSOR WHERE (login, chat_id) IN "
+            + "(SELECT login, chat_id FROM CHAT_READ_CURSOR WHERE login=? LIMIT ?)", login);
+         deleteInBatches(node, "DELETE FROM CHAT_LIST WHERE (chat_id, member) IN "
+            + "(SELECT chat_id, member FROM CHAT_LIST WHERE member=? LIMIT ?)", login);
+         deleteInBatches(node, "DELETE FROM MESSAGE WHERE msg_id IN (SELECT msg_id FROM MESSAGE WHERE sender_login=? LIMIT ?)", login);
+      }
+      deleteInBatches(this._esql, "DELETE FROM USER_LIST_CONTAINS WHERE (list_id, list_member) IN "
+         + "(SELECT list_id, list_member FROM USER_LIST_CONTAINS WHERE list_member=? LIMIT ?)", login);
+      List<List<String>> lists = this._esql.executeQueryAndReturnResult("SELECT contact_list, block_list FROM USR WHERE login=?", login);
+      if(lists.isEmpty())
+         return;
+      int contactId = Integer.parseInt(lists.get(0).get(0).trim());
+      int blockId = Integer.parseInt(lists.get(0).get(1).trim());
+      deleteInBatches(this._esql, "DELETE FROM USER_LIST_CONTAINS WHERE (list_id, list_member) IN "
+         + "(SELECT list_id, list_member FROM USER_LIST_CONTAINS WHERE list_id IN (?, ?) LIMIT ?)", contactId, blockId);
+      this._esql.executeUpdate("DELETE FROM USR WHERE login=?", login);
+      this._esql.executeUpdate("DELETE FROM USER_LIST WHERE list_id IN (?, ?)", contactId, blockId);
+   }//end reapUser
+
+   /*
+    * Runs a DELETE whose last parameter is the batch size until it deletes
+    * fewer rows than that, pausing after every batch
+    **/
+   private void deleteInBatches(Messenger node, String query, Object... params) throws SQLException, InterruptedException {
+      Object[] bound = new Object[params.length + 1];
+      System.arraycopy(params, 0, bound, 0, params.length);
+      bound[params.length] = this._batch;
+      while(node.executeUpdate(query, bound) >= this._batch)
+         Thread.sleep(this._pause);
+   }//end deleteInBatches
+
+}//end DeletionReaper
@@ -0,0 +1,110 @@
+/*
+ * Hi-lo id allocation for Messenger
+ * =================================
+ *
+ * Hands out MESSAGE and CHAT ids from blocks reserved from their Postgres
+ * sequences, so inserts do not need a nextval round trip per row.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class reserves blocks of ids from a Postgres sequence and hands them
+ * out without going back to the database. The sequence is created with
+ * INCREMENT BY the block size (see create_tables.sql), so one nextval call
+ * reserves the whole block [value, value + increment) for this allocator.
+ *
+ * Ids within a block are handed out lock-free from an AtomicLong; only the
+ * thread that finds a block exhausted takes the lock to reserve the next one.
+ * Ids are unique across every node using the sequence, but are only ordered
+ * within one node, since each node works through its own block. Nothing may
+ * compare ids for order: a chat's messages are ordered by MESSAGE.seq, which
+ * read cursors, unread counts and summary deltas are kept on.
+ *
+ */
+public class IdAllocator {
+
+   private final Messenger _esql;
+   private final String _sequence;
+   private int _blockSize = 0;
+
+   // the block ids are currently taken from; replaced as a whole when used up
+   private volatile Block _block = new Block(0, 0);
+
+   /**
+    * Creates an allocator for a sequence. Nothing is reserved until the first
+    * id is requested.
+    *
+    * @param esql the connection used to reserve blocks
+    * @param sequence the name of the Postgres sequence
+    */
+   public IdAllocator(Messenger esql, String sequence){
+      this._esql = esql;
+      this._sequence = sequence;
+   }//end IdAllocator
+
+   /**
+    * @return the next unused id
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public long next() throws SQLException {
+      while(true){
+         Block block = this._block;
+         long id = block.next.getAndIncrement();
+         if(id < block.end)
+            return id;
+         synchronized(this){
+            // another thread may have reserved a new block already
+            if(this._block == block)
+               this._block = reserve();
+         }
+      }
+   }//end next
+
+   /**
+    * Returns count ids at once, e.g. for a multi-row insert. They are
+    * consecutive unless the batch runs past the end of the current block.
+    *
+    * @param count the number of ids needed
+    * @return the ids
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public long[] next(int count) throws SQLException {
+      long[] ids = new long[count];
+      for(int i = 0; i < count; ++i)
+         ids[i] = next();
+      return ids;
+   }//end next
+
+   /*
+    * Reserves the next block with one nextval call
+    **/
+   private Block reserve() throws SQLException {
+      if(this._blockSize == 0){
+         List<List<String>> increment = this._esql.executeQueryAndReturnResult("SELECT increment_by FROM pg_sequences WHERE sequencename=?", this._sequence);
+         if(increment.isEmpty())
+            throw new SQLException("Sequence " + this._sequence + " does not exist");
+         this._blockSize = Integer.parseInt(increment.get(0).get(0).trim());
+      }
+      long start = Long.parseLong(this._esql.executeWriteQuery("SELECT nextval(?::regclass)", this._sequence).get(0).get(0).trim());
+      return new Block(start, start + this._blockSize);
+   }//end reserve
+
+   /*
+    * A reserved range of ids [next, end)
+    **/
+   private static class Block {
+      final AtomicLong next;
+      final long end;
+
+      Block(long start, long end){
+         this.next = new AtomicLong(start);
+         this.end = end;
+      }//end Block
+   }//end Block
+
+}//end IdAllocator
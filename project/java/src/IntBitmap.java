@@ -0,0 +1,256 @@
+/*
+ * Compressed integer set for Messenger
+ * ====================================
+ *
+ * A set of non-negative ints in the style of Roaring bitmaps, used for the
+ * contact and block sets of RelationGraph.
+ *
+ */
+
+
+import java.util.Arrays;
+
+/**
+ * This class splits every value into its high and low 16 bits. Values that
+ * share their high bits live in one container: a sorted char array while it
+ * holds up to 4096 values, and a 65536-bit bitmap above that, so a sparse set
+ * costs 2 bytes per value and a dense one at most 8 KB per 65536 ids.
+ * Intersections work container by container.
+ *
+ * The class is not thread-safe.
+ *
+ */
+public class IntBitmap {
+
+   private static final int ARRAY_MAX = 4096;
+
+   // high 16 bits of each container, sorted, and the containers themselves
+   private char[] _keys = new char[4];
+   private Container[] _containers = new Container[4];
+   private int _size = 0;
+
+   /*
+    * The values sharing one set of high bits: either array (sorted, the
+    * first count entries used) or bits is set
+    **/
+   private static final class Container {
+      char[] array = new char[4];
+      long[] bits = null;
+      int count = 0;
+
+      boolean contains(char low){
+         if(this.bits != null)
+            return (this.bits[low >>> 6] & (1L << low)) != 0;
+         return Arrays.binarySearch(this.array, 0, this.count, low) >= 0;
+      }//end contains
+
+      boolean add(char low){
+         if(this.bits != null){
+            long mask = 1L << low;
+            if((this.bits[low >>> 6] & mask) != 0)
+               return false;
+            this.bits[low >>> 6] |= mask;
+            this.count++;
+            return true;
+         }
+         int at = Arrays.binarySearch(this.array, 0, this.count, low);
+         if(at >= 0)
+            return false;
+         at = -at - 1;
+         if(this.count == ARRAY_MAX){
+            // too dense for an array, switches to a bitmap
+            this.bits = new long[1024];
+            for(int i = 0; i < this.count; ++i)
+               this.bits[this.array[i] >>> 6] |= 1L << this.array[i];
+            this.array = null;
+            this.bits[low >>> 6] |= 1L << low;
+            this.count++;
+            return true;
+         }
+         if(this.count == this.array.length)
+            this.array = Arrays.copyOf(this.array, Math.min(ARRAY_MAX, this.count * 2));
+         System.arraycopy(this.array, at, this.array, at + 1, this.count - at);
+         this.array[at] = low;
+         this.count++;
+         return true;
+      }//end add
+
+      boolean remove(char low){
+         if(this.bits != null){
+            long mask = 1L << low;
+            if((this.bits[low >>> 6] & mask) == 0)
+               return false;
+            this.bits[low >>> 6] &= ~mask;
+            this.count--;
+            if(this.count <= ARRAY_MAX / 2){
+               // sparse again, switches back to an array
+               char[] array = new char[Math.max(4, this.count)];
+               int n = 0;
+               for(int i = 0; i < 1024; ++i)
+                  for(long word = this.bits[i]; word != 0; word &= word - 1)
+                     array[n++] = (char)(i * 64 + Long.numberOfTrailingZeros(word));
+               this.array = array;
+               this.bits = null;
+            }
+            return true;
+         }
+         int at = Arrays.binarySearch(this.array, 0, this.count, low);
+         if(at < 0)
+            return false;
+         System.arraycopy(this.array, at + 1, this.array, at, this.count - at - 1);
+         this.count--;
+         return true;
+      }//end remove
+
+      Container and(Container other){
+         Container result = new Container();
+         if(this.bits != null && other.bits != null){
+            long[] bits = new long[1024];
+            int count = 0;
+            for(int i = 0; i < 1024; ++i){
+               bits[i] = this.bits[i] & other.bits[i];
+               count += Long.bitCount(bits[i]);
+            }
+            if(count > ARRAY_MAX){
+               result.array = null;
+               result.bits = bits;
+               result.count = count;
+               return result;
+            }
+            for(int i = 0; i < 1024; ++i)
+               for(long word = bits[i]; word != 0; word &= word - 1)
+                  result.add((char)(i * 64 + Long.numberOfTrailingZeros(word)));
+            return result;
+         }
+         // probes the other container with every value of the array one
+         Container small = this.bits == null ? this : other;
+         Container large = small == this ? other : this;
+         for(int i = 0; i < small.count; ++i)
+            if(large.contains(small.array[i]))
+               result.add(small.array[i]);
+         return result;
+      }//end and
+
+      void collect(int high, int[] out, int from){
+         if(this.bits == null){
+            for(int i = 0; i < this.count; ++i)
+               out[from++] = high | this.array[i];
+            return;
+         }
+         for(int i = 0; i < 1024; ++i)
+            for(long word = this.bits[i]; word != 0; word &= word - 1)
+               out[from++] = high | (i * 64 + Long.numberOfTrailingZeros(word));
+      }//end collect
+   }//end Container
+
+   /**
+    * @param value a non-negative int
+    * @return whether the set holds value
+    */
+   public boolean contains(int value){
+      int at = find((char)(value >>> 16));
+      return at >= 0 && this._containers[at].contains((char)value);
+   }//end contains
+
+   /**
+    * @param value a non-negative int
+    * @return whether value was not in the set before
+    */
+   public boolean add(int value){
+      char high = (char)(value >>> 16);
+      int at = find(high);
+      if(at < 0){
+         at = -at - 1;
+         if(this._size == this._keys.length){
+            this._keys = Arrays.copyOf(this._keys, this._size * 2);
+            this._containers = Arrays.copyOf(this._containers, this._size * 2);
+         }
+         System.arraycopy(this._keys, at, this._keys, at + 1, this._size - at);
+         System.arraycopy(this._containers, at, this._containers, at + 1, this._size - at);
+         this._keys[at] = high;
+         this._containers[at] = new Container();
+         this._size++;
+      }
+      return this._containers[at].add((char)value);
+   }//end add
+
+   /**
+    * @param value a non-negative int
+    * @return whether value was in the set
+    */
+   public boolean remove(int value){
+      int at = find((char)(value >>> 16));
+      if(at < 0 || !this._containers[at].remove((char)value))
+         return false;
+      if(this._containers[at].count == 0){
+         System.arraycopy(this._keys, at + 1, this._keys, at, this._size - at - 1);
+         System.arraycopy(this._containers, at + 1, this._containers, at, this._size - at - 1);
+         this._containers[--this._size] = null;
+      }
+      return true;
+   }//end remove
+
+   /**
+    * @return the number of values in the set
+    */
+   public int cardinality(){
+      int total = 0;
+      for(int i = 0; i < this._size; ++i)
+         total += this._containers[i].count;
+      return total;
+   }//end cardinality
+
+   /**
+    * @param other another set
+    * @return a new set holding the values in both
+    */
+   public IntBitmap and(IntBitmap other){
+      IntBitmap result = new IntBitmap();
+      int i = 0;
+      int j = 0;
+      while(i < this._size && j < other._size){
+         if(this._keys[i] < other._keys[j])
+            ++i;
+         else if(this._keys[i] > other._keys[j])
+            ++j;
+         else{
+            Container both = this._containers[i].and(other._containers[j]);
+            if(both.count > 0)
+               result.append(this._keys[i], both);
+            ++i;
+            ++j;
+         }
+      }
+      return result;
+   }//end and
+
+   /**
+    * @return the values in ascending order
+    */
+   public int[] toArray(){
+      int[] values = new int[cardinality()];
+      int from = 0;
+      for(int i = 0; i < this._size; ++i){
+         this._containers[i].collect(this._keys[i] << 16, values, from);
+         from += this._containers[i].count;
+      }
+      return values;
+   }//end toArray
+
+   /*
+    * Adds a container whose key is larger than every existing one
+    **/
+   private void append(char high, Container container){
+      if(this._size == this._keys.length){
+         this._keys = Arrays.copyOf(this._keys, this._size * 2);
+         this._containers = Arrays.copyOf(this._containers, this._size * 2);
+      }
+      this._keys[this._size] = high;
+      this._containers[this._size++] = container;
+   }//end append
+
+   private int find(char high){
+      return Arrays.binarySearch(this._keys, 0, this._size, high);
+   }//end find
+
+}//end IntBitmap
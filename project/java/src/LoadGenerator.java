@@ -0,0 +1,462 @@
+/*
+ * Load generator for Messenger
+ * ============================
+ *
+ * Replays a mix of Messenger operations for many simulated users at a fixed
+ * arrival rate, for capacity planning and soak tests.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This program simulates the users in usr.csv. Operations arrive as a
+ * Poisson process at a fixed rate (an open model): each arrival picks a
+ * random user and an operation from the mix, and is queued for one of the
+ * database sessions whether or not earlier operations have finished. An
+ * operation's latency is measured from its arrival, so time spent queued
+ * behind a slow database counts, as it would for a real user.
+ *
+ * The operations issue the same statements as their interactive
+ * counterparts, through the same Messenger instance methods where those
+ * exist, so QueryMetrics and Tracer see them as usual:
+ *
+ *    login     LogIn's credential check
+ *    listchat  ListChat's chat summaries
+ *    view      ChatViewer: the chat history, paging into the archive, and
+ *              the read cursor
+ *    send      NewMessage
+ *    contact   AddToContact for a random user
+ *    block     AddToBlock for a random user
+ *    addchat   AddToChat for a random user, into a chat the simulated user
+ *              created (CreateChat on first use)
+ *
+ * Operations that need one of the user's chats do a listchat first if none
+ * is known yet. The load writes messages, contacts, blocks and chats, so it
+ * should run against a test database.
+ *
+ * Usage:
+ *    java LoadGenerator <dbname> <port> <user> [options]
+ *
+ *    --data FILE       users to simulate (default ../data/usr.csv)
+ *    --users N         simulate the first N users (default all)
+ *    --rate R          operations per second (default 50)
+ *    --duration S      seconds to run (default 60)
+ *    --sessions N      database sessions working off the queue (default 8)
+ *    --report S        seconds between progress lines (default 10)
+ *    --mix op=w,...    operation weights (default login=10,listchat=25,
+ *                      view=30,send=25,contact=4,block=2,addchat=4)
+ *
+ * Every report interval it prints the throughput, errors, error rate and
+ * the p50, p99 and p999 latency of each operation in that interval, and a
+ * summary over the whole run at the end. The first error of each kind (an
+ * operation and SQLState, or exception class) is printed to stderr with its
+ * message when it happens; later ones are only counted. More than 100000
+ * queued operations means the database cannot keep up; further arrivals are
+ * then dropped and counted as errors.
+ *
+ */
+public class LoadGenerator {
+
+   private static final int MAX_QUEUED = 100000;
+
+   private static final String[] OPS = {"login", "listchat", "view", "send", "contact", "block", "addchat"};
+
+   // a simulated user and what it has learned about its chats; ownChat is
+   // guarded by the User, so two sessions never both create it
+   private static class User {
+      final String login;
+      final String password;
+      volatile List<String> chats = null;
+      String ownChat = null;
+
+      User(String login, String password){
+         this.login = login;
+         this.password = password;
+      }//end User
+   }//end User
+
+   // latencies and errors of one operation, per interval and overall
+   private static class OpStats {
+      volatile QueryMetrics.LatencyHistogram interval = new QueryMetrics.LatencyHistogram();
+      final QueryMetrics.LatencyHistogram total = new QueryMetrics.LatencyHistogram();
+      final AtomicLong intervalErrors = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+   }//end OpStats
+
+   private final List<User> _users;
+   private final String[] _mix;
+   private final int[] _weights;
+   private final Map<String, OpStats> _stats = new LinkedHashMap<String, OpStats>();
+   private final AtomicLong _dropped = new AtomicLong();
+   // the kinds of error already printed, see fail
+   private final Set<String> _errorKinds = ConcurrentHashMap.newKeySet();
+   private final ThreadLocal<Messenger> _session;
+   private final List<Messenger> _sessions = Collections.synchronizedList(new ArrayList<Messenger>());
+
+   private LoadGenerator(final String[] db, List<User> users, Map<String, Integer> mix){
+      this._users = users;
+      this._mix = mix.keySet().toArray(new String[0]);
+      this._weights = new int[this._mix.length];
+      for(int i = 0; i < this._mix.length; ++i){
+         this._weights[i] = (i == 0 ? 0 : this._weights[i - 1]) + mix.get(this._mix[i]);
+         this._stats.put(this._mix[i], new OpStats());
+      }
+      // every worker thread has its own session, which connects quietly on
+      // its first statement
+      this._session = new ThreadLocal<Messenger>(){
+         protected Messenger initialValue(){
+            try{
+               Messenger esql = new Messenger(db[0], db[1], db[2], "", true);
+               _sessions.add(esql);
+               return esql;
+            }catch(Exception e){
+               throw new IllegalStateException(e.getMessage(), e);
+            }
+         }
+      };
+   }//end LoadGenerator
+
+   /**
+    * @param args the command line arguments, see the class comment
+    */
+   public static void main (String[] args) {
+      if(args.length < 3){
+         System.err.println("Usage: java " + LoadGenerator.class.getName() + " <dbname> <port> <user> [--data FILE] [--users N] [--rate R] "
+            + "[--duration S] [--sessions N] [--report S] [--mix op=w,...]");
+         return;
+      }
+      String data = "../data/usr.csv";
+      int userCount = Integer.MAX_VALUE;
+      double rate = 50;
+      int duration = 60;
+      int sessions = 8;
+      int report = 10;
+      String mix = "login=10,listchat=25,view=30,send=25,contact=4,block=2,addchat=4";
+      for(int i = 3; i + 1 < args.length; i += 2){
+         String value = args[i + 1];
+         switch(args[i]){
+            case "--data": data = value; break;
+            case "--users": userCount = Integer.parseInt(value); break;
+            case "--rate": rate = Double.parseDouble(value); break;
+            case "--duration": duration = Integer.parseInt(value); break;
+            case "--sessions": sessions = Integer.parseInt(value); break;
+            case "--report": report = Integer.parseInt(value); break;
+            case "--mix": mix = value; break;
+            default: System.err.println("Unknown option " + args[i]); return;
+         }
+      }
+
+      try{
+         List<User> users = readUsers(data, userCount);
+         LoadGenerator load = new LoadGenerator(new String[]{args[0], args[1], args[2]}, users, parseMix(mix));
+         System.out.println("Simulating " + users.size() + " users at " + rate + " ops/s for " + duration + "s on " + sessions + " sessions");
+         load.run(rate, duration, sessions, report);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end main
+
+   /*
+    * Schedules arrivals until the duration is over, then waits for the queue
+    * to drain and prints the summary
+    **/
+   private void run(double rate, int duration, int sessions, int report) throws InterruptedException {
+      final AtomicInteger threads = new AtomicInteger();
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(sessions, sessions, 0, TimeUnit.SECONDS,
+         new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+            public Thread newThread(Runnable task){
+               Thread thread = new Thread(task, "load-session-" + threads.incrementAndGet());
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+
+      Random random = new Random();
+      long start = System.nanoTime();
+      long end = start + TimeUnit.SECONDS.toNanos(duration);
+      long nextReport = start + TimeUnit.SECONDS.toNanos(report);
+      long lastReport = start;
+      double next = start;
+      System.out.println(header());
+      while(true){
+         // exponential inter-arrival times make the arrivals a Poisson process
+         next += -Math.log(1.0 - random.nextDouble()) / rate * 1e9;
+         long arrival = (long)next;
+         if(arrival >= end)
+            break;
+         long now;
+         while((now = System.nanoTime()) < arrival){
+            if(now >= nextReport){
+               report(now - start, now - lastReport);
+               lastReport = now;
+               nextReport += TimeUnit.SECONDS.toNanos(report);
+            }
+            LockSupport.parkNanos(Math.min(arrival, nextReport) - now);
+         }
+         final User user = this._users.get(random.nextInt(this._users.size()));
+         final String op = pick(random);
+         final long intended = arrival;
+         if(pool.getQueue().size() >= MAX_QUEUED){
+            this._dropped.incrementAndGet();
+            record(op, 0, false);
+            continue;
+         }
+         pool.execute(new Runnable(){
+            public void run(){
+               boolean ok = execute(op, user);
+               record(op, System.nanoTime() - intended, ok);
+            }
+         });
+      }
+
+      pool.shutdown();
+      while(!pool.awaitTermination(report, TimeUnit.SECONDS)){
+         long now = System.nanoTime();
+         report(now - start, now - lastReport);
+         lastReport = now;
+      }
+      long now = System.nanoTime();
+      report(now - start, now - lastReport);
+      summary(now - start);
+      for(Messenger esql : this._sessions)
+         esql.cleanup();
+   }//end run
+
+   /*
+    * Runs one operation for a user on the calling thread's session
+    **/
+   private boolean execute(String op, User user){
+      try{
+         Messenger esql = this._session.get();
+         String login = user.login;
+         switch(op){
+            case "login":
+               if(esql.executeQuery("SELECT * FROM Usr WHERE login = ? AND password = ? AND NOT deleted", login, user.password) > 0)
+                  return true;
+               return fail(op, "refused", "Incorrect login or password for " + login);
+            case "listchat":
+               listChats(esql, user);
+               return true;
+            case "view": {
+               String chat = randomChat(esql, user);
+               if(chat == null)
+                  return true;
+               List<List<String>> history = esql.getChatHistory(chat);
+               // pages through one to three screens of 10, reading through
+               // to the archive like ChatViewer
+               int pages = 1 + ThreadLocalRandom.current().nextInt(3);
+               for(int cnt = 10; cnt < pages * 10 && history.size() <= cnt + 10; cnt += 10)
+                  history = esql.extendChatHistory(chat);
+               int mark = Messenger.maxSeq(history);
+               if(mark > 0)
+                  esql.advanceReadCursor(login, chat, mark);
+               return true;
+            }
+            case "send": {
+               String chat = randomChat(esql, user);
+               if(chat == null)
+                  return true;
+               esql.sendMessage(login, chat, "load test message " + System.nanoTime(), UUID.randomUUID().toString());
+               return true;
+            }
+            case "contact":
+               return addToList(esql, login, true);
+            case "block":
+               return addToList(esql, login, false);
+            case "addchat": {
+               String chat;
+               synchronized(user){
+                  if(user.ownChat == null)
+                     user.ownChat = esql.createChat(login);
+                  chat = user.ownChat;
+               }
+               String member = randomUser().login;
+               esql.addChatMembers(chat, Collections.singletonList(member));
+               return true;
+            }
+            default:
+               return false;
+         }
+      }catch(Exception e){
+         String state = e instanceof SQLException ? ((SQLException)e).getSQLState() : null;
+         return fail(op, state != null ? "SQLState " + state : e.getClass().getSimpleName(), e.getMessage());
+      }
+   }//end execute
+
+   /*
+    * Prints the first error of each kind of an operation, returning false
+    **/
+   private boolean fail(String op, String kind, String message){
+      if(this._errorKinds.add(op + " " + kind))
+         System.err.println("First " + op + " error (" + kind + "): " + message);
+      return false;
+   }//end fail
+
+   /*
+    * The non-interactive path of AddToContact and AddToBlock: a user already
+    * on the other list is moved, one already on this list is left alone
+    **/
+   private boolean addToList(Messenger esql, String login, boolean contacts) throws Exception {
+      String member = randomUser().login;
+      if(!Messenger.verifyUser(esql, member))
+         return fail(contacts ? "contact" : "block", "refused", "No user " + member);
+      String[] lists = esql.getUserLists(login);
+      String listId = contacts ? lists[0] : lists[1];
+      String otherId = contacts ? lists[1] : lists[0];
+      RelationGraph graph = esql.relations();
+      if(contacts ? graph.isBlocked(login, member) : graph.isContact(login, member)){
+         esql.executeUpdate("DELETE FROM USER_LIST_CONTAINS WHERE list_id=? AND list_member=?", Integer.parseInt(otherId), member);
+         esql.invalidate("l:" + otherId + ":" + member);
+      }
+      else if(contacts ? graph.isContact(login, member) : graph.isBlocked(login, member))
+         return true;
+      esql.executeUpdate("INSERT INTO USER_LIST_CONTAINS VALUES (?, ?)", Integer.parseInt(listId), member);
+      esql.invalidate("l:" + listId + ":" + member);
+      return true;
+   }//end addToList
+
+   private static void listChats(Messenger esql, User user) throws Exception {
+      List<String> chats = new ArrayList<String>();
+      for(List<String> row : esql.getChatSummaries(user.login))
+         chats.add(row.get(0).trim());
+      user.chats = chats;
+   }//end listChats
+
+   private static String randomChat(Messenger esql, User user) throws Exception {
+      if(user.chats == null)
+         listChats(esql, user);
+      List<String> chats = user.chats;
+      if(chats.isEmpty())
+         return null;
+      return chats.get(ThreadLocalRandom.current().nextInt(chats.size()));
+   }//end randomChat
+
+   private User randomUser(){
+      return this._users.get(ThreadLocalRandom.current().nextInt(this._users.size()));
+   }//end randomUser
+
+   private String pick(Random random){
+      int r = random.nextInt(this._weights[this._weights.length - 1]);
+      for(int i = 0; i < this._weights.length; ++i)
+         if(r < this._weights[i])
+            return this._mix[i];
+      return this._mix[this._mix.length - 1];
+   }//end pick
+
+   private void record(String op, long nanos, boolean ok){
+      OpStats stats = this._stats.get(op);
+      if(!ok){
+         stats.errors.incrementAndGet();
+         stats.intervalErrors.incrementAndGet();
+         return;
+      }
+      stats.interval.record(nanos);
+      stats.total.record(nanos);
+   }//end record
+
+   private String header(){
+      return String.format("%8s %-9s %9s %7s %6s %9s %9s %9s", "time(s)", "op", "ops/s", "errors", "err%", "p50(ms)", "p99(ms)", "p999(ms)");
+   }//end header
+
+   /*
+    * Prints one line per operation for the interval that just ended
+    **/
+   private void report(long elapsed, long interval){
+      double seconds = interval / 1e9;
+      for(Map.Entry<String, OpStats> entry : this._stats.entrySet()){
+         OpStats stats = entry.getValue();
+         QueryMetrics.LatencyHistogram histogram = stats.interval;
+         stats.interval = new QueryMetrics.LatencyHistogram();
+         long errors = stats.intervalErrors.getAndSet(0);
+         System.out.println(line(elapsed / 1000000000L, entry.getKey(), histogram, errors, seconds));
+      }
+   }//end report
+
+   private void summary(long elapsed){
+      System.out.println("\nSummary over " + (elapsed / 1000000000L) + "s (" + this._dropped.get() + " arrivals dropped)");
+      System.out.println(header());
+      long ops = 0;
+      long errors = 0;
+      for(Map.Entry<String, OpStats> entry : this._stats.entrySet()){
+         OpStats stats = entry.getValue();
+         ops += stats.total.count();
+         errors += stats.errors.get();
+         System.out.println(line(elapsed / 1000000000L, entry.getKey(), stats.total, stats.errors.get(), elapsed / 1e9));
+      }
+      System.out.println(String.format("%8s %-9s %9.1f %7d %6.2f", "", "all", ops / (elapsed / 1e9), errors, errorRate(ops, errors)));
+   }//end summary
+
+   private static String line(long time, String op, QueryMetrics.LatencyHistogram histogram, long errors, double seconds){
+      return String.format("%8d %-9s %9.1f %7d %6.2f %9.2f %9.2f %9.2f", time, op, histogram.count() / seconds, errors, errorRate(histogram.count(), errors),
+         histogram.percentile(0.50) / 1e6, histogram.percentile(0.99) / 1e6, histogram.percentile(0.999) / 1e6);
+   }//end line
+
+   /*
+    * The percentage of an operation's attempts that failed
+    **/
+   private static double errorRate(long ok, long errors){
+      return ok + errors == 0 ? 0 : 100.0 * errors / (ok + errors);
+   }//end errorRate
+
+   /*
+    * Reads login (1st field) and password (3rd field) of every user
+    **/
+   private static List<User> readUsers(String file, int limit) throws IOException {
+      List<User> users = new ArrayList<User>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try{
+         String line;
+         while(users.size() < limit && (line = reader.readLine()) != null){
+            String[] fields = line.split(";");
+            if(fields.length >= 3)
+               users.add(new User(fields[0], fields[2]));
+         }
+      }finally{
+         reader.close();
+      }
+      if(users.isEmpty())
+         throw new IOException("No users in " + file);
+      return users;
+   }//end readUsers
+
+   private static Map<String, Integer> parseMix(String mix){
+      Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+      for(String entry : mix.split(",")){
+         String[] pair = entry.split("=");
+         boolean known = false;
+         for(String op : OPS)
+            known |= op.equals(pair[0].trim());
+         if(!known || pair.length != 2)
+            throw new IllegalArgumentException("Bad mix entry '" + entry + "', operations are login, listchat, view, send, contact, block, addchat");
+         int weight = Integer.parseInt(pair[1].trim());
+         if(weight > 0)
+            weights.put(pair[0].trim(), weight);
+      }
+      if(weights.isEmpty())
+         throw new IllegalArgumentException("The mix has no operations");
+      return weights;
+   }//end parseMix
+
+}//end LoadGenerator
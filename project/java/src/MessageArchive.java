@@ -0,0 +1,449 @@
+/*
+ * Cold message archive for Messenger
+ * ==================================
+ *
+ * Keeps old messages in compressed, per-chat columnar segment files on local
+ * disk, so the MESSAGE table and its indexes only hold the recent ones.
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class stores archived messages and reads them back. Every archiving
+ * run writes one segment file per chat holding that chat's newly archived
+ * messages, newest first, in the (msg_id, msg_timestamp, msg_text,
+ * sender_login, seq) shape ChatViewer displays.
+ *
+ * A segment is a gzip stream with one column after the other: the msg_ids,
+ * seqs and timestamps as zig-zag varint deltas from the previous row, the
+ * senders as a dictionary plus one index per row, and the texts with their
+ * char(300) padding stripped. Segments of version 1, written before seq was
+ * archived, have no seq column and their rows no seq. Segments are
+ * immutable; messages in them can no longer be edited or deleted.
+ *
+ * The manifest (manifest.tsv) lists every segment with its chat, row count,
+ * msg_id range and time range, so a chat's segments are found without
+ * opening any file. It is replaced atomically after a segment is written, so
+ * a segment not in the manifest is ignored. Every replacement is a new file,
+ * so the archive reloads the manifest whenever the file's identity,
+ * modification time or size differ from the ones it loaded, and a
+ * long-running session sees the segments MessageArchiver added and
+ * DeletionReaper dropped since.
+ *
+ * The directory is messenger.archiveDir (default messenger-archive).
+ *
+ */
+public class MessageArchive {
+
+   private static final int MAGIC = 0x4d534741; // "MSGA"
+   private static final int VERSION = 2;
+   private static final String MANIFEST = "manifest.tsv";
+
+   private final File _dir;
+
+   // segments per chat, newest first; loaded on first use and again when
+   // the manifest file on disk is no longer the one _manifestStamp describes
+   private Map<String, List<Segment>> _segments = null;
+   private String _manifestStamp = null;
+
+   /**
+    * One archived segment as listed in the manifest.
+    */
+   public static class Segment {
+      public final String chat;
+      public final String file;
+      public final int count;
+      public final long minId;
+      public final long maxId;
+      public final long oldest;
+      public final long newest;
+
+      Segment(String chat, String file, int count, long minId, long maxId, long oldest, long newest){
+         this.chat = chat;
+         this.file = file;
+         this.count = count;
+         this.minId = minId;
+         this.maxId = maxId;
+         this.oldest = oldest;
+         this.newest = newest;
+      }//end Segment
+   }//end Segment
+
+   /**
+    * Creates an archive in a directory. Nothing is read until it is used.
+    *
+    * @param dir the archive directory; created on the first write
+    */
+   public MessageArchive(File dir){
+      this._dir = dir;
+   }//end MessageArchive
+
+   /**
+    * @return the archive in the directory set by messenger.archiveDir
+    */
+   public static MessageArchive configured(){
+      return new MessageArchive(new File(System.getProperty("messenger.archiveDir", "messenger-archive")));
+   }//end configured
+
+   /**
+    * Method to list a chat's segments.
+    *
+    * @param chat the chat id
+    * @return the chat's segments, newest first
+    * @throws java.io.IOException when the manifest cannot be read
+    */
+   public synchronized List<Segment> getSegments(String chat) throws IOException {
+      List<Segment> segments = manifest().get(chat.trim());
+      if(segments == null)
+         return Collections.<Segment>emptyList();
+      return new ArrayList<Segment>(segments);
+   }//end getSegments
+
+   /**
+    * Method to read the messages of one segment.
+    *
+    * @param segment a segment returned by getSegments
+    * @return its messages, newest first, with their seq if the segment has it
+    * @throws java.io.IOException when the segment cannot be read
+    */
+   public List<List<String>> read(Segment segment) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+         new GZIPInputStream(new FileInputStream(new File(this._dir, segment.file)), 8192)));
+      try{
+         int version = in.readInt() == MAGIC ? in.readUnsignedByte() : -1;
+         if(version < 1 || version > VERSION)
+            throw new IOException("Not a message segment: " + segment.file);
+         int count = readVarInt(in);
+         long[] ids = new long[count];
+         long[] seqs = version >= 2 ? new long[count] : null;
+         long[] times = new long[count];
+         long prev = 0;
+         for(int i = 0; i < count; ++i)
+            ids[i] = prev += readZigZag(in);
+         prev = 0;
+         for(int i = 0; seqs != null && i < count; ++i)
+            seqs[i] = prev += readZigZag(in);
+         prev = 0;
+         for(int i = 0; i < count; ++i)
+            times[i] = prev += readZigZag(in);
+         String[] senders = new String[readVarInt(in)];
+         for(int i = 0; i < senders.length; ++i)
+            senders[i] = readString(in);
+         int[] sender = new int[count];
+         for(int i = 0; i < count; ++i)
+            sender[i] = readVarInt(in);
+
+         List<List<String>> rows = new ArrayList<List<String>>(count);
+         for(int i = 0; i < count; ++i){
+            List<String> row = new ArrayList<String>(5);
+            row.add(Long.toString(ids[i]));
+            row.add(formatTimestamp(times[i]));
+            row.add(readString(in));
+            row.add(senders[sender[i]]);
+            if(seqs != null)
+               row.add(Long.toString(seqs[i]));
+            rows.add(row);
+         }
+         return rows;
+      }finally{
+         in.close();
+      }
+   }//end read
+
+   /**
+    * Method to find the msg_ids of a chat that are already archived, so an
+    * interrupted archiving run does not archive them twice.
+    *
+    * @param chat the chat id
+    * @return the archived msg_ids
+    * @throws java.io.IOException when a segment cannot be read
+    */
+   public Set<String> archivedIds(String chat) throws IOException {
+      Set<String> ids = new HashSet<String>();
+      for(Segment segment : getSegments(chat))
+         for(List<String> row : read(segment))
+            ids.add(row.get(0));
+      return ids;
+   }//end archivedIds
+
+   /**
+    * Method to write a new segment for a chat and add it to the manifest.
+    *
+    * @param chat the chat id
+    * @param ids the msg_ids, newest message first
+    * @param seqs the messages' seqs
+    * @param times the messages' timestamps
+    * @param texts the messages' texts
+    * @param senders the messages' sender logins
+    * @throws java.io.IOException when the segment or manifest cannot be written
+    */
+   public synchronized void append(String chat, List<Long> ids, List<Integer> seqs, List<Timestamp> times, List<String> texts, List<String> senders) throws IOException {
+      int count = ids.size();
+      if(count == 0)
+         return;
+      chat = chat.trim();
+      if(!this._dir.isDirectory() && !this._dir.mkdirs())
+         throw new IOException("Cannot create " + this._dir);
+
+      long minId = Long.MAX_VALUE;
+      long maxId = Long.MIN_VALUE;
+      long oldest = Long.MAX_VALUE;
+      long newest = Long.MIN_VALUE;
+      for(int i = 0; i < count; ++i){
+         minId = Math.min(minId, ids.get(i));
+         maxId = Math.max(maxId, ids.get(i));
+         oldest = Math.min(oldest, micros(times.get(i)));
+         newest = Math.max(newest, micros(times.get(i)));
+      }
+      String name = "chat-" + chat + "-" + minId + "-" + maxId + "-" + System.currentTimeMillis() + ".seg";
+
+      File tmp = new File(this._dir, name + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+         new GZIPOutputStream(new FileOutputStream(tmp), 8192)));
+      try{
+         out.writeInt(MAGIC);
+         out.writeByte(VERSION);
+         writeVarInt(out, count);
+         long prev = 0;
+         for(int i = 0; i < count; ++i){
+            writeZigZag(out, ids.get(i) - prev);
+            prev = ids.get(i);
+         }
+         prev = 0;
+         for(int i = 0; i < count; ++i){
+            writeZigZag(out, seqs.get(i) - prev);
+            prev = seqs.get(i);
+         }
+         prev = 0;
+         for(int i = 0; i < count; ++i){
+            long time = micros(times.get(i));
+            writeZigZag(out, time - prev);
+            prev = time;
+         }
+         Map<String, Integer> dictionary = new HashMap<String, Integer>();
+         List<String> names = new ArrayList<String>();
+         for(int i = 0; i < count; ++i){
+            String sender = trim(senders.get(i));
+            if(!dictionary.containsKey(sender)){
+               dictionary.put(sender, names.size());
+               names.add(sender);
+            }
+         }
+         writeVarInt(out, names.size());
+         for(String sender : names)
+            writeString(out, sender);
+         for(int i = 0; i < count; ++i)
+            writeVarInt(out, dictionary.get(trim(senders.get(i))));
+         for(int i = 0; i < count; ++i)
+            writeString(out, trim(texts.get(i)));
+      }finally{
+         out.close();
+      }
+      Files.move(tmp.toPath(), new File(this._dir, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+      // Publishes the segment by replacing the manifest
+      List<Segment> segments = manifest().get(chat);
+      if(segments == null){
+         segments = new ArrayList<Segment>();
+         this._segments.put(chat, segments);
+      }
+      segments.add(new Segment(chat, name, count, minId, maxId, oldest, newest));
+      sort(segments);
+      writeManifest();
+   }//end append
+
+   /**
+    * Method to delete every segment of a chat, e.g. when the chat is deleted.
+    *
+    * @param chat the chat id
+    * @throws java.io.IOException when the manifest cannot be written
+    */
+   public synchronized void dropChat(String chat) throws IOException {
+      List<Segment> segments = manifest().remove(chat.trim());
+      if(segments == null)
+         return;
+      writeManifest();
+      for(Segment segment : segments)
+         new File(this._dir, segment.file).delete();
+   }//end dropChat
+
+   /*
+    * Loads the manifest on first use and whenever it was replaced since
+    **/
+   private Map<String, List<Segment>> manifest() throws IOException {
+      File file = new File(this._dir, MANIFEST);
+      String stamp = stamp(file);
+      if(this._segments != null && stamp.equals(this._manifestStamp))
+         return this._segments;
+      Map<String, List<Segment>> segments = new HashMap<String, List<Segment>>();
+      if(file.exists()){
+         BufferedReader reader = new BufferedReader(new FileReader(file));
+         try{
+            String line;
+            while((line = reader.readLine()) != null){
+               if(line.startsWith("#") || line.trim().isEmpty())
+                  continue;
+               String[] f = line.split("\t");
+               Segment segment = new Segment(f[0], f[1], Integer.parseInt(f[2]), Long.parseLong(f[3]),
+                  Long.parseLong(f[4]), Long.parseLong(f[5]), Long.parseLong(f[6]));
+               List<Segment> list = segments.get(segment.chat);
+               if(list == null){
+                  list = new ArrayList<Segment>();
+                  segments.put(segment.chat, list);
+               }
+               list.add(segment);
+            }
+         }finally{
+            reader.close();
+         }
+      }
+      for(List<Segment> list : segments.values())
+         sort(list);
+      this._segments = segments;
+      this._manifestStamp = stamp;
+      return segments;
+   }//end manifest
+
+   /*
+    * Identifies the manifest file on disk: its file key (the inode, where
+    * there is one), modification time and size
+    **/
+   private static String stamp(File file) throws IOException {
+      if(!file.exists())
+         return "";
+      BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      return attributes.fileKey() + " " + attributes.lastModifiedTime().toMillis() + " " + attributes.size();
+   }//end stamp
+
+   /*
+    * Writes the manifest to a temporary file and moves it over the old one
+    **/
+   private void writeManifest() throws IOException {
+      File tmp = new File(this._dir, MANIFEST + ".tmp");
+      BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
+      try{
+         writer.write("# chat_id\tfile\tcount\tmin_msg_id\tmax_msg_id\toldest_us\tnewest_us\n");
+         for(List<Segment> list : this._segments.values())
+            for(Segment s : list)
+               writer.write(s.chat + "\t" + s.file + "\t" + s.count + "\t" + s.minId + "\t" + s.maxId + "\t" + s.oldest + "\t" + s.newest + "\n");
+      }finally{
+         writer.close();
+      }
+      File file = new File(this._dir, MANIFEST);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      this._manifestStamp = stamp(file);
+   }//end writeManifest
+
+   private static void sort(List<Segment> segments){
+      Collections.sort(segments, new Comparator<Segment>(){
+         public int compare(Segment a, Segment b){
+            return Long.compare(b.newest, a.newest);
+         }
+      });
+   }//end sort
+
+   private static String trim(String value){
+      if(value == null)
+         return "";
+      int end = value.length();
+      while(end > 0 && value.charAt(end - 1) == ' ')
+         --end;
+      return value.substring(0, end);
+   }//end trim
+
+   /*
+    * Timestamps are kept in microseconds, Postgres' own precision
+    **/
+   private static long micros(Timestamp time){
+      return Math.floorDiv(time.getTime(), 1000L) * 1000000L + time.getNanos() / 1000;
+   }//end micros
+
+   /*
+    * Formats a timestamp the way Postgres prints it, e.g. 2024-01-31 10:15:00.25
+    **/
+   private static String formatTimestamp(long micros){
+      Timestamp time = new Timestamp(Math.floorDiv(micros, 1000000L) * 1000L);
+      time.setNanos((int)Math.floorMod(micros, 1000000L) * 1000);
+      String text = time.toString();
+      // Timestamp prints at least one fraction digit, Postgres none when zero
+      int end = text.length();
+      while(text.charAt(end - 1) == '0')
+         --end;
+      if(text.charAt(end - 1) == '.')
+         --end;
+      return text.substring(0, end);
+   }//end formatTimestamp
+
+   private static void writeVarInt(DataOutputStream out, long value) throws IOException {
+      while((value & ~0x7FL) != 0){
+         out.writeByte((int)((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      out.writeByte((int)value);
+   }//end writeVarInt
+
+   private static void writeZigZag(DataOutputStream out, long value) throws IOException {
+      writeVarInt(out, (value << 1) ^ (value >> 63));
+   }//end writeZigZag
+
+   private static void writeString(DataOutputStream out, String value) throws IOException {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(out, bytes.length);
+      out.write(bytes);
+   }//end writeString
+
+   private static long readVarLong(DataInputStream in) throws IOException {
+      long value = 0;
+      for(int shift = 0; shift < 64; shift += 7){
+         int b = in.readUnsignedByte();
+         value |= (long)(b & 0x7F) << shift;
+         if((b & 0x80) == 0)
+            return value;
+      }
+      throw new IOException("Malformed varint");
+   }//end readVarLong
+
+   private static int readVarInt(DataInputStream in) throws IOException {
+      return (int)readVarLong(in);
+   }//end readVarInt
+
+   private static long readZigZag(DataInputStream in) throws IOException {
+      long value = readVarLong(in);
+      return (value >>> 1) ^ -(value & 1);
+   }//end readZigZag
+
+   private static String readString(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[readVarInt(in)];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }//end readString
+
+}//end MessageArchive
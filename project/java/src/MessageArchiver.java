@@ -0,0 +1,146 @@
+/*
+ * Cold message archiver for Messenger
+ * ===================================
+ *
+ * Moves old messages out of the MESSAGE table into the MessageArchive.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This program archives, for every chat, the messages older than a number
+ * of days, but always leaves the chat's newest messages (the hot window) in
+ * MESSAGE, so ListChat and the first page of ChatViewer never need the
+ * archive. Each chat's archived messages are read and locked on the
+ * primary, go into one new segment, and are deleted from MESSAGE in the
+ * same transaction once the segment is in the manifest, so an edit or
+ * delete can neither be missed nor slip in before the rows go. A run that was
+ * interrupted in between can simply be started again: messages already in a
+ * segment are only deleted, not archived twice.
+ *
+ * Usage:
+ *    java MessageArchiver <dbname> <port> <user> [--days N] [--keep N]
+ *
+ * --days defaults to messenger.archive.days (90) and --keep, the size of the
+ * hot window, to messenger.archive.keep (10). Shards configured through
+ * messenger.shards are archived too. The archive must be in the
+ * messenger.archiveDir the application reads from.
+ *
+ */
+public class MessageArchiver {
+
+   private MessageArchiver(){
+   }//end MessageArchiver
+
+   /**
+    * @param args the command line arguments, see the class comment
+    */
+   public static void main (String[] args) {
+      if(args.length < 3){
+         System.err.println("Usage: java " + MessageArchiver.class.getName() + " <dbname> <port> <user> [--days N] [--keep N]");
+         return;
+      }
+      int days = Integer.getInteger("messenger.archive.days", 90);
+      int keep = Integer.getInteger("messenger.archive.keep", 10);
+      for(int i = 3; i + 1 < args.length; i += 2){
+         if(args[i].equals("--days"))
+            days = Integer.parseInt(args[i + 1]);
+         else if(args[i].equals("--keep"))
+            keep = Integer.parseInt(args[i + 1]);
+      }
+
+      Messenger esql = null;
+      try{
+         esql = new Messenger(args[0], args[1], args[2], "");
+         MessageArchive archive = esql.getArchive();
+         List<List<String>> chats = esql.executeQueryOnAllShards(
+            "SELECT DISTINCT chat_id FROM MESSAGE WHERE msg_timestamp < now() - make_interval(days => ?)", days);
+         int total = 0;
+         for(List<String> row : chats){
+            int archived = archiveChat(esql.shard(row.get(0)), archive, row.get(0).trim(), days, keep);
+            if(archived > 0)
+               System.out.println("Chat #" + row.get(0).trim() + ": archived " + archived + " message(s)");
+            total += archived;
+         }
+         System.out.println("Archived " + total + " message(s) from " + chats.size() + " chat(s)");
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         if(esql != null)
+            esql.cleanup();
+      }
+   }//end main
+
+   /*
+    * Archives the cold messages of one chat in one transaction on its
+    * primary, returning how many were written
+    **/
+   private static int archiveChat(Messenger node, MessageArchive archive, String chat, int days, int keep) throws Exception {
+      // Reads go to the primary while the transaction is open
+      Connection conn = node.primary();
+      conn.setAutoCommit(false);
+      try{
+         int archived = archiveColdRows(node, archive, chat, days, keep);
+         conn.commit();
+         return archived;
+      }catch(Exception e){
+         conn.rollback();
+         throw e;
+      }finally{
+         conn.setAutoCommit(true);
+      }
+   }//end archiveChat
+
+   /*
+    * Archives and deletes the cold messages inside the caller's transaction
+    **/
+   private static int archiveColdRows(Messenger node, MessageArchive archive, String chat, int days, int keep) throws Exception {
+      int chatId = Integer.parseInt(chat);
+      Set<String> done = archive.getSegments(chat).isEmpty() ? Collections.<String>emptySet() : archive.archivedIds(chat);
+
+      final List<Long> ids = new ArrayList<Long>();
+      final List<Integer> seqs = new ArrayList<Integer>();
+      final List<Timestamp> times = new ArrayList<Timestamp>();
+      final List<String> texts = new ArrayList<String>();
+      final List<String> senders = new ArrayList<String>();
+      final List<Integer> cold = new ArrayList<Integer>();
+      String query = "SELECT msg_id, msg_timestamp, msg_text, sender_login, seq FROM MESSAGE "
+         + "WHERE chat_id=? AND msg_timestamp < now() - make_interval(days => ?) "
+         + "AND seq NOT IN (SELECT seq FROM MESSAGE WHERE chat_id=? ORDER BY seq DESC LIMIT ?) "
+         + "ORDER BY seq DESC FOR UPDATE";
+      node.executeQueryAndStream(query, new Messenger.RowHandler(){
+         public long handleRow(ResultSet rs) throws SQLException {
+            String text = rs.getString(3);
+            cold.add(rs.getInt(1));
+            if(!done.contains(rs.getString(1))){
+               ids.add(rs.getLong(1));
+               seqs.add(rs.getInt(5));
+               times.add(rs.getTimestamp(2));
+               texts.add(text);
+               senders.add(rs.getString(4));
+            }
+            return text == null ? 0 : text.length();
+         }
+      }, chatId, days, chatId, keep);
+
+      // The segment is in the manifest before anything leaves MESSAGE
+      archive.append(chat, ids, seqs, times, texts, senders);
+      if(!cold.isEmpty()){
+         int[] delete = new int[cold.size()];
+         for(int i = 0; i < delete.length; ++i)
+            delete[i] = cold.get(i);
+         node.executeUpdate("DELETE FROM MESSAGE WHERE chat_id=? AND msg_id = ANY(?)", chatId, delete);
+      }
+      return ids.size();
+   }//end archiveColdRows
+
+}//end MessageArchiver
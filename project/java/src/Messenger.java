@@ -14,17 +14,32 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTransientException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Collection;
+import java.util.UUID;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -36,11 +51,114 @@ public class Messenger {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // picks the primary for writes and a replica, if any, for reads; opened
+   // by connect() on first use
+   private RoutingDataSource _router = null;
+
+   // where the directory node is, for connect(); null on a shard node
+   private String _dbname = null;
+   private String _dbport = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // the nodes holding CHAT, CHAT_LIST, MESSAGE and CHAT_READ_CURSOR rows;
+   // null on a shard node itself
+   private ShardRouter _shards = null;
+
+   // latency, row and error statistics for every statement sent to the DBMS
+   private QueryMetrics _metrics = QueryMetrics.getInstance();
+
+   // rows fetched per round trip by the streaming queries
+   private int _fetchSize = Integer.getInteger("messenger.fetchSize", 500);
+
+   // MESSAGE and CHAT ids handed out from blocks reserved from their sequences.
+   // Like the archive, relation graph and prefetcher below they are created
+   // on first use, so a shard node's session, which never uses them, has none.
+   private IdAllocator _messageIds = null;
+   private IdAllocator _chatIds = null;
+
+   // per-session chat histories (newest first) and the highest seq loaded
+   // for each chat, so ChatViewer only has to fetch messages past that mark.
+   // Like the caches below they are only kept while the cache bus is live.
+   private Map<String, List<List<String>>> _chatHistory = new HashMap<String, List<List<String>>>();
+   private Map<String, Integer> _historyMark = new HashMap<String, Integer>();
+
+   // the lowest seq of the chats whose history only holds the newest page the
+   // prefetch loaded; extendChatHistory loads the rest of MESSAGE first
+   private Map<String, Integer> _historyFloor = new HashMap<String, Integer>();
+
+   // old messages moved out of MESSAGE by MessageArchiver, and the files of
+   // each chat's archived segments that were appended to its cached history
+   private MessageArchive _archive = null;
+   private Map<String, Set<String>> _archiveLoaded = new HashMap<String, Set<String>>();
+
+   // change keys from every database node, see cache_triggers.sql; null when
+   // the bus is off. The caches below are only used while it is live.
+   private CacheBus _bus = null;
+   private long _busEpoch = 0;
+
+   // (contact_list, block_list) per login, and chat membership per chat:login
+   private Map<String, String[]> _userLists = lruMap(10000);
+   private Map<String, Boolean> _members = lruMap(10000);
+
+   // contact and block lists as bitmaps, loaded per owner on first use
+   private RelationGraph _relations = null;
+
+   // ids of the messages this session sent with a client key, keyed by
+   // chat:sender:key, so a retry needs no round trip
+   private Map<String, Long> _sentKeys = lruMap(Integer.getInteger("messenger.sendKeys", 1024));
+
+   // the chats a user is in with the seq of each chat's last message
+   private static final String CHAT_SEQS = "SELECT L.chat_id, C.last_seq FROM CHAT_LIST L, CHAT C WHERE L.member=? AND C.chat_id=L.chat_id";
+
+   // the number of messages past the read cursor in each of a user's chats
+   private static final String UNREAD_COUNTS = "SELECT L.chat_id, COUNT(M.msg_id) FROM CHAT_LIST L LEFT JOIN CHAT_READ_CURSOR R ON R.chat_id=L.chat_id AND R.login=L.member, "
+      + "MESSAGE M WHERE L.member=? AND M.chat_id=L.chat_id AND M.seq>COALESCE(R.last_seq, 0) GROUP BY L.chat_id";
+
+   // the other members of a chat, and how many of them have blocked the sender
+   private static final String SEND_BLOCKED = "SELECT COUNT(*), COUNT(B.list_member) FROM CHAT_LIST L JOIN USR U ON U.login=L.member "
+      + "LEFT JOIN USER_LIST_CONTAINS B ON B.list_id=U.block_list AND B.list_member=? WHERE L.chat_id=? AND L.member<>?";
+
+   // how often NewMessage resends after a transient failure
+   private static final int SEND_RETRIES = Integer.getInteger("messenger.sendRetries", 2);
+
+   // rows loaded in the background right after LogIn, see startPrefetch
+   private Prefetch _prefetch = null;
+
+   // chats whose messages are prefetched, most recently updated first, and
+   // how many of each chat's newest messages are
+   private int _prefetchChats = Integer.getInteger("messenger.prefetch.chats", 3);
+   private int _prefetchMessages = Integer.getInteger("messenger.prefetch.messages", 50);
+
+   // the login whose prefetched rows awaitPrefetch installs
+   private String _prefetchUser = null;
+
+   // per-session ListChat summaries for _summaryUser, keyed by chat_id, and
+   // the CHAT.last_seq each was computed at. Only chats whose last_seq moved
+   // are looked up again on each refresh.
+   private String _summaryUser = null;
+   private Map<String, List<String>> _chatSummary = new HashMap<String, List<String>>();
+   private Map<String, Integer> _summarySeq = new HashMap<String, Integer>();
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   /**
+    * Callback for executeQueryAndStream, invoked once for every row while the
+    * result set is positioned on it.
+    */
+   public interface RowHandler {
+      /**
+       * @param rs the result set, positioned on the current row
+       * @return the number of characters read from the row
+       * @throws java.sql.SQLException when reading the row failed
+       * @throws java.io.IOException when writing the row out failed
+       */
+      public long handleRow (ResultSet rs) throws SQLException, IOException;
+   }//end RowHandler
+
    /**
     * Creates a new instance of Messenger
     *
@@ -51,15 +169,45 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Messenger (String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, false);
+   }//end Messenger
+
+   /**
+    * Creates a new instance of Messenger that, if lazy, does not connect
+    * until it sends its first statement. A short-lived command that never
+    * reaches the database then never pays for the connection, and a failed
+    * connection surfaces as that statement's SQLException instead of ending
+    * the program.
+    *
+    * @param dbname the name of the database
+    * @param dbport the port of the PostgreSQL server on localhost
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param lazy whether to connect on first use rather than now
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Messenger (String dbname, String dbport, String user, String passwd, boolean lazy) throws SQLException {
+      this._dbname = dbname;
+      this._dbport = dbport;
+      this._user = user;
+      this._passwd = passwd;
+      if(lazy)
+         return;
 
       System.out.print("Connecting to database...");
       try{
          // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         String url = RoutingDataSource.url("localhost:" + dbport, dbname);
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // obtain the physical connections, the primary for writes and any
+         // configured replicas for reads, and those of the chat shards
+         connect();
+         int replicas = RoutingDataSource.configuredReplicas().size();
+         if(replicas > 0)
+            System.out.println("Reading from " + this._router.getReplicaCount() + " of " + replicas + " replica(s)");
+         if(this._shards != null)
+            System.out.println("Chats are spread over " + this._shards.getShardCount() + " shards");
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -68,22 +216,144 @@ public class Messenger {
       }//end catch
    }//end Messenger
 
+   /**
+    * Creates a Messenger for one chat shard on already open connections.
+    *
+    * @param router the shard's connections
+    */
+   public Messenger (RoutingDataSource router) {
+      this._router = router;
+      this._connection = router.primary();
+   }//end Messenger
+
+   /*
+    * Opens the directory node's connections, the shards' and the cache bus,
+    * unless they are open. A shard node's are open from the start.
+    **/
+   private synchronized void connect() throws SQLException {
+      if(this._router != null)
+         return;
+      try{
+         Class.forName ("org.postgresql.Driver");
+      }catch(ClassNotFoundException e){
+         throw new SQLException("PostgreSQL JDBC driver not found", e);
+      }
+      String hostPort = "localhost:" + this._dbport;
+      RoutingDataSource router = new RoutingDataSource(this._dbname, hostPort, RoutingDataSource.configuredReplicas(), this._user, this._passwd);
+      try{
+         if(!ShardRouter.configuredShards().isEmpty())
+            this._shards = new ShardRouter(ShardRouter.configuredShards(), this._user, this._passwd);
+      }catch(SQLException e){
+         router.close();
+         throw e;
+      }
+      this._connection = router.primary();
+      this._router = router;
+
+      // listens for changes made by other nodes, so the caches stay correct
+      if(CacheBus.isConfigured())
+         this._bus = startCacheBus(hostPort, this._dbname, this._user, this._passwd);
+   }//end connect
+
+   /*
+    * The node's connections, opened on first use
+    **/
+   private RoutingDataSource router() throws SQLException {
+      if(this._router == null)
+         connect();
+      return this._router;
+   }//end router
+
+   /**
+    * Method to find the node holding a chat's CHAT, CHAT_LIST, MESSAGE and
+    * CHAT_READ_CURSOR rows.
+    *
+    * @param chat the chat id
+    * @return the chat's shard, or this node if sharding is off
+    */
+   public Messenger shard (String chat) throws SQLException {
+      router();
+      if(this._shards == null)
+         return this;
+      return this._shards.forChat (chat);
+   }//end shard
+
+   /**
+    * Method to get this node's primary connection, e.g. to run several
+    * statements in one transaction. While its auto-commit is off, the
+    * node's reads run on it too.
+    *
+    * @return the primary connection
+    * @throws java.sql.SQLException when failed to connect
+    */
+   public Connection primary () throws SQLException {
+      return router().primary ();
+   }//end primary
+
+   /**
+    * Method to list the nodes holding CHAT, CHAT_LIST, MESSAGE and
+    * CHAT_READ_CURSOR rows, e.g. to change rows of a user on all of them.
+    *
+    * @return every chat shard, or only this node if sharding is off
+    * @throws java.sql.SQLException when failed to connect
+    */
+   public List<Messenger> allShards () throws SQLException {
+      router();
+      if(this._shards == null)
+         return Collections.singletonList(this);
+      return this._shards.all ();
+   }//end allShards
+
+   /**
+    * Method to run a query on every chat shard in parallel and return all of
+    * their rows, e.g. to find every chat of a user.
+    *
+    * @param query the input query string
+    * @param params values bound to the ?s in query, if any
+    * @return the rows of all shards
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryOnAllShards (String query, Object... params) throws SQLException {
+      router();
+      if(this._shards == null)
+         return executeQueryAndReturnResult (query, params);
+      return this._shards.queryAll (query, params);
+   }//end executeQueryOnAllShards
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @param params values bound to the ?s in sql, if any
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      // creates a statement object on the primary
+      Connection conn = router().forWrite ();
+      Statement stmt = statement (conn, sql, params);
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
+      Tracer.Span span = Tracer.beginSql ("executeUpdate");
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      try{
+         rowCount = update (stmt, sql);
+      }catch (SQLException e){
+         this._metrics.error (sql, System.nanoTime () - start);
+         Tracer.endSql (span, sql, -1, e.getMessage ());
+         // replaces the primary's connection if it was lost
+         this._router.failed (conn, e);
+         stmt.close ();
+         throw e;
+      }//end try
 
       // close the instruction
       stmt.close ();
+      this._metrics.record (conn, sql, System.nanoTime () - start, rowCount, 0);
+      Tracer.endSql (span, sql, rowCount, null);
+      return rowCount;
    }//end executeUpdate
 
    /**
@@ -92,107 +362,259 @@ public class Messenger {
     * standard out.
     *
     * @param query the input query string
+    * @param params values bound to the ?s in query, if any
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      // writes through one buffer instead of printing cell by cell
+      final PrintWriter out = new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.out), 8192));
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      // streams the rows so a long list is never held in memory at once
+      int rowCount = streamQuery ("executeQueryAndPrintResult", query, new RowHandler () {
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          ** Changed some of the code for single column tables
+          */
+         private int numCol = -1;
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       ** Changed some of the code for single column tables
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	     if(outputHeader){
-	        for(int i = 1; i <= numCol; i++)
-		       System.out.print(rsmd.getColumnName(i) + "\t");
-
-	        System.out.println();
-	        outputHeader = false;
-	     }
-         for (int i=1; i<=numCol; ++i){
-            System.out.print (rs.getString(i).trim() + "\t");
+         public long handleRow (ResultSet rs) throws SQLException {
+            long bytes = 0;
+            if(numCol < 0){
+               ResultSetMetaData rsmd = rs.getMetaData ();
+               numCol = rsmd.getColumnCount ();
+               for(int i = 1; i <= numCol; i++)
+                  out.print(rsmd.getColumnName(i) + "\t");
+               out.println();
+            }
+            for (int i=1; i<=numCol; ++i){
+               String value = rs.getString(i);
+               bytes += value.length();
+               out.print (value.trim());
+               out.print ('\t');
+            }
+            out.println ();
+            return bytes;
          }
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
+      }, params);
+      out.flush ();
       return rowCount;
    }//end executeQuery
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * each row to a handler as it arrives. The query runs inside a
+    * transaction with a fetch size, so the driver reads the rows from a
+    * server-side cursor in chunks of messenger.fetchSize (default 500)
+    * instead of buffering the whole result set.
+    *
+    * @param query the input query string
+    * @param handler called once for every row
+    * @param params values bound to the ?s in query, if any
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStream (String query, RowHandler handler, Object... params) throws SQLException {
+      return streamQuery ("executeQueryAndStream", query, handler, params);
+   }//end executeQueryAndStream
+
+   /*
+    * Runs a streaming query for the named wrapper, see executeQueryAndStream
+    **/
+   private int streamQuery (String call, String query, RowHandler handler, Object[] params) throws SQLException {
+      // a cursor only lives inside a transaction
+      Connection conn = router().forRead ();
+      boolean autoCommit = conn.getAutoCommit ();
+      if(autoCommit)
+         conn.setAutoCommit (false);
+
+      Statement stmt = null;
+      Tracer.Span span = Tracer.beginSql (call);
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      long bytes = 0;
+      try{
+         stmt = statement (conn, query, params);
+         stmt.setFetchSize (this._fetchSize);
+         ResultSet rs = query (stmt, query);
+         while (rs.next()){
+            bytes += handler.handleRow (rs);
+            ++rowCount;
+         }//end while
+         rs.close ();
+         stmt.close ();
+         if(autoCommit)
+            conn.commit ();
+      }catch (Exception e){
+         this._metrics.error (query, System.nanoTime () - start);
+         Tracer.endSql (span, query, -1, e.getMessage ());
+         SQLException failure = e instanceof SQLException ? (SQLException)e : new SQLException (e.getMessage (), e);
+         // retries elsewhere if a replica went away before any row was handled
+         if(rowCount == 0 && this._router.failed (conn, failure))
+            return streamQuery (call, query, handler, params);
+         if(stmt != null)
+            stmt.close ();
+         if(autoCommit && !conn.isClosed ())
+            conn.rollback ();
+         throw failure;
+      }finally{
+         if(autoCommit && !conn.isClosed ())
+            conn.setAutoCommit (true);
+      }//end try
+      this._metrics.record (conn, query, System.nanoTime () - start, rowCount, bytes);
+      Tracer.endSql (span, query, rowCount, null);
+      return rowCount;
+   }//end streamQuery
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
     * @param query the input query string
+    * @param params values bound to the ?s in query, if any
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+      return returnResult (router().forRead (), "executeQueryAndReturnResult", query, params);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a statement that changes data and returns rows, such
+    * as INSERT ... RETURNING or SELECT nextval(...). It always runs on the
+    * primary and returns the results like executeQueryAndReturnResult.
+    *
+    * @param query the input query string
+    * @param params values bound to the ?s in query, if any
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
+   public List<List<String>> executeWriteQuery (String query, Object... params) throws SQLException {
+      return returnResult (router().forWrite (), "executeWriteQuery", query, params);
+   }//end executeWriteQuery
+
+   /*
+    * Runs a query on the given connection and collects its rows
+    **/
+   private List<List<String>> returnResult (Connection conn, String call, String query, Object[] params) throws SQLException { 
       // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
+      Statement stmt = statement (conn, query, params); 
  
       // issues the query instruction 
-      ResultSet rs = stmt.executeQuery (query); 
+      Tracer.Span span = Tracer.beginSql (call);
+      long start = System.nanoTime ();
+      long bytes = 0;
+      List<List<String>> result  = new ArrayList<List<String>>(); 
+      try{
+         ResultSet rs = query (stmt, query); 
  
-      /* 
-       ** obtains the metadata object for the returned result set.  The metadata 
-       ** contains row and column info. 
-       */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
+         /* 
+          ** obtains the metadata object for the returned result set.  The metadata 
+          ** contains row and column info. 
+          */ 
+         ResultSetMetaData rsmd = rs.getMetaData (); 
+         int numCol = rsmd.getColumnCount (); 
  
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-          List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
+         // iterates through the result set and saves the data returned by the query. 
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(); 
+            for (int i=1; i<=numCol; ++i){
+               String value = rs.getString (i);
+               if(value != null)
+                  bytes += value.length();
+               record.add(value); 
+            }
+            result.add(record); 
+         }//end while 
+      }catch (SQLException e){
+         this._metrics.error (query, System.nanoTime () - start);
+         Tracer.endSql (span, query, -1, e.getMessage ());
+         // retries elsewhere if a replica went away
+         if(this._router.failed (conn, e))
+            return returnResult (this._router.forRead (), call, query, params);
+         stmt.close ();
+         throw e;
+      }//end try
       stmt.close (); 
+      this._metrics.record (conn, query, System.nanoTime () - start, result.size(), bytes);
+      Tracer.endSql (span, query, result.size(), null);
       return result; 
-   }//end executeQueryAndReturnResult
+   }//end returnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
     * @param query the input query string
+    * @param params values bound to the ?s in query, if any
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
+   public int executeQuery (String query, Object... params) throws SQLException {
        // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       Connection conn = router().forRead ();
+       Statement stmt = statement (conn, query, params);
 
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
+       Tracer.Span span = Tracer.beginSql ("executeQuery");
+       long start = System.nanoTime ();
        int rowCount = 0;
+       try{
+          ResultSet rs = query (stmt, query);
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
+          // iterates through the result set and count nuber of results.
+          if(rs.next()){
+             rowCount++;
+          }//end while
+       }catch (SQLException e){
+          this._metrics.error (query, System.nanoTime () - start);
+          Tracer.endSql (span, query, -1, e.getMessage ());
+          // retries elsewhere if a replica went away
+          if(this._router.failed (conn, e))
+             return executeQuery (query, params);
+          stmt.close ();
+          throw e;
+       }//end try
        stmt.close ();
+       this._metrics.record (conn, query, System.nanoTime () - start, rowCount, 0);
+       Tracer.endSql (span, query, rowCount, null);
        return rowCount;
    }
 
+   /*
+    * Creates the statement for sql on conn. Statements with parameters are
+    * PreparedStatements, which the driver prepares once on the server and
+    * reuses across calls with the same text.
+    **/
+   private static Statement statement (Connection conn, String sql, Object[] params) throws SQLException {
+      if(params.length == 0)
+         return conn.createStatement ();
+      PreparedStatement stmt = conn.prepareStatement (sql);
+      for(int i = 0; i < params.length; ++i)
+         stmt.setObject (i + 1, params[i]);
+      return stmt;
+   }//end statement
+
+   /*
+    * Runs a query made by statement()
+    **/
+   private static ResultSet query (Statement stmt, String sql) throws SQLException {
+      if(stmt instanceof PreparedStatement)
+         return ((PreparedStatement)stmt).executeQuery ();
+      return stmt.executeQuery (sql);
+   }//end query
+
+   /*
+    * Runs an update made by statement()
+    **/
+   private static int update (Statement stmt, String sql) throws SQLException {
+      if(stmt instanceof PreparedStatement)
+         return ((PreparedStatement)stmt).executeUpdate ();
+      return stmt.executeUpdate (sql);
+   }//end update
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current 
@@ -203,20 +625,1013 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-	
-	ResultSet rs = stmt.executeQuery (String.format("SELECT currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	Statement stmt = router().primary ().createStatement ();
+	try{
+	   ResultSet rs = stmt.executeQuery (String.format("SELECT currval('%s')", sequence));
+	   if (rs.next())
+		   return rs.getInt(1);
+	   return -1;
+	}finally{
+	   stmt.close ();
+	}
    }
 
+   /**
+    * Method to send a message. The msg_id comes from this session's block
+    * of ids and the server stamps the message with now().
+    *
+    * @param author the sender's login
+    * @param chat the chat id
+    * @param text the message text
+    * @return the new message's id
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public long sendMessage(String author, String chat, String text) throws SQLException {
+      return sendMessage(author, chat, text, null);
+   }//end sendMessage
+
+   /**
+    * Method to send a message at most once, see sendMessages.
+    *
+    * @param author the sender's login
+    * @param chat the chat id
+    * @param text the message text
+    * @param clientKey a key of up to 36 characters the client picked for
+    *                  this message, e.g. a UUID, or null for none
+    * @return the message's id
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public long sendMessage(String author, String chat, String text, String clientKey) throws SQLException {
+      if(clientKey == null){
+         long msgId = messageIds().next();
+         shard(chat).executeUpdate("INSERT INTO MESSAGE (msg_id, msg_text, sender_login, chat_id) VALUES (?, ?, ?, ?)", msgId, text, author, Integer.parseInt(chat.trim()));
+         return msgId;
+      }
+      return sendMessages(author, chat, Collections.singletonList(text), Collections.singletonList(clientKey))[0];
+   }//end sendMessage
+
+   /**
+    * Method to send a message at most once like sendMessage, running the
+    * send again with the same key after a transient failure, up to
+    * messenger.sendRetries times. A lost connection has been replaced by
+    * then, and if the first attempt did insert the message the retry
+    * returns its id.
+    *
+    * @param author the sender's login
+    * @param chat the chat id
+    * @param text the message text
+    * @param clientKey the message's client key
+    * @return the message's id
+    * @throws java.sql.SQLException when the last attempt failed
+    */
+   public long sendMessageRetrying(String author, String chat, String text, String clientKey) throws SQLException {
+      for(int attempt = 0; ; ++attempt){
+         try{
+            return sendMessage(author, chat, text, clientKey);
+         }catch(SQLException e){
+            if(attempt >= SEND_RETRIES || !isTransient(e))
+               throw e;
+            System.out.println("Sending failed (" + e.getMessage() + "), retrying...");
+         }
+      }
+   }//end sendMessageRetrying
+
+   /**
+    * Method to send several messages to a chat with one multi-row insert.
+    * Their ids are reserved up front, so no sequence round trip is needed.
+    *
+    * @param author the sender's login
+    * @param chat the chat id
+    * @param texts the message texts, in the order they are sent
+    * @return the new messages' ids
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public long[] sendMessages(String author, String chat, List<String> texts) throws SQLException {
+      long[] ids = messageIds().next(texts.size());
+      if(ids.length == 0)
+         return ids;
+      Integer cid = Integer.parseInt(chat.trim());
+      StringBuilder query = new StringBuilder("INSERT INTO MESSAGE (msg_id, msg_text, sender_login, chat_id) VALUES ");
+      Object[] params = new Object[ids.length * 4];
+      for(int i = 0; i < ids.length; ++i){
+         if(i > 0)
+            query.append(", ");
+         query.append("(?, ?, ?, ?)");
+         params[i * 4] = ids[i];
+         params[i * 4 + 1] = texts.get(i);
+         params[i * 4 + 2] = author;
+         params[i * 4 + 3] = cid;
+      }
+      shard(chat).executeUpdate(query.toString(), params);
+      return ids;
+   }//end sendMessages
+
+   /**
+    * Method to send several messages to a chat, each at most once. A retry
+    * with the same key, e.g. after a timeout, returns the first message's id
+    * instead of inserting it again: keys this session used recently are
+    * answered from memory, and the unique index on (sender_login, chat_id,
+    * client_key) turns any other duplicate into a no-op (ON CONFLICT DO
+    * NOTHING), whose id is then looked up. A key given twice in one call is
+    * sent once.
+    *
+    * @param author the sender's login
+    * @param chat the chat id
+    * @param texts the message texts, in the order they are sent
+    * @param clientKeys a key of up to 36 characters per text, e.g. a UUID,
+    *                   or null to send without keys
+    * @return the messages' ids, in the order of texts
+    * @throws java.sql.SQLException when the insert failed or a key is
+    *                               missing or too long
+    */
+   public long[] sendMessages(String author, String chat, List<String> texts, List<String> clientKeys) throws SQLException {
+      if(clientKeys == null)
+         return sendMessages(author, chat, texts);
+      Integer cid = Integer.parseInt(chat.trim());
+      String prefix = cid + ":" + author.trim() + ":";
+
+      // ids known already, and the texts still to insert by key
+      Map<String, Long> sent = new HashMap<String, Long>();
+      Map<String, String> pending = new LinkedHashMap<String, String>();
+      for(int i = 0; i < texts.size(); ++i){
+         String key = clientKeys.get(i);
+         if(key == null || key.isEmpty() || key.length() > 36)
+            throw new SQLException("Message key '" + key + "' must be 1 to 36 characters");
+         Long msgId = this._sentKeys.get(prefix + key);
+         if(msgId != null)
+            sent.put(key, msgId);
+         else if(!pending.containsKey(key))
+            pending.put(key, texts.get(i));
+      }
+
+      if(!pending.isEmpty()){
+         long[] ids = messageIds().next(pending.size());
+         StringBuilder query = new StringBuilder("INSERT INTO MESSAGE (msg_id, msg_text, sender_login, chat_id, client_key) VALUES ");
+         Object[] params = new Object[ids.length * 5];
+         int i = 0;
+         for(Map.Entry<String, String> text : pending.entrySet()){
+            if(i > 0)
+               query.append(", ");
+            query.append("(?, ?, ?, ?, ?)");
+            params[i * 5] = ids[i];
+            params[i * 5 + 1] = text.getValue();
+            params[i * 5 + 2] = author;
+            params[i * 5 + 3] = cid;
+            params[i * 5 + 4] = text.getKey();
+            ++i;
+         }
+         query.append(" ON CONFLICT DO NOTHING RETURNING client_key, msg_id");
+         Map<String, Long> found = new HashMap<String, Long>();
+         for(List<String> row : shard(chat).executeWriteQuery(query.toString(), params))
+            found.put(row.get(0).trim(), Long.parseLong(row.get(1).trim()));
+
+         if(found.size() < pending.size()){
+            // the others were sent before, by another session or before this
+            // one's window
+            List<Object> lookup = new ArrayList<Object>();
+            lookup.add(author);
+            lookup.add(cid);
+            StringBuilder marks = new StringBuilder();
+            for(String key : pending.keySet()){
+               if(found.containsKey(key))
+                  continue;
+               if(marks.length() > 0)
+                  marks.append(", ");
+               marks.append("?");
+               lookup.add(key);
+            }
+            for(List<String> row : shard(chat).executeWriteQuery("SELECT client_key, msg_id FROM MESSAGE WHERE sender_login=? AND chat_id=? AND client_key IN (" + marks + ")", lookup.toArray()))
+               found.put(row.get(0).trim(), Long.parseLong(row.get(1).trim()));
+         }
+         for(String key : pending.keySet()){
+            Long msgId = found.get(key);
+            if(msgId == null)
+               throw new SQLException("Message key '" + key + "' conflicts with a message that no longer exists");
+            sent.put(key, msgId);
+            this._sentKeys.put(prefix + key, msgId);
+         }
+      }
+
+      long[] ids = new long[texts.size()];
+      for(int i = 0; i < ids.length; ++i)
+         ids[i] = sent.get(clientKeys.get(i));
+      return ids;
+   }//end sendMessages
+
+   /**
+    * Method to create a chat with its creator as the first member.
+    *
+    * @param author the creator's login
+    * @return the new chat's id
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public String createChat(String author) throws SQLException {
+      long chatId = chatIds().next();
+      String query = "WITH c AS (INSERT INTO CHAT (chat_id, chat_type, init_sender) VALUES (?, 'private', ?) RETURNING chat_id) "
+         + "INSERT INTO CHAT_LIST (chat_id, member) SELECT chat_id, ? FROM c";
+      shard(Long.toString(chatId)).executeUpdate(query, (int)chatId, author, author);
+      return Long.toString(chatId);
+   }//end createChat
+
+   /**
+    * Method to add several members to a chat with one multi-row insert.
+    * Logins already in the chat are skipped. The chat's member_count and
+    * chat_type follow from the insert (see chat_triggers.sql).
+    *
+    * @param chat the chat id
+    * @param logins the logins to add; they must exist
+    * @return the logins that were added
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public List<String> addChatMembers(String chat, List<String> logins) throws SQLException {
+      Set<String> unique = new LinkedHashSet<String>();
+      for(String login : logins)
+         unique.add(login.trim());
+      List<String> added = new ArrayList<String>();
+      if(unique.isEmpty())
+         return added;
+      Integer cid = Integer.parseInt(chat.trim());
+      StringBuilder query = new StringBuilder("INSERT INTO CHAT_LIST (chat_id, member) VALUES ");
+      Object[] params = new Object[unique.size() * 2];
+      int i = 0;
+      for(String login : unique){
+         if(i > 0)
+            query.append(", ");
+         query.append("(?, ?)");
+         params[i * 2] = cid;
+         params[i * 2 + 1] = login;
+         ++i;
+      }
+      query.append(" ON CONFLICT DO NOTHING RETURNING member");
+      for(List<String> row : shard(chat).executeWriteQuery(query.toString(), params)){
+         String member = row.get(0).trim();
+         added.add(member);
+         invalidate("c:" + chat.trim() + ":" + member);
+      }
+      return added;
+   }//end addChatMembers
+
+   /**
+    * Method to fetch the messages of a chat posted after a given message.
+    * Rows are returned newest first as (msg_id, msg_timestamp, msg_text,
+    * sender_login, seq), the shape ChatViewer displays followed by the
+    * message's sequence number within the chat. The (chat_id, seq) index
+    * makes this a range scan in send order.
+    *
+    * @param chat the chat id
+    * @param seq only messages with a larger seq are returned
+    * @return the new messages as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> fetchMessagesAfter(String chat, int seq) throws SQLException {
+      return streamMessages(chat, "seq>?", seq);
+   }//end fetchMessagesAfter
+
+   /*
+    * A chat's messages whose seq meets a bound such as "seq>?", newest first
+    * in the shape of fetchMessagesAfter
+    **/
+   private List<List<String>> streamMessages(String chat, String bound, int seq) throws SQLException {
+      String query = "SELECT msg_id, msg_timestamp, msg_text, sender_login AS Received, seq FROM MESSAGE WHERE chat_id=? AND " + bound + " ORDER BY seq DESC";
+      // Streams the rows so a long chat is not also buffered by the driver
+      final List<List<String>> result = new ArrayList<List<String>>();
+      shard(chat).executeQueryAndStream(query, new RowHandler() {
+         public long handleRow(ResultSet rs) throws SQLException {
+            long bytes = 0;
+            List<String> record = new ArrayList<String>(5);
+            for(int i = 1; i <= 5; ++i){
+               String value = rs.getString(i);
+               if(value != null)
+                  bytes += value.length();
+               record.add(value);
+            }
+            result.add(record);
+            return bytes;
+         }
+      }, Integer.parseInt(chat.trim()), seq);
+      return result;
+   }//end streamMessages
+
+   /**
+    * Method to return the history of a chat for this session. The first call
+    * loads the whole chat, later calls only pull the messages that arrived
+    * since and put them in front of the cached history. While the cache bus
+    * is not live, nothing is cached and every call loads the whole chat.
+    *
+    * @param chat the chat id
+    * @return the chat's messages, newest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> getChatHistory(String chat) throws SQLException {
+      applyInvalidations();
+      if(!caching()){
+         // Nobody would evict it after another session's edit, so every
+         // view reads the whole chat
+         evictChatHistory(chat);
+         return fetchMessagesAfter(chat, -1);
+      }
+      List<List<String>> history = this._chatHistory.get(chat);
+      Integer mark = this._historyMark.get(chat);
+      List<List<String>> delta = fetchMessagesAfter(chat, mark == null ? -1 : mark);
+      if(history != null && !delta.isEmpty()){
+         delta.addAll(history);
+      }
+      if(history == null || !delta.isEmpty()){
+         // delta is newest first, so its first row carries the highest seq
+         if(!delta.isEmpty())
+            this._historyMark.put(chat, Integer.parseInt(delta.get(0).get(4).trim()));
+         history = delta;
+         this._chatHistory.put(chat, history);
+      }
+      return history;
+   }//end getChatHistory
+
+   /**
+    * Method to drop a cached chat history, e.g. after a message in it was
+    * edited or deleted, so that the next view reloads it.
+    *
+    * @param chat the chat id
+    */
+   public void evictChatHistory(String chat){
+      this._chatHistory.remove(chat);
+      this._historyMark.remove(chat);
+      this._historyFloor.remove(chat);
+      this._archiveLoaded.remove(chat);
+      prefetch().remove("history:" + chat);
+   }//end evictChatHistory
+
+   /**
+    * Method to read the next older messages of a chat into its cached
+    * history. If the history only holds the newest page the prefetch
+    * loaded, they are the rest of the chat's messages in MESSAGE; otherwise
+    * they are the next older archived segment. Messages that are in both
+    * places are only kept once, and a segment archived since the history
+    * was loaded, whose messages it already shows, is skipped for the next
+    * one. While the cache bus is not live, the chat is read again with the
+    * segments paged through since the last getChatHistory.
+    *
+    * @param chat the chat id
+    * @return the chat's messages, newest first, including the new segment
+    * @throws java.sql.SQLException when failed to load the history
+    * @throws java.io.IOException when the archive cannot be read
+    */
+   public List<List<String>> extendChatHistory(String chat) throws SQLException, IOException {
+      applyInvalidations();
+      List<List<String>> history = caching() ? this._chatHistory.get(chat) : null;
+      if(history == null && caching())
+         history = getChatHistory(chat);
+      Integer floor = this._historyFloor.remove(chat);
+      if(floor != null){
+         List<List<String>> older = streamMessages(chat, "seq<?", floor);
+         if(!older.isEmpty()){
+            history.addAll(older);
+            return history;
+         }
+      }
+      Set<String> loaded = this._archiveLoaded.get(chat);
+      if(loaded == null){
+         loaded = new HashSet<String>();
+         this._archiveLoaded.put(chat, loaded);
+      }
+      Set<String> seen = new HashSet<String>();
+      if(history == null){
+         // Nothing is kept without a live bus, so the chat is read again
+         // with the segments this view has already paged through
+         history = fetchMessagesAfter(chat, -1);
+         for(List<String> row : history)
+            seen.add(row.get(0).trim());
+         for(MessageArchive.Segment segment : getArchive().getSegments(chat))
+            if(loaded.contains(segment.file))
+               for(List<String> row : getArchive().read(segment))
+                  if(seen.add(row.get(0)))
+                     history.add(row);
+      }
+      else{
+         for(List<String> row : history)
+            seen.add(row.get(0).trim());
+      }
+      // segments are newest first
+      for(MessageArchive.Segment segment : getArchive().getSegments(chat)){
+         if(!loaded.add(segment.file))
+            continue;
+         int added = 0;
+         for(List<String> row : getArchive().read(segment))
+            if(seen.add(row.get(0))){
+               history.add(row);
+               ++added;
+            }
+         if(added > 0)
+            break;
+      }
+      return history;
+   }//end extendChatHistory
+
+   /**
+    * @return the archive of old messages
+    */
+   public synchronized MessageArchive getArchive(){
+      if(this._archive == null)
+         this._archive = MessageArchive.configured();
+      return this._archive;
+   }//end getArchive
+
+   /*
+    * The allocators of MESSAGE and CHAT ids, created on first use
+    **/
+   private synchronized IdAllocator messageIds(){
+      if(this._messageIds == null)
+         this._messageIds = new IdAllocator(this, "message_msg_id_seq");
+      return this._messageIds;
+   }//end messageIds
+
+   private synchronized IdAllocator chatIds(){
+      if(this._chatIds == null)
+         this._chatIds = new IdAllocator(this, "chat_chat_id_seq");
+      return this._chatIds;
+   }//end chatIds
+
+   /*
+    * The contact and block graph, created on first use
+    **/
+   private synchronized RelationGraph graph(){
+      if(this._relations == null)
+         this._relations = new RelationGraph(this);
+      return this._relations;
+   }//end graph
+
+   /*
+    * The rows loaded after LogIn, see startPrefetch; created on first use
+    **/
+   private synchronized Prefetch prefetch(){
+      if(this._prefetch == null)
+         this._prefetch = new Prefetch();
+      return this._prefetch;
+   }//end prefetch
+
+   /**
+    * Method to return a user's contact and block list ids.
+    *
+    * @param login the user's login
+    * @return the (contact_list, block_list) ids
+    * @throws java.sql.SQLException when the user does not exist or the
+    *         query failed
+    */
+   public String[] getUserLists(String login) throws SQLException {
+      applyInvalidations();
+      String key = login.trim();
+      String[] lists = caching() ? this._userLists.get(key) : null;
+      if(lists == null){
+         List<List<String>> row = prefetch().get("lists:" + key);
+         if(row == null)
+            row = executeQueryAndReturnResult("SELECT contact_list, block_list FROM USR WHERE login = ?", login);
+         if(row.isEmpty())
+            throw new SQLException("No user " + key);
+         lists = new String[]{row.get(0).get(0).trim(), row.get(0).get(1).trim()};
+         if(caching())
+            this._userLists.put(key, lists);
+      }
+      return lists;
+   }//end getUserLists
+
+   /**
+    * Method to look up several logins with one query.
+    *
+    * @param logins the logins to look up
+    * @return the logins that exist, without padding
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<String> findUsers(List<String> logins) throws SQLException {
+      List<String> found = new ArrayList<String>();
+      if(logins.isEmpty())
+         return found;
+      StringBuilder query = new StringBuilder("SELECT login FROM USR WHERE login IN (");
+      for(int i = 0; i < logins.size(); ++i)
+         query.append(i > 0 ? ", ?" : "?");
+      query.append(") AND NOT deleted");
+      for(List<String> row : executeQueryAndReturnResult(query.toString(), logins.toArray()))
+         found.add(row.get(0).trim());
+      return found;
+   }//end findUsers
+
+   /**
+    * Method to check whether a user is a member of a chat.
+    *
+    * @param login the user's login
+    * @param chat the chat id
+    * @return whether the user is in the chat's CHAT_LIST
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isChatMember(String login, String chat) throws SQLException {
+      applyInvalidations();
+      String key = chat.trim() + ":" + login.trim();
+      Boolean member = caching() ? this._members.get(key) : null;
+      if(member == null){
+         member = shard(chat).executeQuery("SELECT * FROM CHAT_LIST WHERE chat_id=? AND member=?", Integer.parseInt(chat.trim()), login) > 0;
+         if(caching())
+            this._members.put(key, member);
+      }
+      return member;
+   }//end isChatMember
+
+   /**
+    * Method to get the session's contact and block graph, up to date with
+    * the cache bus. Without a live bus it is emptied first, so every answer
+    * is read fresh.
+    *
+    * @return the graph
+    */
+   public RelationGraph relations(){
+      applyInvalidations();
+      if(!caching())
+         graph().clear();
+      return graph();
+   }//end relations
+
+   /**
+    * Method to check whether a message from a user to a chat is refused
+    * because every other member of the chat has blocked the user. While the
+    * cache bus is live the members' block lists come from the relation
+    * graph; otherwise that would reload every member's lists on each send,
+    * so the database answers instead, with one query when the chat is on
+    * this node and with one more on the directory when it is on a shard.
+    *
+    * @param author the sender's login
+    * @param chat the chat id
+    * @return whether the message must not be sent
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isSendBlocked(String author, String chat) throws SQLException {
+      Messenger node = shard(chat);
+      int chatId = Integer.parseInt(chat.trim());
+      if(caching()){
+         List<List<String>> members = node.executeQueryAndReturnResult("SELECT member FROM CHAT_LIST WHERE chat_id=?", chatId);
+         RelationGraph graph = relations();
+         int others = 0;
+         for(List<String> row : members){
+            String member = row.get(0).trim();
+            if(member.equals(author.trim()))
+               continue;
+            if(!graph.isBlocked(member, author))
+               return false;
+            ++others;
+         }
+         return others > 0;
+      }
+      if(node == this){
+         List<String> counts = executeQueryAndReturnResult(SEND_BLOCKED, author, chatId, author).get(0);
+         int others = Integer.parseInt(counts.get(0).trim());
+         return others > 0 && Integer.parseInt(counts.get(1).trim()) == others;
+      }
+      List<List<String>> members = node.executeQueryAndReturnResult("SELECT member FROM CHAT_LIST WHERE chat_id=? AND member<>?", chatId, author);
+      if(members.isEmpty())
+         return false;
+      String[] logins = new String[members.size()];
+      for(int i = 0; i < logins.length; ++i)
+         logins[i] = members.get(i).get(0).trim();
+      List<List<String>> blocking = executeQueryAndReturnResult("SELECT COUNT(*) FROM USR U, USER_LIST_CONTAINS B "
+         + "WHERE U.login = ANY(?) AND B.list_id=U.block_list AND B.list_member=?", logins, author);
+      return Integer.parseInt(blocking.get(0).get(0).trim()) == logins.length;
+   }//end isSendBlocked
+
+   /**
+    * Method to evict what a change key names from this session's caches.
+    * Called for every key from the cache bus, and by the session itself
+    * right after its own writes.
+    *
+    * @param key a key as sent by cache_triggers.sql, e.g. "c:12:alice"
+    */
+   public void invalidate(String key){
+      if(key.startsWith("u:")){
+         String login = key.substring(2);
+         this._userLists.remove(login);
+         graph().evictUser(login);
+         prefetch().remove("lists:" + login);
+         // the user's status is shown in the lists the user is on
+         for(String shown : prefetch().keysShowing("contacts:", login))
+            prefetch().remove(shown);
+         for(String shown : prefetch().keysShowing("blocks:", login))
+            prefetch().remove(shown);
+      }
+      else if(key.startsWith("c:")){
+         String[] parts = key.split(":", 3);
+         if(parts.length < 3){
+            // the whole chat
+            String prefix = parts[1] + ":";
+            for(Iterator<String> it = this._members.keySet().iterator(); it.hasNext(); )
+               if(it.next().startsWith(prefix))
+                  it.remove();
+         }
+         else
+            this._members.remove(parts[1] + ":" + parts[2]);
+         prefetch().remove("members:" + parts[1]);
+         if(parts.length < 3){
+            prefetch().evict("summaries:");
+            prefetch().evict("unread:");
+         }
+         else{
+            // only the member's own chat list changed
+            prefetch().remove("summaries:" + parts[2]);
+            prefetch().remove("unread:" + parts[2]);
+         }
+      }
+      else if(key.startsWith("m:")){
+         // an edit or delete can change the history and the chat's summary
+         String chat = key.substring(2);
+         evictChatHistory(chat);
+         this._summarySeq.remove(chat);
+         this._chatSummary.remove(chat);
+         prefetch().evict("summaries:");
+         prefetch().evict("unread:");
+      }
+      else if(key.startsWith("l:")){
+         // the owner of the list reloads both of its lists on next use
+         String list = key.split(":", 3)[1];
+         graph().evictList(list);
+         for(String lists : prefetch().keysShowing("lists:", list)){
+            String owner = lists.substring("lists:".length());
+            prefetch().remove("contacts:" + owner);
+            prefetch().remove("blocks:" + owner);
+         }
+      }
+   }//end invalidate
+
+   /**
+    * Method to apply the keys the cache bus received since the last call.
+    * If a listener had to reconnect, keys may have been missed and every
+    * cache is dropped.
+    */
+   public void applyInvalidations(){
+      if(this._bus == null)
+         return;
+      if(this._bus.getEpoch() != this._busEpoch){
+         this._busEpoch = this._bus.getEpoch();
+         this._userLists.clear();
+         this._members.clear();
+         graph().clear();
+         prefetch().clear();
+         this._chatHistory.clear();
+         this._historyMark.clear();
+         this._historyFloor.clear();
+         this._archiveLoaded.clear();
+         this._summaryUser = null;
+      }
+      String key;
+      while((key = this._bus.poll()) != null)
+         invalidate(key);
+   }//end applyInvalidations
+
+   /*
+    * Whether the caches that rely on the bus may be used
+    **/
+   private boolean caching(){
+      return this._bus != null && this._bus.isLive();
+   }//end caching
+
+   /*
+    * Listens on the directory node and every shard; without a bus the
+    * caches are bypassed, so a failure here is not fatal
+    **/
+   private CacheBus startCacheBus(String hostPort, String dbname, String user, String passwd){
+      CacheBus bus = new CacheBus(user, passwd);
+      try{
+         bus.listen(hostPort, dbname);
+         for(String shard : ShardRouter.configuredShards()){
+            int slash = shard.indexOf('/');
+            bus.listen(shard.substring(0, slash), shard.substring(slash + 1));
+         }
+         return bus;
+      }catch(SQLException e){
+         System.err.println("Cache bus is off: " + e.getMessage());
+         bus.close();
+         return null;
+      }
+   }//end startCacheBus
+
+   /*
+    * Whether a failed statement may succeed when run again: a lost
+    * connection (SQLState class 08, or 57P01 for a terminated backend),
+    * which RoutingDataSource has replaced by the time the failure reaches
+    * the caller, or a rolled back transaction such as a deadlock or
+    * serialization failure (class 40)
+    **/
+   private static boolean isTransient(SQLException e){
+      if(e instanceof SQLTransientException)
+         return true;
+      String state = e.getSQLState();
+      return state != null && (state.startsWith("08") || state.equals("57P01") || state.startsWith("40"));
+   }//end isTransient
+
+   /*
+    * A map that drops its least recently used entry past a size
+    **/
+   private static <K, V> Map<K, V> lruMap(final int size){
+      return new LinkedHashMap<K, V>(16, 0.75f, true){
+         protected boolean removeEldestEntry(Map.Entry<K, V> eldest){
+            return size() > size;
+         }
+      };
+   }//end lruMap
+
+   /**
+    * Method to return the ListChat summaries of a user as (chat_id, last
+    * message time) records, most recently updated first. Each refresh reads
+    * every chat's CHAT.last_seq, which the message trigger bumps, and only
+    * looks up the last message time of the chats whose last_seq moved since
+    * the previous refresh.
+    *
+    * @param author the user's login
+    * @return the chat summaries
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> getChatSummaries(String author) throws SQLException {
+      applyInvalidations();
+      if(!author.equals(this._summaryUser)){
+         this._summaryUser = author;
+         this._chatSummary.clear();
+         this._summarySeq.clear();
+      }
+      // Right after LogIn the prefetch has just loaded them
+      if(prefetch().take("summaries:" + author.trim()) != null)
+         return sortedSummaries();
+
+      List<List<String>> chats = executeQueryOnAllShards(CHAT_SEQS, author);
+      installSummaries(chats, lastMessageTimes(chats, this._summarySeq));
+      return sortedSummaries();
+   }//end getChatSummaries
+
+   /*
+    * (chat_id, last message time) of the chats, given as (chat_id, last_seq)
+    * rows, whose last_seq is not the known one
+    **/
+   private List<List<String>> lastMessageTimes(List<List<String>> chats, Map<String, Integer> known) throws SQLException {
+      List<Object> changed = new ArrayList<Object>();
+      StringBuilder marks = new StringBuilder();
+      for(int i = 0; i < chats.size(); ++i){
+         String cid = chats.get(i).get(0).trim();
+         Integer seq = Integer.valueOf(chats.get(i).get(1).trim());
+         if(seq > 0 && !seq.equals(known.get(cid))){
+            if(marks.length() > 0)
+               marks.append(", ");
+            marks.append("?");
+            changed.add(Integer.valueOf(cid));
+         }
+      }
+      if(changed.isEmpty())
+         return new ArrayList<List<String>>();
+      String query = "SELECT chat_id, MAX(msg_timestamp) FROM MESSAGE WHERE chat_id IN (" + marks + ") GROUP BY chat_id";
+      return executeQueryOnAllShards(query, changed.toArray());
+   }//end lastMessageTimes
+
+   /*
+    * Takes the user's chats as (chat_id, last_seq) rows and the last message
+    * times of those that changed into the cached summaries
+    **/
+   private void installSummaries(List<List<String>> chats, List<List<String>> times){
+      Map<String, Integer> current = new HashMap<String, Integer>();
+      for(int i = 0; i < chats.size(); ++i)
+         current.put(chats.get(i).get(0).trim(), Integer.valueOf(chats.get(i).get(1).trim()));
+      this._chatSummary.keySet().retainAll(current.keySet());
+      for(List<String> row : times){
+         List<String> summary = new ArrayList<String>();
+         summary.add(row.get(0).trim());
+         summary.add(row.get(1));
+         this._chatSummary.put(summary.get(0), summary);
+      }
+      this._summarySeq = current;
+   }//end installSummaries
+
+   /*
+    * The cached summaries, most recently updated first
+    **/
+   private List<List<String>> sortedSummaries(){
+      return newestFirst(this._chatSummary.values());
+   }//end sortedSummaries
+
+   /*
+    * (chat_id, last message time) records sorted most recent first
+    **/
+   private static List<List<String>> newestFirst(Collection<List<String>> summaries){
+      List<List<String>> result = new ArrayList<List<String>>(summaries);
+      Collections.sort(result, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b){
+            return b.get(1).compareTo(a.get(1));
+         }
+      });
+      return result;
+   }//end newestFirst
+
+   /**
+    * Method to return the last message a user has read in a chat.
+    *
+    * @param login the user's login
+    * @param chat the chat id
+    * @return the seq of the last read message, or 0 if the chat was never
+    *         opened
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getReadCursor(String login, String chat) throws SQLException {
+      List<List<String>> cursor = shard(chat).executeQueryAndReturnResult("SELECT last_seq FROM CHAT_READ_CURSOR WHERE login=? AND chat_id=?", login, Integer.parseInt(chat.trim()));
+      if(cursor.isEmpty())
+         return 0;
+      return Integer.parseInt(cursor.get(0).get(0).trim());
+   }//end getReadCursor
+
+   /**
+    * Method to move a user's read cursor forward. The cursor is a seq, which
+    * orders the chat's messages the way they were sent, and never moves
+    * backwards, so an older view cannot mark newer messages as unread.
+    *
+    * @param login the user's login
+    * @param chat the chat id
+    * @param seq the seq of the last message the user has seen
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void advanceReadCursor(String login, String chat, int seq) throws SQLException {
+      shard(chat).executeUpdate("INSERT INTO CHAT_READ_CURSOR (login, chat_id, last_seq) VALUES (?, ?, ?) "
+         + "ON CONFLICT (login, chat_id) DO UPDATE SET last_seq=EXCLUDED.last_seq WHERE CHAT_READ_CURSOR.last_seq<EXCLUDED.last_seq",
+         login, Integer.parseInt(chat.trim()), seq);
+   }//end advanceReadCursor
+
+   /**
+    * Method to start loading, in the background, what a user who just logged
+    * in usually opens first: the list ids, the contact and block lists with
+    * each member's status, the chat summaries with their members and unread
+    * counts, and the messages of the most recently updated chats. The
+    * session must call awaitPrefetch() before it queries again.
+    *
+    * @param login the user's login
+    */
+   public void startPrefetch(final String login){
+      if(!Prefetch.isConfigured())
+         return;
+      this._prefetchUser = login;
+      prefetch().start(new Runnable(){
+         public void run(){
+            try{
+               prefetch(login);
+            }catch(SQLException e){
+               throw new RuntimeException(e.getMessage(), e);
+            }
+         }
+      });
+   }//end startPrefetch
+
+   /**
+    * Method to wait for the prefetch started at LogIn, if it still runs, and
+    * to move what it loaded for this session's own caches into them: the
+    * relation graph, the chat summaries and the newest messages of the top
+    * chats.
+    */
+   public void awaitPrefetch(){
+      prefetch().await();
+      String login = this._prefetchUser;
+      if(login == null)
+         return;
+      this._prefetchUser = null;
+      String key = login.trim();
+      List<List<String>> lists = prefetch().get("lists:" + key);
+      List<List<String>> relations = prefetch().take("relations:" + key);
+      if(caching() && lists != null && relations != null){
+         String[] ids = {lists.get(0).get(0).trim(), lists.get(0).get(1).trim()};
+         graph().preload(key, ids, relations);
+      }
+      List<List<String>> chats = prefetch().take("chats:" + key);
+      List<List<String>> times = prefetch().get("summaries:" + key);
+      if(chats != null && times != null){
+         // getChatSummaries serves them once through the "summaries:" key
+         this._summaryUser = login;
+         this._chatSummary.clear();
+         installSummaries(chats, times);
+      }
+      for(String history : prefetch().keys("history:")){
+         String chat = history.substring("history:".length());
+         List<List<String>> rows = prefetch().take(history);
+         // histories are only kept while the bus is live
+         if(rows == null || !caching() || this._chatHistory.containsKey(chat))
+            continue;
+         this._chatHistory.put(chat, new ArrayList<List<String>>(rows));
+         if(rows.isEmpty())
+            continue;
+         this._historyMark.put(chat, Integer.parseInt(rows.get(0).get(4).trim()));
+         if(rows.size() >= this._prefetchMessages)
+            this._historyFloor.put(chat, Integer.parseInt(rows.get(rows.size() - 1).get(4).trim()));
+      }
+   }//end awaitPrefetch
+
+   /**
+    * @param key a prefetch key, e.g. "members:12"
+    * @return the prefetched rows, which are not served again, or null
+    */
+   public List<List<String>> takePrefetched(String key){
+      return prefetch().take(key);
+   }//end takePrefetched
+
+   /*
+    * The prefetch task: every query a user's first menu actions need, with
+    * one query per kind of row rather than per list or chat. It runs on the
+    * prefetch thread, so it only queries and puts rows into the Prefetch;
+    * awaitPrefetch installs them into this session's caches.
+    **/
+   private void prefetch(String login) throws SQLException {
+      String key = login.trim();
+      List<List<String>> ids = executeQueryAndReturnResult("SELECT contact_list, block_list FROM USR WHERE login = ?", login);
+      if(ids.isEmpty())
+         return;
+      prefetch().put("lists:" + key, ids);
+      String[] lists = {ids.get(0).get(0).trim(), ids.get(0).get(1).trim()};
+
+      // Both lists with the members' status; the graph also keeps deleted ones
+      List<List<String>> relations = new ArrayList<List<String>>();
+      List<List<String>> contacts = new ArrayList<List<String>>();
+      List<List<String>> blocks = new ArrayList<List<String>>();
+      for(List<String> row : executeQueryAndReturnResult("SELECT ulc.list_id, ulc.list_member AS contact, u.status AS status, u.deleted FROM USER_LIST_CONTAINS ulc, USR u WHERE ulc.list_id IN (?, ?) AND ulc.list_member=u.login",
+            Integer.parseInt(lists[0]), Integer.parseInt(lists[1]))){
+         relations.add(row.subList(0, 2));
+         if("t".equals(row.get(3)))
+            continue;
+         if(row.get(0).trim().equals(lists[0]))
+            contacts.add(row.subList(1, 3));
+         else
+            blocks.add(row.subList(1, 3));
+      }
+      prefetch().put("contacts:" + key, contacts);
+      prefetch().put("blocks:" + key, blocks);
+      prefetch().put("relations:" + key, relations);
+
+      // The chat list, its members and unread counts
+      List<List<String>> chats = executeQueryOnAllShards(CHAT_SEQS, login);
+      List<List<String>> times = lastMessageTimes(chats, new HashMap<String, Integer>());
+      prefetch().put("chats:" + key, chats);
+      prefetch().put("summaries:" + key, times);
+      Map<String, List<List<String>>> members = new HashMap<String, List<List<String>>>();
+      for(List<String> row : executeQueryOnAllShards("SELECT chat_id, member FROM CHAT_LIST WHERE chat_id IN (SELECT chat_id FROM CHAT_LIST WHERE member=?)", login)){
+         String chat = row.get(0).trim();
+         if(!members.containsKey(chat))
+            members.put(chat, new ArrayList<List<String>>());
+         members.get(chat).add(row.subList(1, 2));
+      }
+      for(Map.Entry<String, List<List<String>>> entry : members.entrySet())
+         prefetch().put("members:" + entry.getKey(), entry.getValue());
+      prefetch().put("unread:" + key, executeQueryOnAllShards(UNREAD_COUNTS, login));
+
+      // The newest page of the chats most likely to be opened
+      List<List<String>> recent = newestFirst(times);
+      for(int i = 0; i < recent.size() && i < this._prefetchChats; ++i){
+         String chat = recent.get(i).get(0).trim();
+         prefetch().put("history:" + chat, shard(chat).executeQueryAndReturnResult(
+            "SELECT msg_id, msg_timestamp, msg_text, sender_login AS Received, seq FROM MESSAGE WHERE chat_id=? ORDER BY seq DESC LIMIT ?",
+            Integer.parseInt(chat), this._prefetchMessages));
+      }
+   }//end prefetch
+
+   /**
+    * Method to count the unread messages in each of a user's chats, i.e. the
+    * messages past the user's read cursor.
+    *
+    * @param login the user's login
+    * @return the number of unread messages keyed by chat_id
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Map<String, Integer> getUnreadCounts(String login) throws SQLException {
+      List<List<String>> counts = prefetch().take("unread:" + login.trim());
+      if(counts == null){
+         counts = executeQueryOnAllShards(UNREAD_COUNTS, login);
+      }
+      Map<String, Integer> unread = new HashMap<String, Integer>();
+      for(int i = 0; i < counts.size(); ++i)
+         unread.put(counts.get(i).get(0).trim(), Integer.parseInt(counts.get(i).get(1).trim()));
+      return unread;
+   }//end getUnreadCounts
+
+   /**
+    * Method to find the newest message of a history by its seq.
+    *
+    * @param msgList messages in the shape getChatHistory returns
+    * @return the highest seq among them, or 0 if there is none
+    */
+   public static int maxSeq(List<List<String>> msgList){
+      int mark = 0;
+      for(int i = 0; i < msgList.size(); ++i)
+         if(msgList.get(i).size() > 4 && msgList.get(i).get(4) != null)
+            mark = Math.max(mark, Integer.parseInt(msgList.get(i).get(4).trim()));
+      return mark;
+   }//end maxSeq
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
       try{
-         if (this._connection != null){
+         if (this._bus != null){
+            this._bus.close ();
+         }//end if
+         if (this._shards != null){
+            this._shards.close ();
+         }//end if
+         if (this._router != null){
+            this._router.close ();
+         }//end if
+         else if (this._connection != null){
             this._connection.close ();
          }//end if
       }catch (SQLException e){
@@ -228,28 +1643,38 @@ public class Messenger {
     * The main execution method
     *
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    *             and, for a script, a command and its arguments (see
+    *             CommandRunner)
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Messenger.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [<command> <args>...]");
+         return;
+      }//end if
+      if (args.length > 3) {
+         // runs one command without the menus and exits
+         CommandRunner.main (args);
          return;
       }//end if
       
       Greeting();
       Messenger esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         // exposes query metrics through JMX and the optional metrics endpoint
+         QueryMetrics.getInstance ().start ();
+         // records every operation with JFR when -Dmessenger.profile is set
+         Profiler.start ();
          // instantiate the Messenger object and creates a physical
-         // connection.
+         // connection, or with -Dmessenger.lazyConnect=true only once the
+         // first operation needs it.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new Messenger (dbname, dbport, user, "");
+         esql = new Messenger (dbname, dbport, user, "", Boolean.getBoolean ("messenger.lazyConnect"));
 
          boolean keepon = true;
          while(keepon) {
@@ -262,7 +1687,11 @@ public class Messenger {
             String authorisedUser = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: authorisedUser = LogIn(esql);
+                  // loads the first menus' data while the user reads the menu
+                  if(authorisedUser != null)
+                     esql.startPrefetch(authorisedUser);
+                  break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
@@ -281,7 +1710,9 @@ public class Messenger {
                 System.out.println("4. Delete account");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
-                switch (readChoice()){
+                int choice = readChoice();
+                esql.awaitPrefetch();
+                switch (choice){
                     case 1: contactmenu = true;
                         while(contactmenu){
                            System.out.println("\nCONTACT MENU");
@@ -351,6 +1782,8 @@ public class Messenger {
             if(esql != null) {
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
+               QueryMetrics.getInstance ().stop ();
+               Profiler.stop ();
                System.out.println("Done\n\nBye !");
             }//end if
          }catch (Exception e) {
@@ -359,6 +1792,26 @@ public class Messenger {
       }//end try
    }//end main
   
+   /*
+    * Prints rows the way executeQueryAndPrintResult does
+    **/
+   private static void printRows(String[] columns, List<List<String>> rows){
+      PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 8192));
+      if(!rows.isEmpty()){
+         for(String column : columns)
+            out.print(column + "\t");
+         out.println();
+      }
+      for(List<String> row : rows){
+         for(String value : row){
+            out.print(value == null ? null : value.trim());
+            out.print('\t');
+         }
+         out.println();
+      }
+      out.flush();
+   }//end printRows
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -418,11 +1871,8 @@ public class Messenger {
     **/
    public static boolean verifyUser(Messenger esql, String user){
       try{
-         // Makes sure that user does not have any quotes in name
-         user = quote(user);
          // Makes sure that the login exists
-         String query = String.format("SELECT * FROM USR WHERE login='%s'", user); 
-         int userNum = esql.executeQuery(query);
+         int userNum = esql.executeQuery("SELECT * FROM USR WHERE login=? AND NOT deleted", user);
          if (userNum > 0)
            return true;
          else {
@@ -442,8 +1892,7 @@ public class Messenger {
    public static boolean isInit(Messenger esql, String author, String chat){
       try{
          // Makes sure that the user is the initial sender
-         String query = String.format("SELECT * FROM CHAT WHERE init_sender='%s' AND chat_id=%s", author, chat);
-         int userNum = esql.executeQuery(query);
+         int userNum = esql.shard(chat).executeQuery("SELECT * FROM CHAT WHERE init_sender=? AND chat_id=? AND NOT deleted", author, Integer.parseInt(chat.trim()));
          if(userNum == 0){
             System.out.print(author + " is not the initial sender of this chat!");
             return false;
@@ -462,11 +1911,7 @@ public class Messenger {
    public static boolean isMember(Messenger esql, String user, String chat){
       try{
          // Makes sure that the user is a member of the chat
-         String query = String.format("SELECT * FROM CHAT_LIST WHERE chat_id=%s AND member='%s'", chat, user);
-         int userNum = esql.executeQuery(query);
-         if(userNum == 0)
-            return false;
-         return true;
+         return esql.isChatMember(user, chat);
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return false;
@@ -474,14 +1919,13 @@ public class Messenger {
    }//end isMember
 
    /*
-    * Checks if the user is author of a message
+    * Checks if the user is author of a message in a chat
     * @returns if the user is the author of the message
     **/
-   public static boolean isSender(Messenger esql, String author, String msg){
+   public static boolean isSender(Messenger esql, String author, String msg, String chat){
       try{
          // Makes sure that the user sent the message
-         String query = String.format("SELECT * FROM MESSAGE WHERE msg_id=%s AND sender_login='%s'", msg, author);
-         int userNum = esql.executeQuery(query);
+         int userNum = esql.shard(chat).executeQuery("SELECT * FROM MESSAGE WHERE msg_id=? AND sender_login=? AND chat_id=?", Integer.parseInt(msg.trim()), author, Integer.parseInt(chat.trim()));
          if(userNum == 0)
             return false;
          return true;
@@ -491,48 +1935,33 @@ public class Messenger {
      }
    }//end isSender
  
-   /*
-    * Replaces any "'" with "\'"
-    * @returns a corrected string
-    **/
-   public static String quote(String text){
-      // Replaces single quotes with escape single quotes
-      if(text.contains("'")){
-         System.out.println(text);
-         return text.replace("'", "\\'");
-      }
-      // Returns text
-      return text;
-    }
-    
    /*
     * Creates a new user with provided login, password and phoneNum
     * An empty block and contact list would be generated and associated with a user
     **/
    public static void CreateUser(Messenger esql){
+      Tracer.Span span = Tracer.begin("CreateUser");
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
-         login = quote(login);
          
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
-         password = quote(password);
          
          System.out.print("\tEnter user phone: ");
          String phone = in.readLine();
 
-	 //Creating empty contact\block lists for a user
-	 esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-	 int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-	 int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         
-	 String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-         esql.executeUpdate(query);
+	 //Creating empty contact\block lists and the user in one statement
+	 String query = "WITH b AS (INSERT INTO USER_LIST(list_type) VALUES ('block') RETURNING list_id), "
+	    + "c AS (INSERT INTO USER_LIST(list_type) VALUES ('contact') RETURNING list_id) "
+	    + "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) SELECT ?, ?, ?, b.list_id, c.list_id FROM b, c";
+         esql.executeUpdate(query, phone, login, password);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end CreateUser
    
@@ -541,9 +1970,9 @@ public class Messenger {
     * Makes sure that the user has deleted all of their owned chats and messages
     **/
    public static boolean DeleteAccount(Messenger esql, String author){
+      Tracer.Span span = Tracer.begin("DeleteAccount");
       try{
-         String query = String.format("SELECT * FROM CHAT Where init_sender='%s'", author);
-         int chatNum = esql.executeQuery(query);
+         int chatNum = esql.executeQueryOnAllShards("SELECT chat_id FROM CHAT Where init_sender=? AND NOT deleted LIMIT 1", author).size();
          
          // Returns an error message since not all chats have been deleted
          if(chatNum > 0){
@@ -551,37 +1980,20 @@ public class Messenger {
             return true;
          }
          
-         // Gets all lists that the user owns
-         query = String.format("SELECT block_list FROM USR WHERE login='%s'", author);
-		 String block_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
-		 query = String.format("SELECT contact_list FROM USR WHERE login='%s'", author);
-		 String contact_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
-	     	 // Deletes the user's account
-     	 query = String.format("DELETE FROM USR Where login='%s'", author);
-     	 esql.executeUpdate(query);
-	 
-		 // Deletes all members of the user's contacts and blocked users
-		 query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id=%s", block_id);
-     	 esql.executeUpdate(query);		 
-		 query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id=%s", contact_id);
-     	 esql.executeUpdate(query);
-     	 
-     	 // Deletes the user from everyone else's contact and blocked users
-     	 query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_member='%s'", author);
-     	 esql.executeUpdate(query);
-     	 
-     	 // Deletes the user's actual lists		 
-		 query = String.format("DELETE FROM USER_LIST Where list_id=%s", block_id);
-     	 esql.executeUpdate(query);
-		 query = String.format("DELETE FROM USER_LIST Where list_id=%s", contact_id);
-     	 esql.executeUpdate(query);
-     	 
+         // Marks the account deleted, which hides it at once and leaves its
+         // lists and list memberships to DeletionReaper
+         esql.executeUpdate("UPDATE USR SET deleted=true WHERE login=?", author);
+         esql.invalidate("u:" + author.trim());
+
 		 System.out.println("Your account has been deleted!");
 		 System.out.println("You will now be logged out.");
 		 return false;      
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
 		 return true;
+      }finally{
+         Tracer.end(span);
       }
    }
    
@@ -590,16 +2002,14 @@ public class Messenger {
     * @return User login or null is the user does not exist
     **/
    public static String LogIn(Messenger esql){
+      Tracer.Span span = Tracer.begin("LogIn");
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
-         login = quote(login);
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
-         password = quote(password);
 
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
+         int userNum = esql.executeQuery("SELECT * FROM Usr WHERE login = ? AND password = ? AND NOT deleted", login, password);
 	 if (userNum > 0){
 	    System.out.println("You have successfully logged in!");
 		return login;
@@ -608,7 +2018,10 @@ public class Messenger {
          return null;
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
          return null;
+      }finally{
+         Tracer.end(span);
       }
    }//end LogIn
 
@@ -616,29 +2029,26 @@ public class Messenger {
     * Adds a user to the contact list
     **/
    public static void AddToContact(Messenger esql, String author){
+      Tracer.Span span = Tracer.begin("AddToContact");
       // Your code goes here.
       try{
          System.out.print("\tEnter new Contact login: ");
          String contact = in.readLine();
-         contact = quote(contact);
          
          // Checks new contact exists
          if(verifyUser(esql, contact)){
             // Gets the contact list.
-            String query = String.format("SELECT contact_list FROM USR WHERE login = '%s'", author);
-            String contact_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
+            String[] lists = esql.getUserLists(author);
+            String contact_id = lists[0];
             
             // Makes sure that the user is not on the block list.
-            query = String.format("SELECT block_list FROM USR WHERE login = '%s'", author);
-            String block_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
-            query = String.format("SELECT * FROM USER_LIST_CONTAINS WHERE list_id=%s AND list_member='%s'", block_id, contact);
-            int userNum = esql.executeQuery(query);
-            if(userNum > 0){
+            String block_id = lists[1];
+            if(esql.relations().isBlocked(author, contact)){
                 String prompt = contact + " is in Block list. Would you like to move it to Contacts List?";
                 if(readYN(prompt)){
                     // Remove from Blocked list
-                    query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id='%s' and list_member='%s'", block_id, contact);
-         	        esql.executeUpdate(query);
+         	        esql.executeUpdate("DELETE FROM USER_LIST_CONTAINS WHERE list_id=? AND list_member=?", Integer.parseInt(block_id), contact);
+                    esql.invalidate("l:" + block_id + ":" + contact);
                 }
                 else {
                     // Exit
@@ -649,20 +2059,21 @@ public class Messenger {
             }
             else {
                 //Check whether user is already in Contact list
-                query = String.format("SELECT * FROM USER_LIST_CONTAINS WHERE list_id=%s AND list_member='%s'", contact_id, contact);
-                userNum = esql.executeQuery(query);
-                if(userNum > 0){
+                if(esql.relations().isContact(author, contact)){
                     System.out.println(contact + " is already in Contact list!");
                     return;
                 }
             }
             // Adds user into Contact list
-            query = String.format("INSERT INTO USER_LIST_CONTAINS VALUES (%s, '%s')", contact_id, contact);
-            esql.executeUpdate(query);
+            esql.executeUpdate("INSERT INTO USER_LIST_CONTAINS VALUES (?, ?)", Integer.parseInt(contact_id), contact);
+            esql.invalidate("l:" + contact_id + ":" + contact);
             System.out.println (contact + " has been successfully added to the Contact list!");
          }
       }catch(Exception e){
        System.err.println (e.getMessage ());
+       Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end AddToContact
    
@@ -670,26 +2081,23 @@ public class Messenger {
     * Deletes a user from the contact list
     **/
    public static void DeleteFromContact(Messenger esql, String author){
+      Tracer.Span span = Tracer.begin("DeleteFromContact");
       // Your code goes here.
       try{
          // Gets the author's contact list
-         String query = String.format("SELECT contact_list FROM USR WHERE login='%s'", author);
-         String contact_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
+         String contact_id = esql.getUserLists(author)[0];
          
          // Gets a contact to delete
          System.out.print("\tEnter Contact to delete: ");
          String contact = in.readLine();
-         contact = quote(contact);
          
          // Checks if contact exists
          if(verifyUser(esql, contact)){
             // Makes sure that the contact is in the Contact list
-            query = String.format("SELECT * FROM USER_LIST_CONTAINS WHERE list_id=%s AND list_member='%s'", contact_id, contact);
-            int userNum = esql.executeQuery(query);
-            if(userNum > 0){
+            if(esql.relations().isContact(author, contact)){
                 // Removes contact from the Contact list
-                query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id=%s AND list_member='%s'", contact_id, contact);
-                esql.executeUpdate(query);
+                esql.executeUpdate("DELETE FROM USER_LIST_CONTAINS WHERE list_id=? AND list_member=?", Integer.parseInt(contact_id), contact);
+                esql.invalidate("l:" + contact_id + ":" + contact);
                 System.out.println(contact + " has been deleted from Contacts!");
             }
             else{
@@ -698,6 +2106,9 @@ public class Messenger {
          }
       }catch(Exception e){
         System.err.println (e.getMessage ());
+        Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end DeletefromContact
   
@@ -705,19 +2116,25 @@ public class Messenger {
     * Displays all contacts for a user
     **/
    public static void ListContacts(Messenger esql, String author){
+      Tracer.Span span = Tracer.begin("ListContacts");
       // Your code goes here.
       try{
          // Get the contact list id 
-		 String query =  String.format("SELECT contact_list FROM USR WHERE login = '%s'",author); 
-		 String contact_id = esql.executeQueryAndReturnResult(query).get(0).get(0); 
+		 String contact_id = esql.getUserLists(author)[0];
          
          // Retrieves and displays the contact_list
          System.out.println("\nContact List");
          System.out.println("------------");
-         query = String.format("SELECT ulc.list_member AS contact, u.status AS status FROM USER_LIST_CONTAINS ulc, USR u WHERE list_id = %s AND ulc.list_member=u.login", contact_id);
-	     int contacts = esql.executeQueryAndPrintResult(query);
+         List<List<String>> rows = esql.takePrefetched("contacts:" + author.trim());
+         if(rows != null)
+            printRows(new String[]{"contact", "status"}, rows);
+         else
+	        esql.executeQueryAndPrintResult("SELECT ulc.list_member AS contact, u.status AS status FROM USER_LIST_CONTAINS ulc, USR u WHERE list_id = ? AND ulc.list_member=u.login AND NOT u.deleted", Integer.parseInt(contact_id.trim()));
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end ListContacts
    
@@ -725,32 +2142,27 @@ public class Messenger {
     * Adds a user to the block list
     **/
    public static void AddToBlock(Messenger esql, String author){
+      Tracer.Span span = Tracer.begin("AddToBlock");
       // Your code goes here.
       try{
          // Makes sure that the blocked user is already not in block list
-         String query = String.format("SELECT block_list FROM USR WHERE login='%s'", author);
-         String block_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
+         String block_id = esql.getUserLists(author)[1];
          
          // Gets the new blocked user
          System.out.print("\tEnter new Block login: ");
          String block = in.readLine();
-         block = quote(block);
          
          // Checks new blocked user exists
          if(verifyUser(esql, block)){
             // Makes sure that the user is not on the Contact list.
-            query =  String.format("SELECT contact_list FROM USR WHERE login = '%s'", author); 
-            String contact_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
-            query = String.format("SELECT * FROM USER_LIST_CONTAINS WHERE list_id=%s AND list_member='%s'", contact_id, block);
-            int userNum = esql.executeQuery(query);
-            
-            if(userNum > 0){
+            String contact_id = esql.getUserLists(author)[0];
+            if(esql.relations().isContact(author, block)){
                // Potential blocked user is already in contact list
                String prompt = block + " is in Contact list. Would you like to move it to Block list?";
                if(readYN(prompt)){
                   // Remove from Contact list
-                  query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id=%s AND list_member='%s'", contact_id, block);
-                  esql.executeUpdate(query);
+                  esql.executeUpdate("DELETE FROM USER_LIST_CONTAINS WHERE list_id=? AND list_member=?", Integer.parseInt(contact_id), block);
+                  esql.invalidate("l:" + contact_id + ":" + block);
                }
                else{
                   System.out.println(block + " will remain in Contact list.");
@@ -758,22 +2170,22 @@ public class Messenger {
                }
             }
             else{
-               query = String.format("SELECT * FROM USER_LIST_CONTAINS WHERE list_id=%s AND list_member='%s'", block_id, block);
-               userNum = esql.executeQuery(query);
-               
-               if(userNum > 0){
+               if(esql.relations().isBlocked(author, block)){
                   // Blocked user is already in block list
                   System.out.println(block + " is already in Block list!");
                   return;
                }
             }
 	        // Adds the user to the block list
-	        query = String.format("INSERT INTO USER_LIST_CONTAINS VALUES(%s, '%s')", block_id, block);
-	        esql.executeUpdate(query);
+	        esql.executeUpdate("INSERT INTO USER_LIST_CONTAINS VALUES (?, ?)", Integer.parseInt(block_id), block);
+	        esql.invalidate("l:" + block_id + ":" + block);
 	        System.out.println(block + " has been successfully added to Block list!");
 	     }
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end AddToBlock
    
@@ -781,25 +2193,22 @@ public class Messenger {
     * Deletes a blocked user from the block list
     **/
    public static void DeleteFromBlock(Messenger esql, String author){
+      Tracer.Span span = Tracer.begin("DeleteFromBlock");
       // Your code goes here.
       try{
          // Gets the block list id
-         String query = String.format("SELECT block_list FROM USR WHERE login='%s'", author);
-         String block_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
+         String block_id = esql.getUserLists(author)[1];
          
          // Gets the blocked user
          System.out.print("\tEnter Block login to Delete: ");
          String block = in.readLine();
-         block = quote(block);
          
          // Checks that the blocked user exists
          if(verifyUser(esql, block)){
             // Makes sure that the blocked user is in the user's block list
-            query = String.format("SELECT * FROM USER_LIST_CONTAINS WHERE list_id=%s AND list_member='%s'", block_id, block);
-            int userNum = esql.executeQuery(query);
-            if(userNum > 0){
-               query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id=%s AND list_member='%s'", block_id, block);
-               esql.executeUpdate(query);
+            if(esql.relations().isBlocked(author, block)){
+               esql.executeUpdate("DELETE FROM USER_LIST_CONTAINS WHERE list_id=? AND list_member=?", Integer.parseInt(block_id), block);
+               esql.invalidate("l:" + block_id + ":" + block);
                System.out.println(block + " has been successfully added to Block list!");
             }
             else{
@@ -808,6 +2217,9 @@ public class Messenger {
          }
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end DeletefromBlock
       
@@ -815,20 +2227,26 @@ public class Messenger {
     * Displays all contacts for a user
     **/
    public static void ListBlocks(Messenger esql, String author){
+      Tracer.Span span = Tracer.begin("ListBlocks");
       // Your code goes here.
       try{
          // Get the block list id 
-		 String query =  String.format("SELECT block_list FROM USR WHERE login = '%s'", author); 
-		 String block_id = esql.executeQueryAndReturnResult(query).get(0).get(0); 
+		 String block_id = esql.getUserLists(author)[1];
          
          // Retrieves and displays the block_list
          System.out.println("\nBlock List");
          System.out.println("---------");
-         query = String.format("SELECT ulc.list_member AS block, u.status AS status FROM USER_LIST_CONTAINS ulc, USR u WHERE list_id = %s AND ulc.list_member=u.login", block_id);
-         int blocks = esql.executeQueryAndPrintResult(query);
+         List<List<String>> rows = esql.takePrefetched("blocks:" + author.trim());
+         if(rows != null)
+            printRows(new String[]{"block", "status"}, rows);
+         else
+            esql.executeQueryAndPrintResult("SELECT ulc.list_member AS block, u.status AS status FROM USER_LIST_CONTAINS ulc, USR u WHERE list_id = ? AND ulc.list_member=u.login AND NOT u.deleted", Integer.parseInt(block_id.trim()));
 	     // Put in rest of display
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end ListBlocks
    
@@ -836,9 +2254,11 @@ public class Messenger {
     * Lists user's chats
     **/
    public static void ListChat(Messenger esql, String author){
+      Tracer.Span span = Tracer.begin("ListChat");
       try{
-         String query = String.format("SELECT L.chat_id, MAX(M.msg_timestamp) AS Received FROM CHAT_LIST L, MESSAGE M WHERE L.member = '%s' AND M.chat_id=L.chat_id GROUP BY L.chat_id ORDER BY MAX(M.msg_timestamp) DESC", author);
-         List<List<String>> chatList = esql.executeQueryAndReturnResult(query);
+         // Only the messages since the last refresh are pulled for the summaries
+         List<List<String>> chatList = esql.getChatSummaries(author);
+         Map<String, Integer> unread = esql.getUnreadCounts(author);
          // Display the chat list and be able to access the messages inside.
          for(int i = 0; i < chatList.size(); ++i){
             // Get the chat id and last time updated
@@ -847,8 +2267,9 @@ public class Messenger {
             System.out.print("Chat #" + cid + ": ");//\n\tLast updated: " + time + "\n\tMembers: ");
             
             // Gets and formats the chat members
-            query = String.format("SELECT member FROM CHAT_LIST WHERE chat_id=%s", cid);
-            List<List<String>> memberList = esql.executeQueryAndReturnResult(query);
+            List<List<String>> memberList = esql.takePrefetched("members:" + cid);
+            if(memberList == null)
+               memberList = esql.shard(cid).executeQueryAndReturnResult("SELECT member FROM CHAT_LIST WHERE chat_id=?", Integer.parseInt(cid));
             int memCnt = 0;
             for(int j = 0; j < memberList.size(); ++j){
                String member = memberList.get(j).get(0).trim();
@@ -861,9 +2282,14 @@ public class Messenger {
                if(j < (memberList.size() - 1))
                   System.out.print(", ");
             }
-            System.out.println("\n\tLast updated: " + time + "\n");
+            Integer newMsgs = unread.get(cid);
+            System.out.println("\n\tLast updated: " + time);
+            System.out.println("\tUnread: " + (newMsgs == null ? 0 : newMsgs) + "\n");
          }
             
+         // The chat menu below is traced as its own operations
+         Tracer.end(span);
+         span = null;
          String prompt = "Would you like to look at a chat?";
          if(readYN(prompt)){
             System.out.print("Chat to look at: ");
@@ -889,6 +2315,9 @@ public class Messenger {
          }
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end ListChat
    
@@ -897,37 +2326,35 @@ public class Messenger {
     * A new member will be added to the chat
     **/
    public static void AddToChat(Messenger esql, String author, String chat){
+      Tracer.Span span = Tracer.begin("AddToChat");
       try{
          // Verifies that the user is the initial sender of the chat
          if(isInit(esql, author, chat)){
-            boolean valid = false;
-            String member = null;
-            while(!valid){
-               System.out.print("\tEnter user to add: ");
-               member = in.readLine();
-               valid = verifyUser(esql, member);
-            }
-            // If user exists and is not a member of the chat, add them to the chat
-            if(!isMember(esql, member, chat))
-            {
-               String query = String.format("INSERT INTO CHAT_LIST (chat_id, member) VALUES (%s,'%s')", chat, member);
-               esql.executeUpdate(query);
-               System.out.println(member + " has been successfully added to the chat!");
-               
-               // Changes the chat type to group if the people in the chat is more than 2
-               query = String.format("SELECT * FROM CHAT_LIST WHERE chat_id=%s", chat);
-               int userNum = esql.executeQuery(query);
-               if(userNum == 3){
-                  query = String.format("UPDATE CHAT SET chat_type='group' WHERE chat_id=%s", chat);
-                  esql.executeUpdate(query);
-               }
-            }
-            else{
-               System.out.println(member + " is already a member of this chat!");
+            System.out.print("\tEnter users to add (separated by commas): ");
+            List<String> logins = new ArrayList<String>();
+            for(String login : in.readLine().split(","))
+               if(!login.trim().isEmpty())
+                  logins.add(login.trim());
+            // Checks that every user exists with one query
+            List<String> users = esql.findUsers(logins);
+            for(String login : logins)
+               if(!users.contains(login))
+                  System.out.println("'" + login + "' does not exist!");
+            // Adds every user who is not a member yet with one insert; the
+            // chat becomes a group once it has more than 2 members
+            List<String> added = esql.addChatMembers(chat, users);
+            for(String member : users){
+               if(added.contains(member))
+                  System.out.println(member + " has been successfully added to the chat!");
+               else
+                  System.out.println(member + " is already a member of this chat!");
             }
          }
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end AddToChat
    
@@ -936,6 +2363,7 @@ public class Messenger {
     * An existing member in the chat is removed
     **/
     public static void RemoveFromChat(Messenger esql, String author, String chat){
+      Tracer.Span span = Tracer.begin("RemoveFromChat");
       try{
          // Verifies that the user is the initial sender of the chat
          if(isInit(esql, author, chat)){
@@ -949,8 +2377,8 @@ public class Messenger {
             // If user exists and is a member of the chat, remove them from the chat
             if(isMember(esql, member, chat))
             {
-               String query = String.format("DELETE FROM CHAT_LIST WHERE member='%s' AND chat_id=%s", member, chat);
-               esql.executeUpdate(query);
+               esql.shard(chat).executeUpdate("DELETE FROM CHAT_LIST WHERE member=? AND chat_id=?", member, Integer.parseInt(chat.trim()));
+               esql.invalidate("c:" + chat.trim() + ":" + member.trim());
                System.out.print(member + " has been successfully removed from the chat!");
             }
             else
@@ -958,6 +2386,9 @@ public class Messenger {
              }
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end RemoveFromChat
    
@@ -966,15 +2397,12 @@ public class Messenger {
     * Creates a new chat by the user
     **/
    public static void CreateChat(Messenger esql, String author){
+      Tracer.Span span = Tracer.begin("CreateChat");
       try{
-         // Trigger generates chat number once new chat is created
+         // Creates the chat with its creator as first member, the chat number
+         // comes from the session's block of chat ids
          int members = 0;
-         String query = String.format("INSERT INTO CHAT (chat_type, init_sender) VALUES ('private', '%s')", author);
-         esql.executeUpdate(query);
-         int chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
-         String chat = Integer.toString(chat_id);
-         query = String.format("INSERT INTO CHAT_LIST (chat_id, member) VALUES (%s, '%s')", chat, author);
-         esql.executeUpdate(query);
+         String chat = esql.createChat(author);
          
          // Asks chat creator who to send initial message to
          boolean done = false;
@@ -988,6 +2416,9 @@ public class Messenger {
         NewMessage(esql, author, chat);
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end CreateChat
    
@@ -995,6 +2426,7 @@ public class Messenger {
     * Deletes a chat
     **/
    public static void DeleteChat(Messenger esql, String author){
+      Tracer.Span span = Tracer.begin("DeleteChat");
       try{
          System.out.print("Chat to delete: ");
          String chat = in.readLine();
@@ -1003,19 +2435,22 @@ public class Messenger {
             // Confirm deletion
             String prompt = "Are you sure you want to delete this chat?";
             if(readYN(prompt)){
-                // Deletes all messages in chat
-                String query = String.format("DELETE FROM MESSAGE WHERE chat_id=%s", chat);
-                esql.executeUpdate(query);
-                // Deletes all users in chat
-                query = String.format("DELETE FROM CHAT_LIST WHERE chat_id=%s", chat);
-                esql.executeUpdate(query);
-                // Deletes chat
-                query = String.format("DELETE FROM CHAT WHERE chat_id=%s", chat);
-                esql.executeUpdate(query); 
+                Messenger node = esql.shard(chat);
+                int chatId = Integer.parseInt(chat.trim());
+                // Marks the chat deleted and removes its members in one
+                // statement, which hides it from every member at once and
+                // leaves its messages and archived segments to DeletionReaper
+                node.executeUpdate("WITH c AS (UPDATE CHAT SET deleted=true WHERE chat_id=? RETURNING chat_id) "
+                   + "DELETE FROM CHAT_LIST WHERE chat_id IN (SELECT chat_id FROM c)", chatId);
+                esql.invalidate("c:" + chat.trim());
+                esql.invalidate("m:" + chat.trim());
             }
          }
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end DeleteChat
 
@@ -1023,92 +2458,97 @@ public class Messenger {
     * Allows a user to write a message
     **/
    public static void NewMessage(Messenger esql, String author, String chat){
+      Tracer.Span span = Tracer.begin("NewMessage");
       // Your code goes here.
       try{
          // Checks that sender is a member of the chat
          if(isMember(esql, author, chat)){
+            if(esql.isSendBlocked(author, chat)){
+               System.out.println("Every other member of this chat has blocked " + author.trim() + "!\n");
+               return;
+            }
             boolean done = false;
             String message = null;
             System.out.println("Please type your message:");
             while(!done){
                // Gets the message from the user
                message = in.readLine();
-               message = quote(message);
                String prompt = "Is this the message you want to send?";
                done = readYN(prompt);
             }
-            // Get message timestamp
-            Calendar calendar = Calendar.getInstance();
-		    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss Z");
-		    java.sql.Timestamp MessageTime = new java.sql.Timestamp(calendar.getTime().getTime());
-		    String msgTime=dateFormat.format(MessageTime);
-		    
-		    // Sends the message
-            String query = String.format("INSERT INTO MESSAGE (msg_text, msg_timestamp, sender_login, chat_id) VALUES ('%s', '%s', '%s', %s)", message, msgTime, author, chat);
-            esql.executeUpdate(query);
+            // Sends the message, the server stamps it with now()
+            esql.sendMessageRetrying(author, chat, message, UUID.randomUUID().toString());
             System.out.println("Message has been sent successfully!\n");
          }
          else
             System.out.println(author + " is not a member of this chat!\n");
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end NewMessage
    
    /*
     * Allows the author of a message to edit a message
     **/
-   public static void EditMessage(Messenger esql, String author){
+   public static void EditMessage(Messenger esql, String author, String chat){
+      Tracer.Span span = Tracer.begin("EditMessage");
       try{
          // Asks for a message to edit
          System.out.print("Message to update: ");
          String msg = in.readLine();
          
          // Confirm user is the sender of the message
-         if(isSender(esql, author, msg)){
+         if(isSender(esql, author, msg, chat)){
             boolean done = false;
             String prompt = null;
             String message = null;
             // Get the edited message
             while(!done){
                message = in.readLine();
-               message = quote(message);
                prompt = "Are you done editing the message?";
                done = readYN(prompt);
             }
             // Edit the message
-            String query = String.format("UPDATE MESSAGE SET msg_text='%s' WHERE msg_id=%s", message, msg);
-            esql.executeUpdate(query);
+            esql.shard(chat).executeUpdate("UPDATE MESSAGE SET msg_text=? WHERE msg_id=? AND chat_id=?", message, Integer.parseInt(msg.trim()), Integer.parseInt(chat.trim()));
             System.out.println("Message has been edited!\n");
          }
          else
             System.out.println(author + " cannot edit this message!\n");
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end EditMessage
    
    /*
     * Allows the author of a message to delete a message
     **/
-   public static void DeleteMessage(Messenger esql, String author){
+   public static void DeleteMessage(Messenger esql, String author, String chat){
+      Tracer.Span span = Tracer.begin("DeleteMessage");
       try{
          // Asks for a message to delete
          System.out.print("Message to delete: ");
          String msg = in.readLine();
          
          // Confirm user is sender of the message
-         if(isSender(esql, author, msg)){
+         if(isSender(esql, author, msg, chat)){
             String prompt = "Are you sure you want to delete this message?";
             boolean confirm = readYN(prompt);
             if(confirm){
-               String query = String.format("DELETE FROM MESSAGE WHERE msg_id=%s", msg);
-               esql.executeUpdate(query);
+               esql.shard(chat).executeUpdate("DELETE FROM MESSAGE WHERE msg_id=? AND chat_id=?", Integer.parseInt(msg.trim()), Integer.parseInt(chat.trim()));
                System.out.println("Message has been deleted!");
             }
          }
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end DeleteMessage
    
@@ -1116,13 +2556,22 @@ public class Messenger {
     * Allows user to view messages in a chat
     **/
    public static void ChatViewer(Messenger esql, String author, String cid){
+      Tracer.Span span = Tracer.begin("ChatViewer");
       try{
-         // Gets the chat_id as a list
-         String query = String.format("SELECT msg_id, msg_timestamp, msg_text, sender_login AS Received FROM  MESSAGE WHERE chat_id=%s ORDER BY msg_timestamp DESC", cid);
-         List<List<String>> msgList = esql.executeQueryAndReturnResult(query);
+         // Gets the chat's messages, only fetching what arrived since the last view
+         List<List<String>> history = esql.getChatHistory(cid);
+         // Hides the messages of senders the viewer has blocked
+         List<List<String>> msgList = esql.relations().filterBlocked(author, history);
          int cnt = 0;
          DisplayMessages(esql, msgList, cnt);
+         // Marks everything on screen as read, hidden messages included
+         if(maxSeq(history) > 0)
+            esql.advanceReadCursor(author, cid, maxSeq(history));
            
+         // The message menu below is traced as its own operations
+         Tracer.end(span);
+         span = null;
+
          // Message submenu
          boolean minimenu = true;
          while(minimenu){
@@ -1131,6 +2580,10 @@ public class Messenger {
              System.out.println("1. Add new message");
              System.out.println("2. Edit message");
              System.out.println("3. Delete message");
+             // Reads through to the archive once the last page is on screen
+             if((msgList.size() - (cnt + 10)) <= 0){
+                msgList = esql.relations().filterBlocked(author, esql.extendChatHistory(cid));
+             }
              // Asks to display more if there are unseen messages
              if((msgList.size() - (cnt + 10)) > 0){
                 System.out.println("4. Display more messages");
@@ -1139,8 +2592,8 @@ public class Messenger {
              System.out.println("9. Return to chat menu");
              switch(readChoice()){
                 case 1: NewMessage(esql, author, cid); break;
-                case 2: EditMessage(esql, author); break;
-                case 3: DeleteMessage(esql, author); break;
+                case 2: EditMessage(esql, author, cid); esql.evictChatHistory(cid); break;
+                case 3: DeleteMessage(esql, author, cid); esql.evictChatHistory(cid); break;
                 case 4: cnt += 10; DisplayMessages(esql, msgList, cnt); break;
                 case 9: minimenu = false; break;
                 default: System.out.println("Unrecognized choice!\n"); break;
@@ -1148,6 +2601,9 @@ public class Messenger {
          }
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         Tracer.fail(span, e.getMessage ());
+      }finally{
+         Tracer.end(span);
       }
    }//end ChatViewer
 
@@ -1161,7 +2617,8 @@ public class Messenger {
       else
          view = msgList.size();
          
-      // Display the messages
+      // Display the messages through one buffer
+      PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 8192));
          for(int i = 0; i < view; ++i){
             String msgId = msgList.get(i).get(0);
             String msgTime = msgList.get(i).get(1);
@@ -1169,11 +2626,12 @@ public class Messenger {
             String msgSender = msgList.get(i).get(3);
             
             int num = msgList.size() - i;
-            System.out.println("(" + num + ") " + "Message #: " + msgId);
-            System.out.println("\tSent at: " + msgTime);
-            System.out.println("\tFrom: " + msgSender);
-            System.out.println("\t" + msgText);
+            out.println("(" + num + ") " + "Message #: " + msgId);
+            out.println("\tSent at: " + msgTime);
+            out.println("\tFrom: " + msgSender);
+            out.println("\t" + msgText);
          }
+      out.flush();
    }//end DisplayMessages
 
 }//end Messenger
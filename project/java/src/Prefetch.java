@@ -0,0 +1,216 @@
+/*
+ * Login-time prefetch for Messenger
+ * =================================
+ *
+ * Loads what a user usually looks at first while the user is still reading
+ * the menu.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class runs one prefetch task per login on a background thread and
+ * keeps what it loaded as rows under short keys, e.g. "contacts:<login>" or
+ * "members:<chat_id>". The task uses the session's own connections, so the
+ * session calls await() before it sends anything itself; the user is at the
+ * menu prompt in between, which is when the task runs. The task only
+ * queries and put()s rows; the session, on its own thread, moves what it
+ * caches itself out of here after await().
+ *
+ * The rows are a bounded cache: past messenger.prefetch.entries keys
+ * (default 256) the least recently used one is dropped, and a key older than
+ * messenger.prefetch.ttlMs (default 30000) is not returned, so a user who
+ * waits at the menu gets fresh rows. Most keys are taken, i.e. served once,
+ * after which the session queries as before. messenger.prefetch=false turns
+ * the prefetch off.
+ *
+ */
+public class Prefetch {
+
+   private static final int ENTRIES = Integer.getInteger("messenger.prefetch.entries", 256);
+   private static final long TTL_MILLIS = Long.getLong("messenger.prefetch.ttlMs", 30000);
+
+   private static ExecutorService _pool = null;
+
+   private final Map<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true){
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest){
+         return size() > ENTRIES;
+      }
+   };
+   private Future<?> _task = null;
+
+   /*
+    * Rows and when they were loaded
+    **/
+   private static final class Entry {
+      final List<List<String>> rows;
+      final long loaded = System.currentTimeMillis();
+
+      Entry(List<List<String>> rows){
+         this.rows = rows;
+      }//end Entry
+   }//end Entry
+
+   /**
+    * @return whether prefetching is turned on (messenger.prefetch)
+    */
+   public static boolean isConfigured(){
+      return !"false".equals(System.getProperty("messenger.prefetch"));
+   }//end isConfigured
+
+   /**
+    * Method to run a prefetch task in the background. Rows from an earlier
+    * login are dropped first.
+    *
+    * @param task loads the rows through put()
+    */
+   public synchronized void start(Runnable task){
+      this._entries.clear();
+      this._task = pool().submit(task);
+   }//end start
+
+   /**
+    * Method to wait until the running task, if any, is done. A failed task
+    * only means that less was prefetched.
+    */
+   public void await(){
+      Future<?> task;
+      synchronized(this){
+         task = this._task;
+         this._task = null;
+      }
+      if(task == null)
+         return;
+      try{
+         task.get();
+      }catch(ExecutionException e){
+         System.err.println("Prefetch failed: " + e.getCause().getMessage());
+      }catch(InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }//end await
+
+   /**
+    * @param key the rows' key
+    * @param rows the rows loaded for it
+    */
+   public synchronized void put(String key, List<List<String>> rows){
+      this._entries.put(key, new Entry(rows));
+   }//end put
+
+   /**
+    * @param key a key
+    * @return the rows under key, or null if there are none or they are too
+    *         old
+    */
+   public synchronized List<List<String>> get(String key){
+      Entry entry = this._entries.get(key);
+      if(entry == null)
+         return null;
+      if(System.currentTimeMillis() - entry.loaded > TTL_MILLIS){
+         this._entries.remove(key);
+         return null;
+      }
+      return entry.rows;
+   }//end get
+
+   /**
+    * @param key a key
+    * @return the rows under key like get(), which are then dropped
+    */
+   public synchronized List<List<String>> take(String key){
+      List<List<String>> rows = get(key);
+      this._entries.remove(key);
+      return rows;
+   }//end take
+
+   /**
+    * @param key a key to drop
+    */
+   public synchronized void remove(String key){
+      this._entries.remove(key);
+   }//end remove
+
+   /**
+    * @param prefix a prefix, e.g. "history:"
+    * @return the keys starting with it
+    */
+   public synchronized List<String> keys(String prefix){
+      List<String> keys = new ArrayList<String>();
+      for(String key : this._entries.keySet())
+         if(key.startsWith(prefix))
+            keys.add(key);
+      return keys;
+   }//end keys
+
+   /**
+    * Method to find the keys whose rows show a value, e.g. the contact lists
+    * with a given login in them. Cells are compared without padding.
+    *
+    * @param prefix a prefix, e.g. "contacts:"
+    * @param value the value to look for
+    * @return the keys starting with prefix that have a row holding value
+    */
+   public synchronized List<String> keysShowing(String prefix, String value){
+      List<String> keys = new ArrayList<String>();
+      String wanted = value.trim();
+      for(Map.Entry<String, Entry> entry : this._entries.entrySet()){
+         if(!entry.getKey().startsWith(prefix))
+            continue;
+         search:
+         for(List<String> row : entry.getValue().rows)
+            for(String cell : row)
+               if(cell != null && cell.trim().equals(wanted)){
+                  keys.add(entry.getKey());
+                  break search;
+               }
+      }
+      return keys;
+   }//end keysShowing
+
+   /**
+    * Method to drop every key starting with a prefix, e.g. "contacts:".
+    *
+    * @param prefix the prefix
+    */
+   public synchronized void evict(String prefix){
+      for(Iterator<String> it = this._entries.keySet().iterator(); it.hasNext(); )
+         if(it.next().startsWith(prefix))
+            it.remove();
+   }//end evict
+
+   /**
+    * Method to drop every key.
+    */
+   public synchronized void clear(){
+      this._entries.clear();
+   }//end clear
+
+   /*
+    * One daemon thread shared by every session in the process
+    **/
+   private static synchronized ExecutorService pool(){
+      if(_pool == null){
+         _pool = Executors.newSingleThreadExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable task){
+               Thread thread = new Thread(task, "messenger-prefetch");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return _pool;
+   }//end pool
+
+}//end Prefetch
@@ -0,0 +1,462 @@
+/*
+ * Operation profiling for Messenger
+ * =================================
+ *
+ * Records every user operation (CreateUser, ListChat, NewMessage, ...) as a
+ * JDK Flight Recorder event next to JFR's CPU, allocation and GC events, and
+ * summarizes where each operation spends its time and memory.
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * This class is the profiling mode. It is off unless messenger.profile names
+ * a recording file, e.g. -Dmessenger.profile=messenger.jfr. Then start()
+ * begins a JFR recording with the "profile" settings (execution samples every
+ * 10 ms, allocation samples, GC pauses) and every operation Tracer sees is
+ * committed as a messenger.Operation event with its SQL call count, the time
+ * spent in JDBC and the bytes the thread allocated while it ran.
+ *
+ * At stop() the recording is written out and summarized into
+ * messenger.profile.report (default messenger-profile.txt): per operation the
+ * count, wall time, JDBC time, allocation, the GC pauses that hit it, and how
+ * its CPU samples split between the JDBC driver, string formatting
+ * (String.format, trim(), date formatting) and everything else,
+ * followed by its top allocation sites. The same report can be made from any
+ * recording that has messenger.Operation events with
+ *
+ *    java -cp ... Profiler <recording.jfr>
+ *
+ * JDBC time is attributed through the thread an operation runs on. With
+ * several shards, executeQueryOnAllShards runs its statements on
+ * ShardRouter's pool threads, which have no operation, so they are not
+ * counted in the operation's SQL calls or JDBC time; the operation's wait for
+ * them shows up as wall time outside JDBC instead.
+ *
+ * When profiling is off begin() returns null and jdbc() does nothing.
+ *
+ */
+public class Profiler {
+
+   private static final String FILE = System.getProperty("messenger.profile");
+   private static final boolean ENABLED = FILE != null && !FILE.isEmpty();
+   private static final String REPORT = System.getProperty("messenger.profile.report", "messenger-profile.txt");
+
+   // the operation running on each thread, for jdbc()
+   private static final ThreadLocal<OperationEvent> CURRENT = new ThreadLocal<OperationEvent>();
+
+   private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+   private static Recording _recording = null;
+
+   /**
+    * The JFR event of one user operation.
+    */
+   @Name("messenger.Operation")
+   @Label("Messenger Operation")
+   @Category("Messenger")
+   @StackTrace(false)
+   public static class OperationEvent extends Event {
+      @Label("Operation")
+      String operation;
+
+      @Label("SQL Calls")
+      int sqlCalls;
+
+      @Label("JDBC Time")
+      @Timespan(Timespan.NANOSECONDS)
+      long jdbcTime;
+
+      @Label("Allocated")
+      @DataAmount
+      long allocated;
+
+      // not recorded: the enclosing operation and the allocation counter at begin
+      transient OperationEvent parent;
+      transient long allocatedBefore;
+   }//end OperationEvent
+
+   private Profiler(){
+   }//end Profiler
+
+   /**
+    * @return whether the profiling mode is on
+    */
+   public static boolean isEnabled(){
+      return ENABLED;
+   }//end isEnabled
+
+   /**
+    * Starts the JFR recording, if the profiling mode is on.
+    */
+   public static synchronized void start(){
+      if(!ENABLED || _recording != null)
+         return;
+      try{
+         _recording = new Recording(Configuration.getConfiguration("profile"));
+         _recording.enable(OperationEvent.class);
+         _recording.setName("messenger");
+         _recording.start();
+         System.out.println("Profiling to " + FILE);
+      }catch(IOException | ParseException e){
+         System.err.println("Profiling is off: " + e.getMessage());
+         _recording = null;
+      }
+   }//end start
+
+   /**
+    * Stops the recording, writes it to messenger.profile and writes the
+    * summary report.
+    */
+   public static synchronized void stop(){
+      if(_recording == null)
+         return;
+      try{
+         _recording.stop();
+         Path path = new File(FILE).toPath();
+         _recording.dump(path);
+         report(path, new File(REPORT));
+         System.out.println("Profile written to " + FILE + ", summary in " + REPORT);
+      }catch(IOException e){
+         System.err.println(e.getMessage());
+      }finally{
+         _recording.close();
+         _recording = null;
+      }
+   }//end stop
+
+   /**
+    * Starts timing an operation on this thread.
+    *
+    * @param name the operation name, e.g. "ListChat"
+    * @return the event to pass to end(), or null when profiling is off
+    */
+   public static OperationEvent begin(String name){
+      if(!ENABLED)
+         return null;
+      OperationEvent event = new OperationEvent();
+      event.operation = name;
+      event.parent = CURRENT.get();
+      event.allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+      CURRENT.set(event);
+      event.begin();
+      return event;
+   }//end begin
+
+   /**
+    * Finishes an operation and commits its event.
+    *
+    * @param event the event returned by begin(), may be null
+    */
+   public static void end(OperationEvent event){
+      if(event == null)
+         return;
+      event.end();
+      event.allocated = THREADS.getCurrentThreadAllocatedBytes() - event.allocatedBefore;
+      if(event.parent == null)
+         CURRENT.remove();
+      else
+         CURRENT.set(event.parent);
+      event.commit();
+   }//end end
+
+   /**
+    * Adds one JDBC call to the operation running on this thread.
+    *
+    * @param nanos the time the call took
+    */
+   public static void jdbc(long nanos){
+      if(!ENABLED)
+         return;
+      OperationEvent event = CURRENT.get();
+      if(event != null){
+         event.sqlCalls++;
+         event.jdbcTime += nanos;
+      }
+   }//end jdbc
+
+   /**
+    * Writes the summary report of a recording.
+    *
+    * @param args the recording file
+    */
+   public static void main(String[] args){
+      if(args.length != 1){
+         System.err.println("Usage: java " + Profiler.class.getName() + " <recording.jfr>");
+         return;
+      }
+      try{
+         report(new File(args[0]).toPath(), null);
+      }catch(IOException e){
+         System.err.println(e.getMessage());
+      }
+   }//end main
+
+   // one operation as read back from the recording
+   private static class Op {
+      String name;
+      long thread;
+      Instant start;
+      Instant end;
+      long jdbcNanos;
+      int sqlCalls;
+      long allocated;
+   }//end Op
+
+   // the totals of one operation name
+   private static class Summary {
+      long count;
+      long wallNanos;
+      long jdbcNanos;
+      long sqlCalls;
+      long allocated;
+      long gcNanos;
+      long jdbcSamples;
+      long formatSamples;
+      long otherSamples;
+      Map<String, Long> sites = new HashMap<String, Long>();
+   }//end Summary
+
+   /*
+    * Reads a recording and writes the per-operation summary to report, or to
+    * standard output if report is null
+    **/
+   private static void report(Path recording, File report) throws IOException {
+      List<RecordedEvent> events = RecordingFile.readAllEvents(recording);
+
+      // the operations of each thread, in start order
+      Map<Long, List<Op>> ops = new HashMap<Long, List<Op>>();
+      for(RecordedEvent event : events){
+         if(!event.getEventType().getName().equals("messenger.Operation") || event.getThread() == null)
+            continue;
+         Op op = new Op();
+         op.name = event.getString("operation");
+         op.thread = event.getThread().getJavaThreadId();
+         op.start = event.getStartTime();
+         op.end = event.getEndTime();
+         op.jdbcNanos = event.getLong("jdbcTime");
+         op.sqlCalls = event.getInt("sqlCalls");
+         op.allocated = event.getLong("allocated");
+         List<Op> list = ops.get(op.thread);
+         if(list == null){
+            list = new ArrayList<Op>();
+            ops.put(op.thread, list);
+         }
+         list.add(op);
+      }
+      for(List<Op> list : ops.values())
+         Collections.sort(list, new Comparator<Op>(){
+            public int compare(Op a, Op b){
+               return a.start.compareTo(b.start);
+            }
+         });
+
+      Map<String, Summary> summaries = new TreeMap<String, Summary>();
+      for(List<Op> list : ops.values()){
+         for(Op op : list){
+            Summary summary = summary(summaries, op.name);
+            summary.count++;
+            summary.wallNanos += Duration.between(op.start, op.end).toNanos();
+            summary.jdbcNanos += op.jdbcNanos;
+            summary.sqlCalls += op.sqlCalls;
+            summary.allocated += op.allocated;
+         }
+      }
+
+      long gcCount = 0;
+      long gcPauseNanos = 0;
+      Instant first = null;
+      Instant last = null;
+      for(RecordedEvent event : events){
+         String type = event.getEventType().getName();
+         if(first == null || event.getStartTime().isBefore(first))
+            first = event.getStartTime();
+         if(last == null || event.getEndTime().isAfter(last))
+            last = event.getEndTime();
+
+         if(type.equals("jdk.ExecutionSample")){
+            Op op = find(ops, event.getThread("sampledThread"), event.getStartTime());
+            if(op == null)
+               continue;
+            Summary summary = summary(summaries, op.name);
+            String kind = classify(event.getStackTrace());
+            if(kind.equals("jdbc"))
+               summary.jdbcSamples++;
+            else if(kind.equals("format"))
+               summary.formatSamples++;
+            else
+               summary.otherSamples++;
+         }
+         else if(type.equals("jdk.ObjectAllocationSample")){
+            Op op = find(ops, event.getThread("eventThread"), event.getStartTime());
+            if(op == null)
+               continue;
+            Map<String, Long> sites = summary(summaries, op.name).sites;
+            String site = site(event.getStackTrace(), event.getClass("objectClass").getName());
+            Long weight = sites.get(site);
+            sites.put(site, (weight == null ? 0 : weight) + event.getLong("weight"));
+         }
+         else if(type.equals("jdk.GarbageCollection")){
+            gcCount++;
+            long pause = event.getDuration("sumOfPauses").toNanos();
+            gcPauseNanos += pause;
+            // GC pauses stop every thread, so they count against every
+            // operation running at the time
+            for(List<Op> list : ops.values())
+               for(Op op : list)
+                  if(op.start.isBefore(event.getEndTime()) && op.end.isAfter(event.getStartTime()))
+                     summary(summaries, op.name).gcNanos += pause;
+         }
+      }
+
+      PrintWriter out = report == null ? new PrintWriter(System.out) : new PrintWriter(new FileWriter(report));
+      try{
+         double seconds = first == null ? 0 : Duration.between(first, last).toNanos() / 1e9;
+         long allocated = 0;
+         for(Summary summary : summaries.values())
+            allocated += summary.allocated;
+         out.println("Messenger profile of " + recording);
+         out.println(String.format("%.1f s recorded, %d GCs with %.1f ms of pauses, %.1f MB allocated by operations",
+            seconds, gcCount, gcPauseNanos / 1e6, allocated / 1048576.0));
+         out.println();
+         out.println("Wall and JDBC times include waiting, e.g. for the database or for input;");
+         out.println("the CPU columns split the operation's execution samples.");
+         out.println();
+         out.println(String.format("%-18s %6s %9s %9s %6s %10s %8s %7s %6s %7s %6s",
+            "operation", "count", "wall ms", "jdbc ms", "sql", "alloc KB", "gc ms", "samples", "jdbc%", "format%", "other%"));
+         for(Map.Entry<String, Summary> entry : summaries.entrySet()){
+            Summary s = entry.getValue();
+            long samples = s.jdbcSamples + s.formatSamples + s.otherSamples;
+            out.println(String.format("%-18s %6d %9.2f %9.2f %6.1f %10.1f %8.2f %7d %6.1f %7.1f %6.1f",
+               entry.getKey(), s.count, s.wallNanos / 1e6 / s.count, s.jdbcNanos / 1e6 / s.count, (double)s.sqlCalls / s.count,
+               s.allocated / 1024.0 / s.count, s.gcNanos / 1e6, samples,
+               percent(s.jdbcSamples, samples), percent(s.formatSamples, samples), percent(s.otherSamples, samples)));
+         }
+
+         out.println();
+         out.println("Top allocation sites per operation (sampled bytes)");
+         for(Map.Entry<String, Summary> entry : summaries.entrySet()){
+            List<Map.Entry<String, Long>> sites = new ArrayList<Map.Entry<String, Long>>(entry.getValue().sites.entrySet());
+            if(sites.isEmpty())
+               continue;
+            Collections.sort(sites, new Comparator<Map.Entry<String, Long>>(){
+               public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b){
+                  return Long.compare(b.getValue(), a.getValue());
+               }
+            });
+            out.println(entry.getKey());
+            for(int i = 0; i < Math.min(5, sites.size()); ++i)
+               out.println(String.format("   %10.1f KB  %s", sites.get(i).getValue() / 1024.0, sites.get(i).getKey()));
+         }
+      }finally{
+         out.flush();
+         if(report != null)
+            out.close();
+      }
+   }//end report
+
+   private static Summary summary(Map<String, Summary> summaries, String name){
+      Summary summary = summaries.get(name);
+      if(summary == null){
+         summary = new Summary();
+         summaries.put(name, summary);
+      }
+      return summary;
+   }//end summary
+
+   /*
+    * Finds the innermost operation running on a thread at a time
+    **/
+   private static Op find(Map<Long, List<Op>> ops, RecordedThread thread, Instant time){
+      if(thread == null)
+         return null;
+      List<Op> list = ops.get(thread.getJavaThreadId());
+      if(list == null)
+         return null;
+      Op found = null;
+      for(Op op : list){
+         if(op.start.isAfter(time))
+            break;
+         if(!op.end.isBefore(time))
+            found = op;
+      }
+      return found;
+   }//end find
+
+   /*
+    * Sorts a CPU sample into jdbc (inside the driver), format (inside string
+    * formatting) or other
+    **/
+   private static String classify(RecordedStackTrace stack){
+      if(stack == null)
+         return "other";
+      boolean format = false;
+      for(RecordedFrame frame : stack.getFrames()){
+         if(!frame.isJavaFrame())
+            continue;
+         String type = frame.getMethod().getType().getName();
+         String method = frame.getMethod().getName();
+         if(type.startsWith("org.postgresql."))
+            return "jdbc";
+         if(type.startsWith("java.util.Formatter") || type.startsWith("java.text.")
+               || (type.equals("java.lang.String") && (method.equals("format") || method.equals("trim") || method.equals("replace"))))
+            format = true;
+      }
+      return format ? "format" : "other";
+   }//end classify
+
+   /*
+    * Names an allocation by the first frame outside the JDK
+    **/
+   private static String site(RecordedStackTrace stack, String objectClass){
+      if(stack != null){
+         for(RecordedFrame frame : stack.getFrames()){
+            if(!frame.isJavaFrame())
+               continue;
+            String type = frame.getMethod().getType().getName();
+            if(type.startsWith("java.") || type.startsWith("jdk.") || type.startsWith("sun."))
+               continue;
+            return type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber() + " (" + objectClass + ")";
+         }
+      }
+      return "(JDK) " + objectClass;
+   }//end site
+
+   private static double percent(long part, long whole){
+      return whole == 0 ? 0 : part * 100.0 / whole;
+   }//end percent
+
+}//end Profiler
@@ -0,0 +1,464 @@
+/*
+ * Query metrics for the Messenger JDBC wrappers
+ * =============================================
+ *
+ * Every statement that goes through executeUpdate, executeQuery,
+ * executeQueryAndReturnResult or executeQueryAndPrintResult is recorded here.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class collects per-query-shape statistics for the SQL sent by
+ * Messenger: a latency histogram, row and byte counts and error counts.
+ * Statements slower than a threshold are written to a slow-query log along
+ * with their EXPLAIN plan. The statistics are exported through JMX and,
+ * if a port is configured, as plain text over HTTP.
+ *
+ * Settings are read from system properties:
+ *    messenger.metrics         false turns collection off (default true)
+ *    messenger.slowQueryMs     slow-query threshold in ms (default 100)
+ *    messenger.slowQueryLog    slow-query log file (default messenger-slow.log)
+ *    messenger.metricsPort     port of the plain-text endpoint (default off)
+ *
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+   // the one collector shared by all Messenger instances in this JVM
+   private static final QueryMetrics INSTANCE = new QueryMetrics();
+
+   private final boolean _enabled = !"false".equals(System.getProperty("messenger.metrics"));
+   private volatile long _slowNanos = Long.getLong("messenger.slowQueryMs", 100L) * 1000000L;
+   private final String _slowLog = System.getProperty("messenger.slowQueryLog", "messenger-slow.log");
+
+   // statistics keyed by the normalized query text
+   private final ConcurrentMap<String, ShapeStats> _shapes = new ConcurrentHashMap<String, ShapeStats>();
+   private final AtomicLong _slowCount = new AtomicLong();
+
+   private HttpServer _server = null;
+
+   private QueryMetrics(){
+   }//end QueryMetrics
+
+   /**
+    * @return the shared collector
+    */
+   public static QueryMetrics getInstance(){
+      return INSTANCE;
+   }//end getInstance
+
+   /**
+    * @return whether statements are being recorded
+    */
+   public boolean isEnabled(){
+      return this._enabled;
+   }//end isEnabled
+
+   /**
+    * Registers the JMX bean and starts the plain-text endpoint if a port is
+    * configured. Failures are reported but never stop the application.
+    */
+   public synchronized void start(){
+      if(!this._enabled)
+         return;
+      try{
+         MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName("Messenger:type=QueryMetrics");
+         if(!mbs.isRegistered(name))
+            mbs.registerMBean(this, name);
+      }catch(Exception e){
+         System.err.println("Unable to register query metrics with JMX: " + e.getMessage());
+      }
+      String port = System.getProperty("messenger.metricsPort");
+      if(port != null && this._server == null){
+         try{
+            this._server = HttpServer.create(new InetSocketAddress("localhost", Integer.parseInt(port)), 0);
+            this._server.createContext("/metrics", new HttpHandler(){
+               public void handle(HttpExchange exchange) throws IOException {
+                  byte[] body = getReport().getBytes("UTF-8");
+                  exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                  exchange.sendResponseHeaders(200, body.length);
+                  OutputStream out = exchange.getResponseBody();
+                  out.write(body);
+                  out.close();
+               }
+            });
+            this._server.start();
+         }catch(Exception e){
+            System.err.println("Unable to start metrics endpoint on port " + port + ": " + e.getMessage());
+            this._server = null;
+         }
+      }
+   }//end start
+
+   /**
+    * Stops the plain-text endpoint if it is running.
+    */
+   public synchronized void stop(){
+      if(this._server != null){
+         this._server.stop(0);
+         this._server = null;
+      }
+   }//end stop
+
+   /**
+    * Records a statement that completed. If it was slower than the threshold
+    * its EXPLAIN plan is looked up on the same connection and logged.
+    *
+    * @param conn the connection the statement ran on
+    * @param sql the statement text
+    * @param nanos the time the statement took
+    * @param rows the rows returned or affected
+    * @param bytes the characters fetched from the result set
+    */
+   public void record(Connection conn, String sql, long nanos, int rows, long bytes){
+      Profiler.jdbc(nanos);
+      if(!this._enabled)
+         return;
+      ShapeStats stats = stats(sql);
+      stats.count.incrementAndGet();
+      stats.rows.addAndGet(rows);
+      stats.bytes.addAndGet(bytes);
+      stats.latency.record(nanos);
+      if(nanos >= this._slowNanos){
+         this._slowCount.incrementAndGet();
+         logSlowQuery(conn, sql, nanos, rows);
+      }
+   }//end record
+
+   /**
+    * Records a statement that failed.
+    *
+    * @param sql the statement text
+    * @param nanos the time until the failure
+    */
+   public void error(String sql, long nanos){
+      Profiler.jdbc(nanos);
+      if(!this._enabled)
+         return;
+      ShapeStats stats = stats(sql);
+      stats.count.incrementAndGet();
+      stats.errors.incrementAndGet();
+      stats.latency.record(nanos);
+   }//end error
+
+   public long getQueryCount(){
+      long total = 0;
+      for(ShapeStats stats : this._shapes.values())
+         total += stats.count.get();
+      return total;
+   }//end getQueryCount
+
+   public long getErrorCount(){
+      long total = 0;
+      for(ShapeStats stats : this._shapes.values())
+         total += stats.errors.get();
+      return total;
+   }//end getErrorCount
+
+   public long getSlowQueryCount(){
+      return this._slowCount.get();
+   }//end getSlowQueryCount
+
+   public int getShapeCount(){
+      return this._shapes.size();
+   }//end getShapeCount
+
+   public long getSlowQueryMillis(){
+      return this._slowNanos / 1000000L;
+   }//end getSlowQueryMillis
+
+   public void setSlowQueryMillis(long millis){
+      this._slowNanos = millis * 1000000L;
+   }//end setSlowQueryMillis
+
+   public void reset(){
+      this._shapes.clear();
+      this._slowCount.set(0);
+   }//end reset
+
+   /**
+    * Formats the statistics of every query shape, one metric per line, with
+    * the slowest shapes (by total time) first.
+    *
+    * @return the plain-text report
+    */
+   public String getReport(){
+      List<String> shapes = new ArrayList<String>(this._shapes.keySet());
+      Collections.sort(shapes, new java.util.Comparator<String>(){
+         public int compare(String a, String b){
+            long ta = _shapes.get(a).latency.totalNanos();
+            long tb = _shapes.get(b).latency.totalNanos();
+            return ta < tb ? 1 : (ta > tb ? -1 : 0);
+         }
+      });
+      StringBuilder out = new StringBuilder();
+      out.append("messenger_queries_total ").append(getQueryCount()).append('\n');
+      out.append("messenger_query_errors_total ").append(getErrorCount()).append('\n');
+      out.append("messenger_slow_queries_total ").append(getSlowQueryCount()).append('\n');
+      for(String shape : shapes){
+         ShapeStats stats = this._shapes.get(shape);
+         String label = "{shape=\"" + shape.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+         out.append("messenger_query_count").append(label).append(' ').append(stats.count.get()).append('\n');
+         out.append("messenger_query_errors").append(label).append(' ').append(stats.errors.get()).append('\n');
+         out.append("messenger_query_rows").append(label).append(' ').append(stats.rows.get()).append('\n');
+         out.append("messenger_query_bytes").append(label).append(' ').append(stats.bytes.get()).append('\n');
+         out.append("messenger_query_seconds_total").append(label).append(' ').append(seconds(stats.latency.totalNanos())).append('\n');
+         out.append("messenger_query_seconds_p50").append(label).append(' ').append(seconds(stats.latency.percentile(0.50))).append('\n');
+         out.append("messenger_query_seconds_p99").append(label).append(' ').append(seconds(stats.latency.percentile(0.99))).append('\n');
+         out.append("messenger_query_seconds_p999").append(label).append(' ').append(seconds(stats.latency.percentile(0.999))).append('\n');
+         out.append("messenger_query_seconds_max").append(label).append(' ').append(seconds(stats.latency.max())).append('\n');
+      }
+      return out.toString();
+   }//end getReport
+
+   /**
+    * Reduces a statement to its shape by replacing string and numeric
+    * literals with '?', so that e.g. all logins share one entry.
+    *
+    * @param sql the statement text
+    * @return the normalized statement
+    */
+   public static String shape(String sql){
+      StringBuilder out = new StringBuilder(sql.length());
+      int n = sql.length();
+      int i = 0;
+      while(i < n){
+         char c = sql.charAt(i);
+         if(c == '\''){
+            // skips the string literal, including doubled or escaped quotes
+            ++i;
+            while(i < n){
+               char d = sql.charAt(i);
+               if(d == '\\' && i + 1 < n)
+                  i += 2;
+               else if(d == '\'' && i + 1 < n && sql.charAt(i + 1) == '\'')
+                  i += 2;
+               else if(d == '\'')
+                  break;
+               else
+                  ++i;
+            }
+            ++i;
+            out.append('?');
+         }
+         else if(Character.isDigit(c) && (out.length() == 0 || !Character.isLetterOrDigit(out.charAt(out.length() - 1)) && out.charAt(out.length() - 1) != '_')){
+            while(i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+               ++i;
+            out.append('?');
+         }
+         else if(Character.isWhitespace(c)){
+            while(i < n && Character.isWhitespace(sql.charAt(i)))
+               ++i;
+            out.append(' ');
+         }
+         else{
+            out.append(c);
+            ++i;
+         }
+      }
+      return out.toString().trim();
+   }//end shape
+
+   /*
+    * Returns the statistics of the statement's shape, creating them if needed
+    **/
+   private ShapeStats stats(String sql){
+      String key = shape(sql);
+      ShapeStats stats = this._shapes.get(key);
+      if(stats == null){
+         ShapeStats created = new ShapeStats();
+         stats = this._shapes.putIfAbsent(key, created);
+         if(stats == null)
+            stats = created;
+      }
+      return stats;
+   }//end stats
+
+   /*
+    * Appends a slow statement and its EXPLAIN plan to the slow-query log
+    **/
+   private void logSlowQuery(Connection conn, String sql, long nanos, int rows){
+      String plan = explain(conn, sql);
+      synchronized(this){
+         PrintWriter log = null;
+         try{
+            log = new PrintWriter(new FileWriter(this._slowLog, true));
+            log.println(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date())
+               + " duration=" + (nanos / 1000000L) + "ms rows=" + rows);
+            log.println(sql);
+            log.println(plan);
+         }catch(IOException e){
+            System.err.println("Unable to write slow-query log: " + e.getMessage());
+         }finally{
+            if(log != null)
+               log.close();
+         }
+      }
+   }//end logSlowQuery
+
+   /*
+    * Looks up the plan of a DML statement without executing it again
+    **/
+   private static String explain(Connection conn, String sql){
+      String verb = sql.trim().toUpperCase();
+      if(!(verb.startsWith("SELECT") || verb.startsWith("INSERT") || verb.startsWith("UPDATE") || verb.startsWith("DELETE") || verb.startsWith("WITH")))
+         return "(no plan for this statement)";
+      StringBuilder plan = new StringBuilder();
+      Statement stmt = null;
+      try{
+         stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery(sql.indexOf('?') < 0 ? "EXPLAIN " + sql : "EXPLAIN (GENERIC_PLAN) " + numberParameters(sql));
+         while(rs.next())
+            plan.append("   ").append(rs.getString(1)).append('\n');
+      }catch(SQLException e){
+         plan.append("(EXPLAIN failed: ").append(e.getMessage()).append(")\n");
+      }finally{
+         try{
+            if(stmt != null)
+               stmt.close();
+         }catch(SQLException e){
+            // ignored.
+         }
+      }
+      return plan.toString();
+   }//end explain
+
+   /*
+    * Turns the ?s of a prepared statement into $1, $2, ... for EXPLAIN,
+    * leaving any ? inside string literals alone
+    **/
+   private static String numberParameters(String sql){
+      StringBuilder out = new StringBuilder(sql.length() + 8);
+      boolean literal = false;
+      int param = 0;
+      for(int i = 0; i < sql.length(); ++i){
+         char c = sql.charAt(i);
+         if(c == '\'')
+            literal = !literal;
+         if(c == '?' && !literal)
+            out.append('$').append(++param);
+         else
+            out.append(c);
+      }
+      return out.toString();
+   }//end numberParameters
+
+   private static String seconds(long nanos){
+      return String.valueOf(nanos / 1e9);
+   }//end seconds
+
+   /*
+    * Counters kept for each query shape
+    **/
+   private static class ShapeStats {
+      final AtomicLong count = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+      final LatencyHistogram latency = new LatencyHistogram();
+   }//end ShapeStats
+
+   /**
+    * A lock-free log-linear histogram of latencies in microseconds, in the
+    * style of HdrHistogram: each power of two is split into 8 linear
+    * sub-buckets, which keeps every recorded value within 12.5%.
+    *
+    */
+   static class LatencyHistogram {
+
+      private static final int SUB_BITS = 3;
+      private static final int SUB_COUNT = 1 << SUB_BITS;
+
+      private final AtomicLongArray _counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+      private final AtomicLong _total = new AtomicLong();
+      private final AtomicLong _totalNanos = new AtomicLong();
+      private final AtomicLong _maxNanos = new AtomicLong();
+
+      /**
+       * @param nanos the latency to record
+       */
+      public void record(long nanos){
+         long micros = Math.max(0, nanos / 1000L);
+         this._counts.incrementAndGet(index(micros));
+         this._total.incrementAndGet();
+         this._totalNanos.addAndGet(nanos);
+         long max = this._maxNanos.get();
+         while(nanos > max && !this._maxNanos.compareAndSet(max, nanos))
+            max = this._maxNanos.get();
+      }//end record
+
+      /**
+       * @param p the percentile as a fraction, e.g. 0.99
+       * @return the upper bound of the bucket holding that percentile, in ns
+       */
+      public long percentile(double p){
+         long total = this._total.get();
+         if(total == 0)
+            return 0;
+         long rank = Math.max(1, (long)Math.ceil(p * total));
+         long seen = 0;
+         for(int i = 0; i < this._counts.length(); ++i){
+            seen += this._counts.get(i);
+            if(seen >= rank)
+               return Math.min(upperBound(i), this._maxNanos.get() / 1000L) * 1000L;
+         }
+         return this._maxNanos.get();
+      }//end percentile
+
+      public long count(){
+         return this._total.get();
+      }//end count
+
+      public long totalNanos(){
+         return this._totalNanos.get();
+      }//end totalNanos
+
+      public long max(){
+         return this._maxNanos.get();
+      }//end max
+
+      static int index(long micros){
+         if(micros < SUB_COUNT)
+            return (int)micros;
+         int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+         int sub = (int)((micros >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1));
+         return (magnitude - SUB_BITS + 1) * SUB_COUNT + sub;
+      }//end index
+
+      static long upperBound(int index){
+         if(index < SUB_COUNT)
+            return index;
+         int magnitude = index / SUB_COUNT + SUB_BITS - 1;
+         int sub = index % SUB_COUNT;
+         return ((long)(SUB_COUNT + sub + 1) << (magnitude - SUB_BITS)) - 1;
+      }//end upperBound
+
+   }//end LatencyHistogram
+
+}//end QueryMetrics
@@ -0,0 +1,31 @@
+/**
+ * JMX view of the query metrics collected by QueryMetrics.
+ *
+ */
+public interface QueryMetricsMBean {
+
+   /** @return the number of statements executed */
+   public long getQueryCount();
+
+   /** @return the number of statements that failed */
+   public long getErrorCount();
+
+   /** @return the number of statements slower than the slow-query threshold */
+   public long getSlowQueryCount();
+
+   /** @return the number of distinct query shapes seen */
+   public int getShapeCount();
+
+   /** @return the slow-query threshold in milliseconds */
+   public long getSlowQueryMillis();
+
+   /** @param millis the new slow-query threshold in milliseconds */
+   public void setSlowQueryMillis(long millis);
+
+   /** @return the plain-text metrics report */
+   public String getReport();
+
+   /** Clears all collected statistics. */
+   public void reset();
+
+}//end QueryMetricsMBean
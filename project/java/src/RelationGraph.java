@@ -0,0 +1,231 @@
+/*
+ * Contact and block graph for Messenger
+ * =====================================
+ *
+ * Answers contact and block questions from in-memory bitmaps instead of
+ * probing USER_LIST_CONTAINS row by row.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class gives every login it sees a dense int id and keeps, for each
+ * user whose lists were needed, the contact and block list as an IntBitmap
+ * of those ids. A user's two lists are loaded with one query the first time
+ * they are needed, so only the users a session actually deals with are ever
+ * loaded; after that "is X blocked by Y", mutual contacts and filtering a
+ * chat's messages by the viewer's block list are answered in memory.
+ *
+ * The graph belongs to one session and is kept current like the session's
+ * other caches: a change key for a list (l:<list_id>:<member>) or user
+ * (u:<login>) drops the owner's loaded lists, which are reloaded on next use.
+ * When the cache bus is not live the session clears the graph before every
+ * use, so the lists are always read fresh.
+ *
+ * Logins are compared without their char(50) padding.
+ *
+ */
+public class RelationGraph {
+
+   private final Messenger _esql;
+
+   // dense ids for logins, and back
+   private final Map<String, Integer> _ids = new HashMap<String, Integer>();
+   private final List<String> _logins = new ArrayList<String>();
+
+   // loaded lists by owner id, and the owner of each loaded list_id
+   private final Map<Integer, IntBitmap> _contacts = new HashMap<Integer, IntBitmap>();
+   private final Map<Integer, IntBitmap> _blocks = new HashMap<Integer, IntBitmap>();
+   private final Map<String, Integer> _listOwners = new HashMap<String, Integer>();
+
+   /**
+    * Creates an empty graph.
+    *
+    * @param esql the session whose connections load the lists
+    */
+   public RelationGraph(Messenger esql){
+      this._esql = esql;
+   }//end RelationGraph
+
+   /**
+    * @param owner a login
+    * @param member another login
+    * @return whether member is on owner's contact list
+    * @throws java.sql.SQLException when owner's lists cannot be loaded
+    */
+   public boolean isContact(String owner, String member) throws SQLException {
+      return contacts(id(owner)).contains(id(member));
+   }//end isContact
+
+   /**
+    * @param owner a login
+    * @param member another login
+    * @return whether member is blocked by owner
+    * @throws java.sql.SQLException when owner's lists cannot be loaded
+    */
+   public boolean isBlocked(String owner, String member) throws SQLException {
+      return blocks(id(owner)).contains(id(member));
+   }//end isBlocked
+
+   /**
+    * @param a a login
+    * @param b another login
+    * @return the logins on both users' contact lists
+    * @throws java.sql.SQLException when a user's lists cannot be loaded
+    */
+   public List<String> getMutualContacts(String a, String b) throws SQLException {
+      int[] ids = contacts(id(a)).and(contacts(id(b))).toArray();
+      List<String> mutual = new ArrayList<String>(ids.length);
+      for(int i = 0; i < ids.length; ++i)
+         mutual.add(this._logins.get(ids[i]));
+      return mutual;
+   }//end getMutualContacts
+
+   /**
+    * Method to drop the messages of senders a viewer has blocked.
+    *
+    * @param viewer the viewer's login
+    * @param messages messages in the (msg_id, msg_timestamp, msg_text,
+    *                 sender_login) shape
+    * @return the messages the viewer may see, in the same order; messages
+    *         itself if none is dropped
+    * @throws java.sql.SQLException when the viewer's lists cannot be loaded
+    */
+   public List<List<String>> filterBlocked(String viewer, List<List<String>> messages) throws SQLException {
+      IntBitmap blocks = blocks(id(viewer));
+      if(blocks.cardinality() == 0)
+         return messages;
+      List<List<String>> visible = null;
+      for(int i = 0; i < messages.size(); ++i){
+         String sender = messages.get(i).get(3);
+         boolean blocked = sender != null && blocks.contains(id(sender));
+         if(blocked && visible == null){
+            visible = new ArrayList<List<String>>(messages.size());
+            visible.addAll(messages.subList(0, i));
+         }
+         else if(!blocked && visible != null)
+            visible.add(messages.get(i));
+      }
+      return visible == null ? messages : visible;
+   }//end filterBlocked
+
+   /**
+    * Method to load a user's lists ahead of their first use.
+    *
+    * @param owner a login
+    * @throws java.sql.SQLException when the lists cannot be loaded
+    */
+   public void preload(String owner) throws SQLException {
+      load(id(owner));
+   }//end preload
+
+   /**
+    * Method to take a user's lists as loaded elsewhere, e.g. by the login
+    * prefetch, unless they are loaded already.
+    *
+    * @param owner a login
+    * @param lists the owner's (contact_list, block_list) ids
+    * @param rows (list_id, list_member) rows of both lists
+    */
+   public void preload(String owner, String[] lists, List<List<String>> rows){
+      int id = id(owner);
+      if(!this._contacts.containsKey(id))
+         install(id, lists, rows);
+   }//end preload
+
+   /**
+    * Method to drop the loaded lists a change key names.
+    *
+    * @param listId a list_id from an l: key
+    */
+   public void evictList(String listId){
+      Integer owner = this._listOwners.get(listId.trim());
+      if(owner != null)
+         evictOwner(owner);
+   }//end evictList
+
+   /**
+    * Method to drop a user's loaded lists, e.g. when the user was deleted.
+    *
+    * @param login the user's login
+    */
+   public void evictUser(String login){
+      Integer owner = this._ids.get(login.trim());
+      if(owner != null)
+         evictOwner(owner);
+   }//end evictUser
+
+   /**
+    * Method to drop every loaded list. The login ids are kept.
+    */
+   public void clear(){
+      this._contacts.clear();
+      this._blocks.clear();
+      this._listOwners.clear();
+   }//end clear
+
+   private void evictOwner(int owner){
+      this._contacts.remove(owner);
+      this._blocks.remove(owner);
+      for(Iterator<Integer> it = this._listOwners.values().iterator(); it.hasNext(); )
+         if(it.next() == owner)
+            it.remove();
+   }//end evictOwner
+
+   private int id(String login){
+      String key = login.trim();
+      Integer id = this._ids.get(key);
+      if(id == null){
+         id = this._logins.size();
+         this._ids.put(key, id);
+         this._logins.add(key);
+      }
+      return id;
+   }//end id
+
+   private IntBitmap contacts(int owner) throws SQLException {
+      load(owner);
+      return this._contacts.get(owner);
+   }//end contacts
+
+   private IntBitmap blocks(int owner) throws SQLException {
+      load(owner);
+      return this._blocks.get(owner);
+   }//end blocks
+
+   /*
+    * Loads both lists of a user with one query, unless they are loaded
+    **/
+   private void load(int owner) throws SQLException {
+      if(this._contacts.containsKey(owner))
+         return;
+      String[] lists = this._esql.getUserLists(this._logins.get(owner));
+      install(owner, lists, this._esql.executeQueryAndReturnResult(
+         "SELECT list_id, list_member FROM USER_LIST_CONTAINS WHERE list_id IN (?, ?)",
+         Integer.parseInt(lists[0]), Integer.parseInt(lists[1])));
+   }//end load
+
+   private void install(int owner, String[] lists, List<List<String>> rows){
+      IntBitmap contacts = new IntBitmap();
+      IntBitmap blocks = new IntBitmap();
+      for(List<String> row : rows){
+         int member = id(row.get(1));
+         if(row.get(0).trim().equals(lists[0]))
+            contacts.add(member);
+         else
+            blocks.add(member);
+      }
+      this._contacts.put(owner, contacts);
+      this._blocks.put(owner, blocks);
+      this._listOwners.put(lists[0], owner);
+      this._listOwners.put(lists[1], owner);
+   }//end install
+
+}//end RelationGraph
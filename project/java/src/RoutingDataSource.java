@@ -0,0 +1,269 @@
+/*
+ * Read/write splitting for Messenger
+ * ==================================
+ *
+ * Sends writes to the primary and spreads read-only queries over a set of
+ * streaming replicas.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds one connection to the primary and one to each configured
+ * replica, and picks the connection a statement should run on. Writes always
+ * go to the primary. Reads go round-robin to the replicas, but a session must
+ * read its own writes, so on the first read after a write the primary's WAL
+ * position (pg_current_wal_lsn()) is taken as the point every replica has to
+ * have replayed. A replica is asked for its pg_last_wal_replay_lsn() until it
+ * has got there, and the read goes to the primary while it has not; once it
+ * has, it serves reads without the check until the session writes again.
+ * Reads also stay on the primary while it is inside an explicit transaction.
+ *
+ * Replicas are listed in messenger.replicas as host:port entries separated by
+ * commas, e.g. -Dmessenger.replicas=localhost:5433,localhost:5434. They use
+ * the same database name, user and password as the primary. A replica whose
+ * connection fails is dropped and its reads go elsewhere. A lost primary
+ * connection is replaced as soon as the failure is reported, so the
+ * caller's retry of the statement runs on a fresh one.
+ *
+ */
+public class RoutingDataSource {
+
+   private Connection _primary;
+   private final String _primaryUrl;
+   private final String _user;
+   private final String _passwd;
+   private final List<Connection> _replicas = new ArrayList<Connection>();
+   // the WAL position each replica was last seen to have replayed
+   private final Map<Connection, Long> _replayed = new IdentityHashMap<Connection, Long>();
+
+   private int _next = 0;
+   private boolean _wrote = false;
+   // the WAL position a replica must have replayed to serve this session's reads
+   private long _target = 0;
+
+   /**
+    * Connects to the primary and every replica that can be reached.
+    *
+    * @param dbname the name of the database
+    * @param primary the primary's host:port
+    * @param replicas the replicas' host:port entries, may be empty
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when the primary cannot be reached
+    */
+   public RoutingDataSource(String dbname, String primary, List<String> replicas, String user, String passwd) throws SQLException {
+      this._primaryUrl = url(primary, dbname);
+      this._user = user;
+      this._passwd = passwd;
+      this._primary = DriverManager.getConnection(this._primaryUrl, user, passwd);
+      for(String replica : replicas){
+         try{
+            Connection conn = DriverManager.getConnection(url(replica, dbname), user, passwd);
+            conn.setReadOnly(true);
+            this._replicas.add(conn);
+         }catch(SQLException e){
+            System.err.println("Skipping replica " + replica + ": " + e.getMessage());
+         }
+      }
+   }//end RoutingDataSource
+
+   /**
+    * Builds the JDBC URL for a server. Parameterized statements are prepared
+    * on the server once they ran prepareThreshold times and then fetch their
+    * results in binary.
+    *
+    * @param hostPort the server's host:port
+    * @param dbname the name of the database
+    * @return the connection URL
+    */
+   public static String url(String hostPort, String dbname){
+      return "jdbc:postgresql://" + hostPort + "/" + dbname
+         + "?prepareThreshold=" + System.getProperty("messenger.prepareThreshold", "1")
+         + "&binaryTransfer=" + System.getProperty("messenger.binaryTransfer", "true");
+   }//end url
+
+   /**
+    * Parses the messenger.replicas setting.
+    *
+    * @return the configured replicas' host:port entries
+    */
+   public static List<String> configuredReplicas(){
+      List<String> replicas = new ArrayList<String>();
+      String setting = System.getProperty("messenger.replicas", "");
+      for(String replica : setting.split(",")){
+         if(replica.trim().length() > 0)
+            replicas.add(replica.trim());
+      }
+      return replicas;
+   }//end configuredReplicas
+
+   /**
+    * @return the primary connection
+    */
+   public Connection primary(){
+      return this._primary;
+   }//end primary
+
+   /**
+    * Returns the connection for a write. The next read takes the primary's
+    * WAL position as the one the replicas have to catch up to.
+    *
+    * @return the primary connection
+    */
+   public Connection forWrite(){
+      this._wrote = true;
+      return this._primary;
+   }//end forWrite
+
+   /**
+    * Returns the connection for a read-only query.
+    *
+    * @return a replica that has replayed the session's writes, or the primary
+    *         if none is usable right now
+    * @throws java.sql.SQLException when the primary's state cannot be read
+    */
+   public Connection forRead() throws SQLException {
+      if(this._replicas.isEmpty() || !this._primary.getAutoCommit())
+         return this._primary;
+      if(this._wrote){
+         this._target = lsn(this._primary, "SELECT pg_current_wal_lsn()");
+         this._wrote = false;
+      }
+      this._next = (this._next + 1) % this._replicas.size();
+      Connection replica = this._replicas.get(this._next);
+      return caughtUp(replica) ? replica : this._primary;
+   }//end forRead
+
+   /*
+    * Checks whether a replica has replayed the WAL up to the session's last
+    * write, asking it only when the last answer was behind. A replica whose
+    * connection fails is dropped.
+    **/
+   private boolean caughtUp(Connection replica){
+      Long replayed = this._replayed.get(replica);
+      if(this._target == 0 || (replayed != null && replayed >= this._target))
+         return true;
+      try{
+         replayed = lsn(replica, "SELECT pg_last_wal_replay_lsn()");
+      }catch(SQLException e){
+         failed(replica, e);
+         return false;
+      }
+      this._replayed.put(replica, replayed);
+      return replayed >= this._target;
+   }//end caughtUp
+
+   /*
+    * Runs a query returning a pg_lsn and turns it into a number; NULL, which
+    * a server that is not replaying WAL returns, is 0
+    **/
+   private static long lsn(Connection conn, String query) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         ResultSet rs = stmt.executeQuery(query);
+         String lsn = rs.next() ? rs.getString(1) : null;
+         if(lsn == null)
+            return 0;
+         int slash = lsn.indexOf('/');
+         return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+      }finally{
+         stmt.close();
+      }
+   }//end lsn
+
+   /**
+    * Reports a failed statement. If it failed because a replica went away,
+    * the replica is dropped so the statement can be retried elsewhere. If
+    * the primary's connection was lost, it is replaced; the statement is not
+    * retried, since a write may have been applied before the connection
+    * broke, but the caller may run it again.
+    *
+    * @param conn the connection the statement ran on
+    * @param e the failure
+    * @return whether the statement should be retried
+    */
+   public boolean failed(Connection conn, SQLException e){
+      if(conn == this._primary){
+         if(lost(conn, e))
+            reconnect();
+         return false;
+      }
+      if(!this._replicas.contains(conn) || !lost(conn, e))
+         return false;
+      System.err.println("Replica connection lost, reading from the primary: " + e.getMessage());
+      this._replicas.remove(conn);
+      this._replayed.remove(conn);
+      close(conn);
+      return true;
+   }//end failed
+
+   /*
+    * Whether a failure means the connection is gone: SQLState class 08, a
+    * backend terminated by the server (57P01), or a closed connection
+    **/
+   private static boolean lost(Connection conn, SQLException e){
+      String state = e.getSQLState();
+      if(state != null && (state.startsWith("08") || state.equals("57P01")))
+         return true;
+      try{
+         return conn.isClosed();
+      }catch(SQLException ignored){
+         return true;
+      }
+   }//end lost
+
+   /*
+    * Replaces the primary connection; if the primary cannot be reached the
+    * old one is kept and the next statement fails again
+    **/
+   private void reconnect(){
+      try{
+         Connection conn = DriverManager.getConnection(this._primaryUrl, this._user, this._passwd);
+         close(this._primary);
+         this._primary = conn;
+         // whatever the session wrote last must be replayed before replicas serve it
+         this._wrote = true;
+         System.err.println("Reconnected to the primary");
+      }catch(SQLException e){
+         System.err.println("Cannot reconnect to the primary: " + e.getMessage());
+      }
+   }//end reconnect
+
+   private static void close(Connection conn){
+      try{
+         conn.close();
+      }catch(SQLException ignored){
+         // ignored.
+      }
+   }//end close
+
+   /**
+    * @return the number of replicas currently in use
+    */
+   public int getReplicaCount(){
+      return this._replicas.size();
+   }//end getReplicaCount
+
+   /**
+    * Closes every connection.
+    */
+   public void close(){
+      for(Connection conn : this._replicas)
+         close(conn);
+      this._replicas.clear();
+      this._replayed.clear();
+      close(this._primary);
+   }//end close
+
+}//end RoutingDataSource
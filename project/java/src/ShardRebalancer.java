@@ -0,0 +1,192 @@
+/*
+ * Resharding tool for Messenger
+ * =============================
+ *
+ * Moves chats between shards after shards were added or removed.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This program moves every chat whose shard changes between two shard
+ * layouts. For each such chat it copies the CHAT, CHAT_LIST, MESSAGE and
+ * CHAT_READ_CURSOR rows to the new shard in one transaction, and then
+ * deletes them from the old one. Copies skip rows that already exist, so a
+ * run that was interrupted can simply be started again.
+ *
+ * Usage:
+ *    java ShardRebalancer <user> <from> <to> [--dry-run]
+ *
+ * where from and to are comma separated host:port/dbname lists in shard
+ * order, i.e. the old and new values of messenger.shards. To shard a
+ * database that was not sharded yet, give its own host:port/dbname as from.
+ * Writes to a chat that is being moved may be lost, so the chats should be
+ * quiet (e.g. the application stopped) while the tool runs.
+ *
+ */
+public class ShardRebalancer {
+
+   // messages copied per multi-row insert
+   private static final int BATCH = 500;
+
+   private ShardRebalancer(){
+   }//end ShardRebalancer
+
+   /**
+    * @param args the command line arguments, see the class comment
+    */
+   public static void main (String[] args) {
+      if(args.length < 3 || args.length > 4 || (args.length == 4 && !args[3].equals("--dry-run"))){
+         System.err.println("Usage: java " + ShardRebalancer.class.getName() + " <user> <from> <to> [--dry-run]");
+         return;
+      }
+      boolean dryRun = args.length == 4;
+      List<String> from = split(args[1]);
+      List<String> to = split(args[2]);
+      // one connection per distinct node, shared by both layouts
+      Map<String, RoutingDataSource> nodes = new HashMap<String, RoutingDataSource>();
+      List<RoutingDataSource> sources = new ArrayList<RoutingDataSource>();
+      List<RoutingDataSource> targets = new ArrayList<RoutingDataSource>();
+      try{
+         for(String node : from)
+            sources.add(connect(nodes, node, args[0]));
+         for(String node : to)
+            targets.add(connect(nodes, node, args[0]));
+
+         int moved = 0;
+         int kept = 0;
+         for(int i = 0; i < sources.size(); ++i){
+            RoutingDataSource source = sources.get(i);
+            List<List<String>> chats = new Messenger(source).executeQueryAndReturnResult("SELECT chat_id FROM CHAT ORDER BY chat_id");
+            for(List<String> row : chats){
+               long chatId = Long.parseLong(row.get(0).trim());
+               int shard = ShardRouter.shardOf(chatId, to.size());
+               if(to.get(shard).equals(from.get(i))){
+                  ++kept;
+                  continue;
+               }
+               System.out.println("Chat #" + chatId + ": " + from.get(i) + " -> " + to.get(shard));
+               if(!dryRun)
+                  move(source, targets.get(shard), (int)chatId);
+               ++moved;
+            }
+         }
+         System.out.println((dryRun ? "Would move " : "Moved ") + moved + " chat(s), " + kept + " already in place");
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         for(RoutingDataSource node : nodes.values())
+            node.close();
+      }
+   }//end main
+
+   /*
+    * Copies one chat to its new shard, then removes it from the old one
+    **/
+   private static void move(RoutingDataSource sourceNode, RoutingDataSource targetNode, final int chatId) throws SQLException {
+      Messenger source = new Messenger(sourceNode);
+      final Messenger target = new Messenger(targetNode);
+      Connection copy = targetNode.primary();
+      copy.setAutoCommit(false);
+      try{
+         // A chat waiting for DeletionReaper moves too, still marked deleted
+         List<List<String>> chat = source.executeQueryAndReturnResult("SELECT chat_id, chat_type, init_sender, last_seq, deleted FROM CHAT WHERE chat_id=?", chatId);
+         if(chat.isEmpty())
+            return;
+         target.executeUpdate("INSERT INTO CHAT (chat_id, chat_type, init_sender, last_seq, deleted) VALUES (?, ?, ?, ?, ?) ON CONFLICT DO NOTHING",
+            chatId, chat.get(0).get(1), chat.get(0).get(2), Integer.parseInt(chat.get(0).get(3).trim()), chat.get(0).get(4).trim().equals("t"));
+         for(List<String> member : source.executeQueryAndReturnResult("SELECT member FROM CHAT_LIST WHERE chat_id=?", chatId))
+            target.executeUpdate("INSERT INTO CHAT_LIST (chat_id, member) VALUES (?, ?) ON CONFLICT DO NOTHING", chatId, member.get(0));
+         for(List<String> cursor : source.executeQueryAndReturnResult("SELECT login, last_seq FROM CHAT_READ_CURSOR WHERE chat_id=?", chatId))
+            target.executeUpdate("INSERT INTO CHAT_READ_CURSOR (login, chat_id, last_seq) VALUES (?, ?, ?) ON CONFLICT DO NOTHING",
+               cursor.get(0), chatId, Integer.parseInt(cursor.get(1).trim()));
+
+         // Streams the messages across in multi-row batches, keeping their
+         // sequence numbers and client keys
+         final List<Object> batch = new ArrayList<Object>();
+         source.executeQueryAndStream("SELECT msg_id, msg_text, msg_timestamp, sender_login, seq, client_key FROM MESSAGE WHERE chat_id=?", new Messenger.RowHandler(){
+            public long handleRow(ResultSet rs) throws SQLException {
+               batch.add(rs.getInt(1));
+               batch.add(rs.getString(2));
+               batch.add(rs.getString(3));
+               batch.add(rs.getString(4));
+               batch.add(chatId);
+               batch.add(rs.getInt(5));
+               batch.add(rs.getString(6));
+               if(batch.size() == BATCH * 7)
+                  insertMessages(target, batch);
+               return 0;
+            }
+         }, chatId);
+         insertMessages(target, batch);
+         copy.commit();
+      }catch(SQLException e){
+         copy.rollback();
+         throw e;
+      }finally{
+         copy.setAutoCommit(true);
+      }
+
+      // The chat is safe on the new shard, so it can go from the old one
+      Connection drop = sourceNode.primary();
+      drop.setAutoCommit(false);
+      try{
+         source.executeUpdate("DELETE FROM MESSAGE WHERE chat_id=?", chatId);
+         source.executeUpdate("DELETE FROM CHAT_READ_CURSOR WHERE chat_id=?", chatId);
+         source.executeUpdate("DELETE FROM CHAT_LIST WHERE chat_id=?", chatId);
+         source.executeUpdate("DELETE FROM CHAT WHERE chat_id=?", chatId);
+         drop.commit();
+      }catch(SQLException e){
+         drop.rollback();
+         throw e;
+      }finally{
+         drop.setAutoCommit(true);
+      }
+   }//end move
+
+   /*
+    * Inserts the buffered messages with one statement and clears the buffer
+    **/
+   private static void insertMessages(Messenger target, List<Object> batch) throws SQLException {
+      if(batch.isEmpty())
+         return;
+      StringBuilder query = new StringBuilder("INSERT INTO MESSAGE (msg_id, msg_text, msg_timestamp, sender_login, chat_id, seq, client_key) VALUES ");
+      for(int i = 0; i < batch.size() / 7; ++i){
+         if(i > 0)
+            query.append(", ");
+         query.append("(?, ?, ?::timestamp, ?, ?, ?, ?)");
+      }
+      query.append(" ON CONFLICT DO NOTHING");
+      target.executeUpdate(query.toString(), batch.toArray());
+      batch.clear();
+   }//end insertMessages
+
+   private static RoutingDataSource connect(Map<String, RoutingDataSource> nodes, String node, String user) throws SQLException {
+      RoutingDataSource router = nodes.get(node);
+      if(router == null){
+         int slash = node.indexOf('/');
+         if(slash < 0)
+            throw new SQLException("Shard '" + node + "' must be given as host:port/dbname");
+         router = new RoutingDataSource(node.substring(slash + 1), node.substring(0, slash), new ArrayList<String>(), user, "");
+         nodes.put(node, router);
+      }
+      return router;
+   }//end connect
+
+   private static List<String> split(String nodes){
+      List<String> result = new ArrayList<String>();
+      for(String node : nodes.split(","))
+         if(node.trim().length() > 0)
+            result.add(node.trim());
+      return result;
+   }//end split
+
+}//end ShardRebalancer
@@ -0,0 +1,184 @@
+/*
+ * Chat sharding for Messenger
+ * ===========================
+ *
+ * Places CHAT, CHAT_LIST, MESSAGE and CHAT_READ_CURSOR rows on N databases
+ * by chat_id, while USR and the USER_LIST tables stay on the directory node.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Callable;
+
+/**
+ * This class maps a chat to the shard holding its rows and runs queries on
+ * every shard in parallel. Each shard is reached through its own Messenger,
+ * so shard queries use the same wrappers, metrics and tracing as the
+ * directory node's.
+ *
+ * Shards are listed in messenger.shards as host:port/dbname entries separated
+ * by commas. Their schema comes from create_shard_tables.sql. Messenger only
+ * creates a router when shards are configured; without, the directory node
+ * holds every table and all chat queries run there.
+ *
+ * The placement of a chat only depends on its id and the number of shards
+ * (see shardOf), so ShardRebalancer can work out which chats have to move
+ * when shards are added or removed.
+ *
+ */
+public class ShardRouter {
+
+   private final List<Messenger> _shards = new ArrayList<Messenger>();
+   private ExecutorService _pool = null;
+
+   /**
+    * Connects to every configured shard.
+    *
+    * @param shards the shards' host:port/dbname entries, at least one
+    * @param user the user name used to login to the databases
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public ShardRouter(List<String> shards, String user, String passwd) throws SQLException {
+      for(String shard : shards){
+         int slash = shard.indexOf('/');
+         if(slash < 0)
+            throw new SQLException("Shard '" + shard + "' must be given as host:port/dbname");
+         RoutingDataSource node = new RoutingDataSource(shard.substring(slash + 1), shard.substring(0, slash), new ArrayList<String>(), user, passwd);
+         this._shards.add(new Messenger(node));
+      }
+      if(this._shards.size() > 1){
+         this._pool = Executors.newFixedThreadPool(this._shards.size(), new ThreadFactory(){
+            public Thread newThread(Runnable task){
+               Thread thread = new Thread(task, "messenger-shard");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+   }//end ShardRouter
+
+   /**
+    * Parses the messenger.shards setting.
+    *
+    * @return the configured shards' host:port/dbname entries
+    */
+   public static List<String> configuredShards(){
+      List<String> shards = new ArrayList<String>();
+      for(String shard : System.getProperty("messenger.shards", "").split(",")){
+         if(shard.trim().length() > 0)
+            shards.add(shard.trim());
+      }
+      return shards;
+   }//end configuredShards
+
+   /**
+    * Returns the shard a chat lives on. The id is mixed first so that
+    * consecutive ids (e.g. from one block of IdAllocator) spread evenly.
+    *
+    * @param chatId the chat id
+    * @param shardCount the number of shards
+    * @return the shard's index
+    */
+   public static int shardOf(long chatId, int shardCount){
+      long mixed = (chatId * 0x9E3779B97F4A7C15L) >>> 32;
+      return (int)(mixed % shardCount);
+   }//end shardOf
+
+   /**
+    * @return the number of shards
+    */
+   public int getShardCount(){
+      return this._shards.size();
+   }//end getShardCount
+
+   /**
+    * @param chat the chat id
+    * @return the node holding the chat's rows
+    */
+   public Messenger forChat(String chat){
+      return this._shards.get(shardOf(Long.parseLong(chat.trim()), this._shards.size()));
+   }//end forChat
+
+   /**
+    * @return every node holding chat rows
+    */
+   public List<Messenger> all(){
+      return Collections.unmodifiableList(this._shards);
+   }//end all
+
+   /**
+    * Runs a query on every shard in parallel and concatenates the rows.
+    *
+    * @param query the input query string
+    * @param params values bound to the ?s in query, if any
+    * @return the rows of all shards
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<String>> queryAll(final String query, final Object... params) throws SQLException {
+      if(this._pool == null){
+         List<List<String>> result = new ArrayList<List<String>>();
+         for(Messenger shard : all())
+            result.addAll(shard.executeQueryAndReturnResult(query, params));
+         return result;
+      }
+      List<Future<List<List<String>>>> pending = new ArrayList<Future<List<List<String>>>>();
+      for(final Messenger shard : this._shards){
+         pending.add(this._pool.submit(new Callable<List<List<String>>>(){
+            public List<List<String>> call() throws SQLException {
+               return shard.executeQueryAndReturnResult(query, params);
+            }
+         }));
+      }
+      List<List<String>> result = new ArrayList<List<String>>();
+      for(Future<List<List<String>>> rows : pending){
+         try{
+            result.addAll(rows.get());
+         }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while querying shards", e);
+         }catch(ExecutionException e){
+            if(e.getCause() instanceof SQLException)
+               throw (SQLException)e.getCause();
+            throw new SQLException(e.getCause().getMessage(), e.getCause());
+         }
+      }
+      return result;
+   }//end queryAll
+
+   /**
+    * Runs a query on every shard and adds up the single number each returns,
+    * e.g. a COUNT(*).
+    *
+    * @param query the input query string
+    * @param params values bound to the ?s in query, if any
+    * @return the number of rows found on all shards
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public int countAll(String query, Object... params) throws SQLException {
+      int total = 0;
+      for(List<String> row : queryAll(query, params))
+         total += Integer.parseInt(row.get(0).trim());
+      return total;
+   }//end countAll
+
+   /**
+    * Closes the shard connections.
+    */
+   public void close(){
+      if(this._pool != null)
+         this._pool.shutdownNow();
+      for(Messenger shard : this._shards)
+         shard.cleanup();
+   }//end close
+
+}//end ShardRouter
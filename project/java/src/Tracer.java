@@ -0,0 +1,377 @@
+/*
+ * Operation tracing for Messenger
+ * ===============================
+ *
+ * Each user-visible operation (CreateUser, ListChat, NewMessage, ...) opens a
+ * span, and every SQL call made while it is open becomes a child span.
+ *
+ */
+
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a small in-process tracer. Spans are sampled per operation,
+ * kept in a fixed-size ring buffer and periodically exported to a local file
+ * as OpenTelemetry (OTLP/JSON) trace requests, one request per line.
+ *
+ * When tracing is disabled begin() and beginSql() return null without
+ * allocating anything, and end() on a null span does nothing, so the calls
+ * can stay in place on every path. In the profiling mode (see Profiler)
+ * begin() also starts the operation's profiling event, which end() commits,
+ * whether or not the operation is traced.
+ *
+ * Settings are read from system properties:
+ *    messenger.trace.sample    fraction of operations traced, 0 to 1 (default 0)
+ *    messenger.trace.file      export file (default messenger-trace.json)
+ *    messenger.trace.buffer    spans kept between exports (default 4096)
+ *    messenger.trace.flushMs   export interval in ms (default 5000)
+ *
+ */
+public class Tracer {
+
+   private static final double SAMPLE = Double.parseDouble(System.getProperty("messenger.trace.sample", "0"));
+   private static final boolean ENABLED = SAMPLE > 0;
+   private static final String FILE = System.getProperty("messenger.trace.file", "messenger-trace.json");
+   private static final int CAPACITY = Integer.getInteger("messenger.trace.buffer", 4096);
+   private static final long FLUSH_MILLIS = Long.getLong("messenger.trace.flushMs", 5000L);
+
+   // marks an operation that was not sampled, so its nested calls are skipped too
+   private static final Span NOT_SAMPLED = new Span(null, "", 0, 0, 0, false);
+
+   private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+
+   // finished spans waiting for export; the oldest are overwritten when full
+   private static final Span[] RING = new Span[Math.max(1, CAPACITY)];
+   private static int _head = 0;
+   private static int _size = 0;
+   private static final AtomicLong DROPPED = new AtomicLong();
+
+   // wall clock base for span timestamps, measured with nanoTime in between
+   private static final long EPOCH_NANOS = System.currentTimeMillis() * 1000000L;
+   private static final long BASE_NANOS = System.nanoTime();
+
+   static {
+      if(ENABLED){
+         Thread exporter = new Thread("messenger-trace-exporter"){
+            public void run(){
+               while(true){
+                  try{
+                     Thread.sleep(FLUSH_MILLIS);
+                  }catch(InterruptedException e){
+                     return;
+                  }
+                  flush();
+               }
+            }
+         };
+         exporter.setDaemon(true);
+         exporter.start();
+         Runtime.getRuntime().addShutdownHook(new Thread("messenger-trace-flush"){
+            public void run(){
+               flush();
+            }
+         });
+      }
+   }
+
+   private Tracer(){
+   }//end Tracer
+
+   /**
+    * @return whether any operation can be traced
+    */
+   public static boolean isEnabled(){
+      return ENABLED;
+   }//end isEnabled
+
+   /**
+    * Starts the span of a user operation. A nested operation becomes a child
+    * of the one already running on this thread.
+    *
+    * @param name the operation name, e.g. "ListChat"
+    * @return the span to pass to end(), or null when tracing is disabled
+    */
+   public static Span begin(String name){
+      Profiler.OperationEvent profile = Profiler.begin(name);
+      if(!ENABLED)
+         return profile == null ? null : untraced(name, profile, false);
+      Span parent = CURRENT.get();
+      if(parent == NOT_SAMPLED)
+         return profile == null ? null : untraced(name, profile, false);
+      Span span;
+      if(parent == null){
+         if(ThreadLocalRandom.current().nextDouble() >= SAMPLE){
+            CURRENT.set(NOT_SAMPLED);
+            return profile == null ? NOT_SAMPLED : untraced(name, profile, true);
+         }
+         span = new Span(null, name, ThreadLocalRandom.current().nextLong(), ThreadLocalRandom.current().nextLong(), 0, false);
+      }
+      else
+         span = new Span(parent, name, parent.traceHi, parent.traceLo, parent.spanId, false);
+      span.profile = profile;
+      CURRENT.set(span);
+      return span;
+   }//end begin
+
+   /*
+    * Makes the span of an operation that is profiled but not traced
+    **/
+   private static Span untraced(String name, Profiler.OperationEvent profile, boolean root){
+      Span span = new Span(null, name, 0, 0, 0, false);
+      span.profile = profile;
+      span.traced = false;
+      span.unsampledRoot = root;
+      return span;
+   }//end untraced
+
+   /**
+    * Starts the span of one SQL call inside the current operation.
+    *
+    * @param call the wrapper making the call, e.g. "executeQuery"
+    * @return the span to pass to endSql(), or null if nothing is being traced
+    */
+   public static Span beginSql(String call){
+      if(!ENABLED)
+         return null;
+      Span parent = CURRENT.get();
+      if(parent == null || parent == NOT_SAMPLED)
+         return null;
+      for(Span op = parent; op != null; op = op.parent)
+         op.sqlCalls++;
+      return new Span(parent, call, parent.traceHi, parent.traceLo, parent.spanId, true);
+   }//end beginSql
+
+   /**
+    * Finishes an operation span and restores its parent as current.
+    *
+    * @param span the span returned by begin(), may be null
+    */
+   public static void end(Span span){
+      if(span == null)
+         return;
+      Profiler.end(span.profile);
+      if(span == NOT_SAMPLED || span.unsampledRoot){
+         CURRENT.remove();
+         return;
+      }
+      if(!span.traced)
+         return;
+      span.endNanos = System.nanoTime();
+      if(span.parent == null)
+         CURRENT.remove();
+      else
+         CURRENT.set(span.parent);
+      add(span);
+   }//end end
+
+   /**
+    * Finishes an SQL span.
+    *
+    * @param span the span returned by beginSql(), may be null
+    * @param sql the statement text
+    * @param rows the rows returned or affected, or -1 if the call failed
+    * @param error the failure message, or null
+    */
+   public static void endSql(Span span, String sql, int rows, String error){
+      if(span == null)
+         return;
+      span.endNanos = System.nanoTime();
+      span.statement = sql;
+      span.rows = rows;
+      span.error = error;
+      if(error != null)
+         span.parent.error = error;
+      add(span);
+   }//end endSql
+
+   /**
+    * Marks an operation span as failed.
+    *
+    * @param span the span returned by begin(), may be null
+    * @param error the failure message
+    */
+   public static void fail(Span span, String error){
+      if(span != null && span != NOT_SAMPLED)
+         span.error = error;
+   }//end fail
+
+   /**
+    * @return the number of spans overwritten before they could be exported
+    */
+   public static long getDroppedCount(){
+      return DROPPED.get();
+   }//end getDroppedCount
+
+   /**
+    * Writes every buffered span to the export file as one OTLP/JSON request.
+    */
+   public static void flush(){
+      Span[] spans;
+      synchronized(RING){
+         if(_size == 0)
+            return;
+         spans = new Span[_size];
+         for(int i = 0; i < _size; ++i)
+            spans[i] = RING[(_head - _size + i + RING.length) % RING.length];
+         _size = 0;
+      }
+      StringBuilder json = new StringBuilder(256 * spans.length);
+      json.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+      attribute(json, "service.name", "messenger", true);
+      json.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"Messenger\"},\"spans\":[");
+      for(int i = 0; i < spans.length; ++i){
+         if(i > 0)
+            json.append(',');
+         spans[i].toJson(json);
+      }
+      json.append("]}]}]}\n");
+      synchronized(Tracer.class){
+         Writer out = null;
+         try{
+            out = new FileWriter(FILE, true);
+            out.write(json.toString());
+         }catch(IOException e){
+            System.err.println("Unable to write trace file: " + e.getMessage());
+         }finally{
+            try{
+               if(out != null)
+                  out.close();
+            }catch(IOException e){
+               // ignored.
+            }
+         }
+      }
+   }//end flush
+
+   /*
+    * Puts a finished span in the ring buffer, overwriting the oldest if full
+    **/
+   private static void add(Span span){
+      synchronized(RING){
+         RING[_head] = span;
+         _head = (_head + 1) % RING.length;
+         if(_size == RING.length)
+            DROPPED.incrementAndGet();
+         else
+            ++_size;
+      }
+   }//end add
+
+   private static void attribute(StringBuilder json, String key, String value, boolean first){
+      if(!first)
+         json.append(',');
+      json.append("{\"key\":\"").append(key).append("\",\"value\":{\"stringValue\":");
+      quote(json, value);
+      json.append("}}");
+   }//end attribute
+
+   private static void attribute(StringBuilder json, String key, long value){
+      json.append(",{\"key\":\"").append(key).append("\",\"value\":{\"intValue\":\"").append(value).append("\"}}");
+   }//end attribute
+
+   private static void quote(StringBuilder json, String text){
+      json.append('"');
+      for(int i = 0; i < text.length(); ++i){
+         char c = text.charAt(i);
+         switch(c){
+            case '"': json.append("\\\""); break;
+            case '\\': json.append("\\\\"); break;
+            case '\n': json.append("\\n"); break;
+            case '\r': json.append("\\r"); break;
+            case '\t': json.append("\\t"); break;
+            default:
+               if(c < 0x20)
+                  json.append(String.format("\\u%04x", (int)c));
+               else
+                  json.append(c);
+         }
+      }
+      json.append('"');
+   }//end quote
+
+   private static void hex(StringBuilder json, long value){
+      String digits = Long.toHexString(value);
+      for(int i = digits.length(); i < 16; ++i)
+         json.append('0');
+      json.append(digits);
+   }//end hex
+
+   /**
+    * One timed unit of work: a user operation or an SQL call inside it.
+    *
+    */
+   public static final class Span {
+      final Span parent;
+      final String name;
+      final long traceHi;
+      final long traceLo;
+      final long spanId;
+      final long parentSpanId;
+      final boolean sql;
+      final long startNanos;
+      long endNanos;
+      int sqlCalls = 0;
+      String statement = null;
+      int rows = -1;
+      String error = null;
+      // the operation's profiling event, if profiling is on
+      Profiler.OperationEvent profile = null;
+      // false for a span that is only profiled; unsampledRoot marks one that
+      // stands in for NOT_SAMPLED at the top of an operation
+      boolean traced = true;
+      boolean unsampledRoot = false;
+
+      Span(Span parent, String name, long traceHi, long traceLo, long parentSpanId, boolean sql){
+         this.parent = parent;
+         this.name = name;
+         this.traceHi = traceHi;
+         this.traceLo = traceLo;
+         this.spanId = ThreadLocalRandom.current().nextLong();
+         this.parentSpanId = parentSpanId;
+         this.sql = sql;
+         this.startNanos = System.nanoTime();
+      }//end Span
+
+      void toJson(StringBuilder json){
+         json.append("{\"traceId\":\"");
+         hex(json, this.traceHi);
+         hex(json, this.traceLo);
+         json.append("\",\"spanId\":\"");
+         hex(json, this.spanId);
+         json.append("\",\"parentSpanId\":\"");
+         if(this.parentSpanId != 0)
+            hex(json, this.parentSpanId);
+         json.append("\",\"name\":");
+         quote(json, this.name);
+         // SPAN_KIND_CLIENT for calls to the database, SPAN_KIND_INTERNAL otherwise
+         json.append(",\"kind\":").append(this.sql ? 3 : 1);
+         json.append(",\"startTimeUnixNano\":\"").append(EPOCH_NANOS + (this.startNanos - BASE_NANOS));
+         json.append("\",\"endTimeUnixNano\":\"").append(EPOCH_NANOS + (this.endNanos - BASE_NANOS));
+         json.append("\",\"attributes\":[");
+         if(this.sql){
+            attribute(json, "db.system", "postgresql", true);
+            attribute(json, "db.statement", this.statement, false);
+            if(this.rows >= 0)
+               attribute(json, "db.rows", this.rows);
+         }
+         else{
+            attribute(json, "messenger.operation", this.name, true);
+            attribute(json, "messenger.sql_calls", this.sqlCalls);
+         }
+         json.append("],\"status\":{");
+         if(this.error != null){
+            json.append("\"code\":2,\"message\":");
+            quote(json, this.error);
+         }
+         else
+            json.append("\"code\":1");
+         json.append("}}");
+      }//end toJson
+   }//end Span
+
+}//end Tracer
@@ -0,0 +1,394 @@
+/*
+ * User data export for Messenger
+ * ==============================
+ *
+ * Writes everything the application holds about one user to NDJSON or CSV
+ * files.
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This program exports a user's profile (USR without the password), contact
+ * and block lists, chats, the members of those chats and every message in
+ * them, archived ones included, and the messages the user sent in chats the
+ * user has since left, into one directory:
+ *
+ *    profile, contacts, blocks, chats, chat_members    one file each
+ *    messages/<chat_id>                                 one file per chat
+ *    left_chat_messages                                 one file
+ *
+ * with a .ndjson or .csv extension, plus .gz when compressed. Every query is
+ * read through executeQueryAndStream, i.e. a forward-only server-side
+ * cursor, and every row is written straight into a buffered FileChannel, so
+ * memory does not grow with the size of the history. Only the list of the
+ * user's chats and one archive segment at a time are held in memory.
+ * Messages are written oldest first; a message an interrupted
+ * MessageArchiver run left in both places is written twice. The archive is
+ * kept per chat, so messages in left chats are only exported while they are
+ * still in MESSAGE. A user who is deleted, i.e. waiting for DeletionReaper,
+ * is not exported.
+ *
+ * Usage:
+ *    java UserExporter <dbname> <port> <user> <login> <dir> [--format ndjson|csv] [--gzip] [--threads N]
+ *
+ * --threads N exports the chats' messages over N sessions of their own in
+ * parallel (default 1).
+ *
+ */
+public class UserExporter {
+
+   private static final int BUFFER = 64 * 1024;
+
+   private static final String[] PROFILE = {"login", "phonenum", "status"};
+   private static final String[] LIST = {"login"};
+   private static final String[] CHATS = {"chat_id", "chat_type", "init_sender", "member_count"};
+   private static final String[] MEMBERS = {"chat_id", "member"};
+   private static final String[] MESSAGES = {"msg_id", "seq", "msg_timestamp", "sender_login", "msg_text"};
+   private static final String[] LEFT_MESSAGES = {"chat_id", "msg_id", "seq", "msg_timestamp", "sender_login", "msg_text"};
+
+   private final File _dir;
+   private final boolean _csv;
+   private final boolean _gzip;
+
+   /**
+    * @param args the command line arguments, see the class comment
+    */
+   public static void main (String[] args) {
+      if(args.length < 5){
+         System.err.println("Usage: java " + UserExporter.class.getName() + " <dbname> <port> <user> <login> <dir> [--format ndjson|csv] [--gzip] [--threads N]");
+         return;
+      }
+      boolean csv = false;
+      boolean gzip = false;
+      int threads = 1;
+      for(int i = 5; i < args.length; ++i){
+         if(args[i].equals("--format") && i + 1 < args.length)
+            csv = args[++i].equals("csv");
+         else if(args[i].equals("--gzip"))
+            gzip = true;
+         else if(args[i].equals("--threads") && i + 1 < args.length)
+            threads = Integer.parseInt(args[++i]);
+      }
+      // an export reads nothing twice, so the session caches are not needed
+      if(System.getProperty("messenger.cacheBus") == null)
+         System.setProperty("messenger.cacheBus", "false");
+
+      List<Messenger> sessions = new ArrayList<Messenger>();
+      try{
+         for(int i = 0; i < Math.max(1, threads); ++i)
+            sessions.add(new Messenger(args[0], args[1], args[2], ""));
+         UserExporter exporter = new UserExporter(new File(args[4]), csv, gzip);
+         int chats = exporter.export(sessions, args[3]);
+         System.out.println("Exported " + args[3] + " with " + chats + " chat(s) to " + args[4]);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         for(Messenger esql : sessions)
+            esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Creates an exporter writing into a directory.
+    *
+    * @param dir the directory, created if needed
+    * @param csv true for CSV, false for NDJSON
+    * @param gzip whether to compress every file
+    */
+   public UserExporter(File dir, boolean csv, boolean gzip){
+      this._dir = dir;
+      this._csv = csv;
+      this._gzip = gzip;
+   }//end UserExporter
+
+   /**
+    * Method to export one user.
+    *
+    * @param sessions the sessions to read through; the first one reads
+    *                 everything but the messages, which are spread over all
+    * @param login the user's login
+    * @return the number of chats exported
+    * @throws java.sql.SQLException when a query failed
+    * @throws java.io.IOException when a file cannot be written
+    */
+   public int export(List<Messenger> sessions, String login) throws SQLException, IOException {
+      Messenger esql = sessions.get(0);
+      if(esql.executeQuery("SELECT login FROM USR WHERE login=? AND NOT deleted", login) == 0)
+         throw new SQLException("No user " + login);
+      new File(this._dir, "messages").mkdirs();
+
+      copy(esql, "profile", PROFILE, "SELECT login, phoneNum, status FROM USR WHERE login=? AND NOT deleted", login);
+      copy(esql, "contacts", LIST, "SELECT ulc.list_member FROM USER_LIST_CONTAINS ulc, USR u WHERE u.login=? AND ulc.list_id=u.contact_list", login);
+      copy(esql, "blocks", LIST, "SELECT ulc.list_member FROM USER_LIST_CONTAINS ulc, USR u WHERE u.login=? AND ulc.list_id=u.block_list", login);
+
+      // The chat list itself is small; the members are streamed per chat
+      final List<List<String>> chats = esql.executeQueryOnAllShards(
+         "SELECT C.chat_id, C.chat_type, C.init_sender, C.member_count FROM CHAT C, CHAT_LIST L WHERE L.member=? AND C.chat_id=L.chat_id AND NOT C.deleted ORDER BY C.chat_id", login);
+      Sink out = open("chats", CHATS);
+      try{
+         for(List<String> chat : chats)
+            out.write(chat.toArray(new String[0]));
+      }finally{
+         out.close();
+      }
+      out = open("chat_members", MEMBERS);
+      try{
+         for(List<String> chat : chats)
+            esql.shard(chat.get(0)).executeQueryAndStream("SELECT chat_id, member FROM CHAT_LIST WHERE chat_id=? ORDER BY member", out, Integer.parseInt(chat.get(0).trim()));
+      }finally{
+         out.close();
+      }
+
+      // What the user sent in chats the user is no longer in, shard by shard
+      out = open("left_chat_messages", LEFT_MESSAGES);
+      try{
+         for(Messenger node : esql.allShards())
+            node.executeQueryAndStream("SELECT M.chat_id, M.msg_id, M.seq, M.msg_timestamp, M.sender_login, M.msg_text FROM MESSAGE M, CHAT C "
+               + "WHERE M.sender_login=? AND C.chat_id=M.chat_id AND NOT C.deleted "
+               + "AND NOT EXISTS (SELECT 1 FROM CHAT_LIST L WHERE L.chat_id=M.chat_id AND L.member=?) ORDER BY M.chat_id, M.seq",
+               out, login, login);
+      }finally{
+         out.close();
+      }
+
+      // Messages, chat i on session i % sessions
+      if(sessions.size() == 1){
+         for(List<String> chat : chats)
+            exportMessages(esql, chat.get(0).trim());
+         return chats.size();
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(sessions.size());
+      try{
+         List<Future<Object>> done = new ArrayList<Future<Object>>();
+         for(int i = 0; i < sessions.size(); ++i){
+            final Messenger session = sessions.get(i);
+            final int first = i;
+            final int step = sessions.size();
+            done.add(pool.submit(new Callable<Object>(){
+               public Object call() throws Exception {
+                  for(int c = first; c < chats.size(); c += step)
+                     exportMessages(session, chats.get(c).get(0).trim());
+                  return null;
+               }
+            }));
+         }
+         for(Future<Object> future : done)
+            future.get();
+      }catch(Exception e){
+         Throwable cause = e.getCause() != null ? e.getCause() : e;
+         if(cause instanceof SQLException)
+            throw (SQLException)cause;
+         if(cause instanceof IOException)
+            throw (IOException)cause;
+         throw new IOException(cause.getMessage(), cause);
+      }finally{
+         pool.shutdown();
+      }
+      return chats.size();
+   }//end export
+
+   /*
+    * Writes one chat's messages, the archived segments first, oldest first
+    **/
+   private void exportMessages(Messenger esql, String chat) throws SQLException, IOException {
+      Sink out = open("messages" + File.separator + chat, MESSAGES);
+      try{
+         MessageArchive archive = esql.getArchive();
+         List<MessageArchive.Segment> segments = archive.getSegments(chat);
+         for(int s = segments.size() - 1; s >= 0; --s){
+            // segments and their rows are newest first
+            List<List<String>> rows = archive.read(segments.get(s));
+            for(int r = rows.size() - 1; r >= 0; --r){
+               List<String> row = rows.get(r);
+               // segments written before seq was archived have none
+               out.write(new String[]{row.get(0), row.size() > 4 ? row.get(4) : null, row.get(1), row.get(3), row.get(2)});
+            }
+         }
+         esql.shard(chat).executeQueryAndStream("SELECT msg_id, seq, msg_timestamp, sender_login, msg_text FROM MESSAGE WHERE chat_id=? ORDER BY seq",
+            out, Integer.parseInt(chat));
+      }finally{
+         out.close();
+      }
+   }//end exportMessages
+
+   /*
+    * Streams a query into a new file
+    **/
+   private void copy(Messenger esql, String name, String[] columns, String query, Object... params) throws SQLException, IOException {
+      Sink out = open(name, columns);
+      try{
+         esql.executeQueryAndStream(query, out, params);
+      }finally{
+         out.close();
+      }
+   }//end copy
+
+   private Sink open(String name, String[] columns) throws IOException {
+      String file = name + (this._csv ? ".csv" : ".ndjson") + (this._gzip ? ".gz" : "");
+      return new Sink(new File(this._dir, file), columns);
+   }//end open
+
+   /*
+    * One output file: rows are encoded as NDJSON objects or CSV lines into a
+    * direct buffer that is written to the file's channel whenever it is full
+    **/
+   private class Sink implements Messenger.RowHandler {
+      private final String[] _columns;
+      private final FileChannel _file;
+      private final WritableByteChannel _channel;
+      private final ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER);
+      private final StringBuilder _line = new StringBuilder();
+
+      Sink(File file, String[] columns) throws IOException {
+         this._columns = columns;
+         this._file = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+         this._channel = _gzip ? Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(this._file), BUFFER)) : this._file;
+         if(_csv){
+            for(int i = 0; i < columns.length; ++i){
+               if(i > 0)
+                  this._line.append(',');
+               this._line.append(columns[i]);
+            }
+            flushLine();
+         }
+      }//end Sink
+
+      public long handleRow(ResultSet rs) throws SQLException, IOException {
+         String[] values = new String[this._columns.length];
+         long bytes = 0;
+         for(int i = 0; i < values.length; ++i){
+            values[i] = rs.getString(i + 1);
+            if(values[i] != null)
+               bytes += values[i].length();
+         }
+         write(values);
+         return bytes;
+      }//end handleRow
+
+      void write(String[] values) throws IOException {
+         if(_csv){
+            for(int i = 0; i < values.length; ++i){
+               if(i > 0)
+                  this._line.append(',');
+               if(values[i] != null)
+                  csv(rtrim(values[i]));
+            }
+         }
+         else{
+            this._line.append('{');
+            for(int i = 0; i < values.length; ++i){
+               if(i > 0)
+                  this._line.append(',');
+               this._line.append('"').append(this._columns[i]).append("\":");
+               if(values[i] == null)
+                  this._line.append("null");
+               else
+                  json(rtrim(values[i]));
+            }
+            this._line.append('}');
+         }
+         flushLine();
+      }//end write
+
+      void close() throws IOException {
+         try{
+            drain();
+         }finally{
+            this._channel.close();
+            this._file.close();
+         }
+      }//end close
+
+      private void flushLine() throws IOException {
+         this._line.append('\n');
+         byte[] bytes = this._line.toString().getBytes(StandardCharsets.UTF_8);
+         this._line.setLength(0);
+         if(bytes.length > this._buffer.remaining())
+            drain();
+         if(bytes.length > this._buffer.capacity()){
+            ByteBuffer big = ByteBuffer.wrap(bytes);
+            while(big.hasRemaining())
+               this._channel.write(big);
+            return;
+         }
+         this._buffer.put(bytes);
+      }//end flushLine
+
+      private void drain() throws IOException {
+         this._buffer.flip();
+         while(this._buffer.hasRemaining())
+            this._channel.write(this._buffer);
+         this._buffer.clear();
+      }//end drain
+
+      private void csv(String value){
+         boolean quote = false;
+         for(int i = 0; i < value.length() && !quote; ++i){
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+         }
+         if(!quote){
+            this._line.append(value);
+            return;
+         }
+         this._line.append('"');
+         for(int i = 0; i < value.length(); ++i){
+            char c = value.charAt(i);
+            if(c == '"')
+               this._line.append('"');
+            this._line.append(c);
+         }
+         this._line.append('"');
+      }//end csv
+
+      private void json(String value){
+         this._line.append('"');
+         for(int i = 0; i < value.length(); ++i){
+            char c = value.charAt(i);
+            switch(c){
+               case '"': this._line.append("\\\""); break;
+               case '\\': this._line.append("\\\\"); break;
+               case '\n': this._line.append("\\n"); break;
+               case '\r': this._line.append("\\r"); break;
+               case '\t': this._line.append("\\t"); break;
+               default:
+                  if(c < 0x20)
+                     this._line.append(String.format("\\u%04x", (int)c));
+                  else
+                     this._line.append(c);
+            }
+         }
+         this._line.append('"');
+      }//end json
+   }//end Sink
+
+   /*
+    * Drops the padding of char(n) columns
+    **/
+   private static String rtrim(String value){
+      int end = value.length();
+      while(end > 0 && value.charAt(end - 1) == ' ')
+         --end;
+      return value.substring(0, end);
+   }//end rtrim
+
+}//end UserExporter
@@ -0,0 +1,53 @@
+/*
+ * Cache trigger tests for Messenger
+ * =================================
+ *
+ * Checks that the notify_cache trigger of cache_triggers.sql accepts changes
+ * to every table it is on.
+ *
+ */
+
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The trigger is shared by tables with and without a chat_id column, so a
+ * condition on one table's columns must not break the others.
+ *
+ */
+public class CacheTriggerTest {
+
+   private final TestDb _db = new TestDb();
+
+   @AfterEach
+   public void cleanup(){
+      this._db.cleanup();
+   }//end cleanup
+
+   @Test
+   public void listChangesAreAccepted() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String bob = TestDb.user(esql, "bob");
+      int contacts = Integer.parseInt(esql.getUserLists(alice)[0]);
+
+      assertEquals(1, esql.executeUpdate("INSERT INTO USER_LIST_CONTAINS VALUES (?, ?)", contacts, bob));
+      assertEquals(1, esql.executeUpdate("UPDATE USR SET status=? WHERE login=?", "away", bob));
+      assertEquals(1, esql.executeUpdate("DELETE FROM USER_LIST_CONTAINS WHERE list_id=? AND list_member=?", contacts, bob));
+   }//end listChangesAreAccepted
+
+   @Test
+   public void messageChangesAreAccepted() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String chat = TestDb.chat(esql, alice);
+      long msgId = esql.sendMessage(alice, chat, "hello");
+
+      assertEquals(1, esql.executeUpdate("UPDATE MESSAGE SET msg_text=? WHERE msg_id=?", "edited", msgId));
+      assertEquals(1, esql.executeUpdate("DELETE FROM MESSAGE WHERE msg_id=?", msgId));
+   }//end messageChangesAreAccepted
+
+}//end CacheTriggerTest
@@ -0,0 +1,77 @@
+/*
+ * Deletion reaper tests for Messenger
+ * ===================================
+ *
+ * Marks chats and accounts deleted the way DeleteChat and DeleteAccount do
+ * and checks that DeletionReaper removes their rows.
+ *
+ */
+
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The reaper runs with a batch size of 2, so removing a handful of rows
+ * takes several batches.
+ *
+ */
+public class DeletionReaperTest {
+
+   private final TestDb _db = new TestDb();
+
+   @AfterEach
+   public void cleanup(){
+      this._db.cleanup();
+   }//end cleanup
+
+   @Test
+   public void deletedChatIsRemoved() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String bob = TestDb.user(esql, "bob");
+      String chat = TestDb.chat(esql, alice, bob);
+      int chatId = Integer.parseInt(chat);
+      for(int i = 0; i < 5; ++i)
+         esql.sendMessage(alice, chat, "message " + i);
+      esql.advanceReadCursor(bob, chat, 5);
+
+      esql.executeUpdate("WITH c AS (UPDATE CHAT SET deleted=true WHERE chat_id=? RETURNING chat_id) "
+         + "DELETE FROM CHAT_LIST WHERE chat_id IN (SELECT chat_id FROM c)", chatId);
+      assertEquals(0, esql.executeQuery("SELECT * FROM CHAT_LIST WHERE chat_id=?", chatId));
+
+      new DeletionReaper(esql, 2, 0).reap();
+      assertEquals(0, esql.executeQuery("SELECT * FROM CHAT WHERE chat_id=?", chatId));
+      assertEquals(0, esql.executeQuery("SELECT * FROM MESSAGE WHERE chat_id=?", chatId));
+      assertEquals(0, esql.executeQuery("SELECT * FROM CHAT_READ_CURSOR WHERE chat_id=?", chatId));
+   }//end deletedChatIsRemoved
+
+   @Test
+   public void deletedUserWhoSentMessagesIsRemoved() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String bob = TestDb.user(esql, "bob");
+      String chat = TestDb.chat(esql, alice, bob);
+      int chatId = Integer.parseInt(chat);
+      esql.sendMessage(alice, chat, "hello bob");
+      for(int i = 0; i < 5; ++i)
+         esql.sendMessage(bob, chat, "message " + i);
+      esql.advanceReadCursor(bob, chat, 6);
+      esql.executeUpdate("INSERT INTO USER_LIST_CONTAINS VALUES (?, ?)", Integer.parseInt(esql.getUserLists(alice)[0]), bob);
+
+      esql.executeUpdate("UPDATE USR SET deleted=true WHERE login=?", bob);
+      new DeletionReaper(esql, 2, 0).reap();
+      assertEquals(0, esql.executeQuery("SELECT * FROM USR WHERE login=?", bob));
+      assertEquals(0, esql.executeQuery("SELECT * FROM MESSAGE WHERE sender_login=?", bob));
+      assertEquals(0, esql.executeQuery("SELECT * FROM CHAT_LIST WHERE member=?", bob));
+      assertEquals(0, esql.executeQuery("SELECT * FROM CHAT_READ_CURSOR WHERE login=?", bob));
+      assertEquals(0, esql.executeQuery("SELECT * FROM USER_LIST_CONTAINS WHERE list_member=?", bob));
+
+      // the chat and the other member's messages stay
+      assertEquals(1, esql.executeQuery("SELECT * FROM CHAT_LIST WHERE chat_id=? AND member=?", chatId, alice));
+      assertEquals(1, esql.executeQuery("SELECT * FROM MESSAGE WHERE chat_id=? AND sender_login=?", chatId, alice));
+   }//end deletedUserWhoSentMessagesIsRemoved
+
+}//end DeletionReaperTest
@@ -0,0 +1,64 @@
+/*
+ * Message archive tests for Messenger
+ * ===================================
+ *
+ * Writes segments into a scratch directory and reads them back.
+ *
+ */
+
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * These tests need no database.
+ *
+ */
+public class MessageArchiveTest {
+
+   @TempDir
+   File _dir;
+
+   @Test
+   public void segmentsKeepSeq() throws Exception {
+      MessageArchive archive = new MessageArchive(this._dir);
+      append(archive, "7", 205L, 3, 101L, 2);
+
+      List<MessageArchive.Segment> segments = archive.getSegments("7");
+      assertEquals(1, segments.size());
+      List<List<String>> rows = archive.read(segments.get(0));
+      assertEquals(Arrays.asList("205", "2024-01-31 10:15:01", "later", "alice", "3"), rows.get(0));
+      assertEquals(Arrays.asList("101", "2024-01-31 10:15:00", "earlier", "bob", "2"), rows.get(1));
+   }//end segmentsKeepSeq
+
+   @Test
+   public void otherProcessesSegmentsAreSeen() throws Exception {
+      MessageArchive reader = new MessageArchive(this._dir);
+      assertEquals(0, reader.getSegments("7").size());
+
+      // another process, e.g. MessageArchiver, adds segments
+      MessageArchive writer = new MessageArchive(this._dir);
+      append(writer, "7", 205L, 3, 101L, 2);
+      assertEquals(1, reader.getSegments("7").size());
+      append(writer, "7", 405L, 5, 301L, 4);
+      assertEquals(2, reader.getSegments("7").size());
+
+      // and DeletionReaper drops them again
+      writer.dropChat("7");
+      assertEquals(0, reader.getSegments("7").size());
+   }//end otherProcessesSegmentsAreSeen
+
+   private static void append(MessageArchive archive, String chat, long newId, int newSeq, long oldId, int oldSeq) throws Exception {
+      archive.append(chat, Arrays.asList(newId, oldId), Arrays.asList(newSeq, oldSeq),
+         Arrays.asList(Timestamp.valueOf("2024-01-31 10:15:01"), Timestamp.valueOf("2024-01-31 10:15:00")),
+         Arrays.asList("later", "earlier"), Arrays.asList("alice", "bob"));
+   }//end append
+
+}//end MessageArchiveTest
@@ -0,0 +1,100 @@
+/*
+ * Login prefetch tests for Messenger
+ * ==================================
+ *
+ * Runs the prefetch of startPrefetch and checks what the session serves
+ * from it afterwards.
+ *
+ */
+
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Sessions prefetch a page of 2 messages. Chat histories are only kept
+ * while the cache bus is live, so the paging test needs the bus; the
+ * eviction test runs without it, so only the keys it passes to
+ * invalidate() evict prefetched rows.
+ *
+ */
+public class PrefetchTest {
+
+   private final TestDb _db = new TestDb();
+   private String _cacheBus;
+   private String _messages;
+
+   @BeforeEach
+   public void configure(){
+      this._cacheBus = System.getProperty("messenger.cacheBus");
+      this._messages = System.setProperty("messenger.prefetch.messages", "2");
+   }//end configure
+
+   @AfterEach
+   public void cleanup(){
+      this._db.cleanup();
+      restore("messenger.cacheBus", this._cacheBus);
+      restore("messenger.prefetch.messages", this._messages);
+   }//end cleanup
+
+   @Test
+   public void onlyTheNewestPageIsPrefetched() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String chat = TestDb.chat(esql, alice);
+      for(int i = 1; i <= 5; ++i)
+         esql.sendMessage(alice, chat, "message " + i);
+
+      esql.startPrefetch(alice);
+      esql.awaitPrefetch();
+      assertEquals(1, esql.getChatSummaries(alice).size());
+      List<List<String>> history = esql.getChatHistory(chat);
+      assertEquals(2, history.size());
+      assertEquals("message 5", history.get(0).get(2).trim());
+
+      // paging back loads the rest from MESSAGE, then new messages follow
+      history = esql.extendChatHistory(chat);
+      assertEquals(5, history.size());
+      assertEquals("message 1", history.get(4).get(2).trim());
+      esql.sendMessage(alice, chat, "message 6");
+      history = esql.getChatHistory(chat);
+      assertEquals(6, history.size());
+      assertEquals("message 6", history.get(0).get(2).trim());
+   }//end onlyTheNewestPageIsPrefetched
+
+   @Test
+   public void aStatusChangeOnlyEvictsTheListsShowingIt() throws Exception {
+      System.setProperty("messenger.cacheBus", "false");
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String bob = TestDb.user(esql, "bob");
+      String carol = TestDb.user(esql, "carol");
+      esql.executeUpdate("INSERT INTO USER_LIST_CONTAINS VALUES (?, ?)", Integer.parseInt(esql.getUserLists(alice)[0]), bob);
+
+      esql.startPrefetch(alice);
+      esql.awaitPrefetch();
+      esql.invalidate("u:" + carol);
+      assertNotNull(esql.takePrefetched("contacts:" + alice));
+
+      esql.startPrefetch(alice);
+      esql.awaitPrefetch();
+      esql.invalidate("u:" + bob);
+      assertNull(esql.takePrefetched("contacts:" + alice));
+      assertNotNull(esql.takePrefetched("blocks:" + alice));
+   }//end aStatusChangeOnlyEvictsTheListsShowingIt
+
+   private static void restore(String property, String value){
+      if(value == null)
+         System.clearProperty(property);
+      else
+         System.setProperty(property, value);
+   }//end restore
+
+}//end PrefetchTest
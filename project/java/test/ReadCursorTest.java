@@ -0,0 +1,114 @@
+/*
+ * Read cursor tests for Messenger
+ * ===============================
+ *
+ * Checks the unread counts and chat summaries against messages whose
+ * msg_ids arrive out of order, and that a chat view sees other sessions'
+ * edits.
+ *
+ */
+
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two sessions hold different blocks of msg_ids, so a message sent later
+ * by the session with the lower block gets a smaller msg_id than one it
+ * follows. The read cursor and the summaries go by seq and must still see
+ * it as new.
+ *
+ */
+public class ReadCursorTest {
+
+   private final TestDb _db = new TestDb();
+
+   @AfterEach
+   public void cleanup(){
+      this._db.cleanup();
+   }//end cleanup
+
+   @Test
+   public void laterMessageWithSmallerIdIsUnread() throws Exception {
+      Messenger low = this._db.session();
+      Messenger high = this._db.session();
+      Messenger reader = this._db.session();
+      String alice = TestDb.user(low, "alice");
+      String bob = TestDb.user(low, "bob");
+      String chat = TestDb.chat(low, alice, bob);
+
+      // low reserves its block of ids first, high the block after it
+      long first = low.sendMessage(alice, chat, "first");
+      long second = high.sendMessage(alice, chat, "second");
+      assertTrue(first < second);
+
+      List<List<String>> history = reader.getChatHistory(chat);
+      reader.advanceReadCursor(bob, chat, Messenger.maxSeq(history));
+      assertEquals(0, unread(reader, bob, chat));
+      String before = summaryTime(reader, bob, chat);
+
+      Thread.sleep(5);
+      long third = low.sendMessage(alice, chat, "third");
+      assertTrue(third < second);
+      assertEquals(1, unread(reader, bob, chat));
+      assertTrue(summaryTime(reader, bob, chat).compareTo(before) > 0);
+
+      history = reader.getChatHistory(chat);
+      assertEquals("third", history.get(0).get(2).trim());
+      reader.advanceReadCursor(bob, chat, Messenger.maxSeq(history));
+      assertEquals(0, unread(reader, bob, chat));
+   }//end laterMessageWithSmallerIdIsUnread
+
+   @Test
+   public void cursorNeverMovesBack() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String chat = TestDb.chat(esql, alice);
+      esql.sendMessage(alice, chat, "one");
+      esql.sendMessage(alice, chat, "two");
+      esql.advanceReadCursor(alice, chat, 2);
+      esql.advanceReadCursor(alice, chat, 1);
+      assertEquals(2, esql.getReadCursor(alice, chat));
+   }//end cursorNeverMovesBack
+
+   @Test
+   public void anotherSessionsEditIsSeenWithoutTheCacheBus() throws Exception {
+      String cacheBus = System.setProperty("messenger.cacheBus", "false");
+      try{
+         Messenger reader = this._db.session();
+         Messenger editor = this._db.session();
+         String alice = TestDb.user(reader, "alice");
+         String chat = TestDb.chat(reader, alice);
+         long msgId = reader.sendMessage(alice, chat, "before");
+         assertEquals("before", reader.getChatHistory(chat).get(0).get(2).trim());
+
+         editor.shard(chat).executeUpdate("UPDATE MESSAGE SET msg_text=? WHERE msg_id=? AND chat_id=?", "after", msgId, Integer.parseInt(chat));
+         assertEquals("after", reader.getChatHistory(chat).get(0).get(2).trim());
+         assertEquals("after", reader.extendChatHistory(chat).get(0).get(2).trim());
+      }finally{
+         if(cacheBus == null)
+            System.clearProperty("messenger.cacheBus");
+         else
+            System.setProperty("messenger.cacheBus", cacheBus);
+      }
+   }//end anotherSessionsEditIsSeenWithoutTheCacheBus
+
+   private static int unread(Messenger esql, String login, String chat) throws Exception {
+      Integer count = esql.getUnreadCounts(login).get(chat);
+      return count == null ? 0 : count;
+   }//end unread
+
+   private static String summaryTime(Messenger esql, String login, String chat) throws Exception {
+      for(List<String> summary : esql.getChatSummaries(login))
+         if(summary.get(0).equals(chat))
+            return summary.get(1);
+      throw new AssertionError("chat " + chat + " has no summary");
+   }//end summaryTime
+
+}//end ReadCursorTest
@@ -0,0 +1,121 @@
+/*
+ * Tests for the read-your-writes routing of RoutingDataSource
+ * ===========================================================
+ *
+ * Runs against a primary and a streaming replica of it.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Besides the test database, these tests need messenger.test.replica, the
+ * port of a streaming replica of it on localhost that the test user may
+ * pause, as scripts/replica_test.sh sets up.
+ *
+ */
+public class ReplicaReadTest {
+
+   private RoutingDataSource _router;
+   private Connection _replica;
+
+   @BeforeEach
+   public void connect() throws SQLException {
+      TestDb.assumeConfigured();
+      String replica = System.getProperty("messenger.test.replica");
+      Assumptions.assumeTrue(replica != null, "set -Dmessenger.test.replica to run the replica tests");
+      String db = System.getProperty("messenger.test.db", "messenger_test");
+      String user = System.getProperty("messenger.test.user", System.getProperty("user.name"));
+      this._router = new RoutingDataSource(db, "localhost:" + System.getProperty("messenger.test.port"),
+         Arrays.asList("localhost:" + replica), user, "");
+      this._replica = DriverManager.getConnection(RoutingDataSource.url("localhost:" + replica, db), user, "");
+   }//end connect
+
+   @AfterEach
+   public void close() throws SQLException {
+      if(this._replica != null){
+         run(this._replica, "SELECT pg_wal_replay_resume()");
+         this._replica.close();
+      }
+      if(this._router != null)
+         this._router.close();
+   }//end close
+
+   @Test
+   public void readsStayOnThePrimaryUntilTheReplicaReplayedTheWrite() throws Exception {
+      assertEquals(1, this._router.getReplicaCount());
+      assertNotSame(this._router.primary(), this._router.forRead());
+
+      run(this._replica, "SELECT pg_wal_replay_pause()");
+      int list = insertList(this._router.forWrite());
+      // however long the replica lags
+      for(int i = 0; i < 4; ++i){
+         Connection conn = this._router.forRead();
+         assertSame(this._router.primary(), conn);
+         assertEquals(1, countList(conn, list));
+         Thread.sleep(500);
+      }
+
+      run(this._replica, "SELECT pg_wal_replay_resume()");
+      Connection conn = this._router.forRead();
+      for(long deadline = System.currentTimeMillis() + 10000; conn == this._router.primary() && System.currentTimeMillis() < deadline; conn = this._router.forRead())
+         Thread.sleep(50);
+      assertNotSame(this._router.primary(), conn);
+      assertEquals(1, countList(conn, list));
+   }//end readsStayOnThePrimaryUntilTheReplicaReplayedTheWrite
+
+   @Test
+   public void aCaughtUpReplicaIsNotAskedAgain() throws Exception {
+      insertList(this._router.forWrite());
+      Connection conn = this._router.forRead();
+      for(long deadline = System.currentTimeMillis() + 10000; conn == this._router.primary() && System.currentTimeMillis() < deadline; conn = this._router.forRead())
+         Thread.sleep(50);
+      assertNotSame(this._router.primary(), conn);
+
+      // without a write in between, a paused replica still serves reads
+      run(this._replica, "SELECT pg_wal_replay_pause()");
+      assertNotSame(this._router.primary(), this._router.forRead());
+   }//end aCaughtUpReplicaIsNotAskedAgain
+
+   private static int insertList(Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery("INSERT INTO USER_LIST(list_type) VALUES ('contact') RETURNING list_id");
+      rs.next();
+      int list = rs.getInt(1);
+      stmt.close();
+      return list;
+   }//end insertList
+
+   private static int countList(Connection conn, int list) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM USER_LIST WHERE list_id=?");
+      stmt.setInt(1, list);
+      ResultSet rs = stmt.executeQuery();
+      rs.next();
+      int count = rs.getInt(1);
+      stmt.close();
+      return count;
+   }//end countList
+
+   private static void run(Connection conn, String query) throws SQLException {
+      Statement stmt = conn.createStatement();
+      stmt.execute(query);
+      stmt.close();
+   }//end run
+
+}//end ReplicaReadTest
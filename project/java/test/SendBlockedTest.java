@@ -0,0 +1,69 @@
+/*
+ * Send blocking tests for Messenger
+ * =================================
+ *
+ * Checks isSendBlocked, which refuses a message when every other member of
+ * the chat has blocked its author.
+ *
+ */
+
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The session runs without the cache bus, so every answer comes from the
+ * database rather than the relation graph.
+ *
+ */
+public class SendBlockedTest {
+
+   private final TestDb _db = new TestDb();
+   private String _cacheBus;
+
+   @BeforeEach
+   public void disableCacheBus(){
+      this._cacheBus = System.setProperty("messenger.cacheBus", "false");
+   }//end disableCacheBus
+
+   @AfterEach
+   public void cleanup(){
+      this._db.cleanup();
+      if(this._cacheBus == null)
+         System.clearProperty("messenger.cacheBus");
+      else
+         System.setProperty("messenger.cacheBus", this._cacheBus);
+   }//end cleanup
+
+   @Test
+   public void blockedOnlyWhenEveryOtherMemberBlocks() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String bob = TestDb.user(esql, "bob");
+      String carol = TestDb.user(esql, "carol");
+      String chat = TestDb.chat(esql, alice, bob, carol);
+      assertFalse(esql.isSendBlocked(alice, chat));
+
+      block(esql, bob, alice);
+      assertFalse(esql.isSendBlocked(alice, chat));
+      block(esql, carol, alice);
+      assertTrue(esql.isSendBlocked(alice, chat));
+      assertFalse(esql.isSendBlocked(bob, chat));
+   }//end blockedOnlyWhenEveryOtherMemberBlocks
+
+   @Test
+   public void aChatOfOneIsNotBlocked() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      assertFalse(esql.isSendBlocked(alice, TestDb.chat(esql, alice)));
+   }//end aChatOfOneIsNotBlocked
+
+   private static void block(Messenger esql, String owner, String member) throws Exception {
+      esql.executeUpdate("INSERT INTO USER_LIST_CONTAINS VALUES (?, ?)", Integer.parseInt(esql.getUserLists(owner)[1]), member);
+   }//end block
+
+}//end SendBlockedTest
@@ -0,0 +1,73 @@
+/*
+ * Send retry tests for Messenger
+ * ==============================
+ *
+ * Kills a session's server backend and checks that a keyed send retried
+ * through sendMessageRetrying neither fails nor sends twice.
+ *
+ */
+
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * The test user must be allowed to call pg_terminate_backend on the other
+ * session's backend, e.g. be the same role or a superuser.
+ *
+ */
+public class SendRetryTest {
+
+   private final TestDb _db = new TestDb();
+
+   @AfterEach
+   public void cleanup(){
+      this._db.cleanup();
+   }//end cleanup
+
+   @Test
+   public void aRetriedKeyedSendReturnsTheOriginalId() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String chat = TestDb.chat(esql, alice);
+      String key = UUID.randomUUID().toString();
+      long msgId = esql.sendMessage(alice, chat, "hello", key);
+
+      // another session, which does not remember the key, loses its
+      // connection before it sends the same message again
+      Messenger other = this._db.session();
+      String pid = backend(other, chat);
+      esql.executeQueryAndReturnResult("SELECT pg_terminate_backend(?, 5000)", Integer.parseInt(pid));
+
+      assertEquals(msgId, other.sendMessageRetrying(alice, chat, "hello", key));
+      assertNotEquals(pid, backend(other, chat));
+      assertEquals(1, Integer.parseInt(esql.shard(chat).executeQueryAndReturnResult(
+         "SELECT COUNT(*) FROM MESSAGE WHERE chat_id=? AND client_key=?", Integer.parseInt(chat), key).get(0).get(0).trim()));
+   }//end aRetriedKeyedSendReturnsTheOriginalId
+
+   @Test
+   public void aLostConnectionIsReplaced() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String chat = TestDb.chat(esql, alice);
+
+      Messenger other = this._db.session();
+      String pid = backend(other, chat);
+      esql.executeQueryAndReturnResult("SELECT pg_terminate_backend(?, 5000)", Integer.parseInt(pid));
+      long msgId = other.sendMessageRetrying(alice, chat, "hello", UUID.randomUUID().toString());
+      assertEquals(1, esql.shard(chat).executeQuery("SELECT msg_id FROM MESSAGE WHERE msg_id=?", msgId));
+   }//end aLostConnectionIsReplaced
+
+   /*
+    * The pid of the backend serving a session's writes to a chat
+    **/
+   private static String backend(Messenger esql, String chat) throws Exception {
+      return esql.shard(chat).executeWriteQuery("SELECT pg_backend_pid()").get(0).get(0).trim();
+   }//end backend
+
+}//end SendRetryTest
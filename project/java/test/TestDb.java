@@ -0,0 +1,96 @@
+/*
+ * Database fixture for the Messenger tests
+ * ========================================
+ *
+ * Opens sessions on a scratch database and creates users and chats in it.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Assumptions;
+
+/**
+ * The tests that need PostgreSQL run against the database named by
+ * messenger.test.db (default messenger_test) on localhost at
+ * messenger.test.port as messenger.test.user (default $USER), whose schema
+ * scripts/test_db.sh creates. Without messenger.test.port they are skipped.
+ * Every fixture object gets a fresh name, so the tests do not need an empty
+ * database and can run repeatedly.
+ *
+ */
+public class TestDb {
+
+   private final List<Messenger> _sessions = new ArrayList<Messenger>();
+
+   /**
+    * Skips the calling test unless a test database is configured.
+    */
+   public static void assumeConfigured(){
+      Assumptions.assumeTrue(System.getProperty("messenger.test.port") != null,
+         "set -Dmessenger.test.port to run the database tests");
+   }//end assumeConfigured
+
+   /**
+    * @return a new lazy session on the test database, closed by cleanup()
+    * @throws java.sql.SQLException when the session cannot be created
+    */
+   public Messenger session() throws SQLException {
+      assumeConfigured();
+      Messenger esql = new Messenger(System.getProperty("messenger.test.db", "messenger_test"), System.getProperty("messenger.test.port"),
+         System.getProperty("messenger.test.user", System.getProperty("user.name")), "", true);
+      this._sessions.add(esql);
+      return esql;
+   }//end session
+
+   /**
+    * Method to create a user the way CreateUser does, with the password
+    * "secret" and a made-up phone number.
+    *
+    * @param esql the session
+    * @param name a readable part of the login
+    * @return the new user's login
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public static String user(Messenger esql, String name) throws SQLException {
+      String id = UUID.randomUUID().toString().substring(0, 8);
+      String login = name + "_" + id;
+      esql.executeUpdate("WITH b AS (INSERT INTO USER_LIST(list_type) VALUES ('block') RETURNING list_id), "
+         + "c AS (INSERT INTO USER_LIST(list_type) VALUES ('contact') RETURNING list_id) "
+         + "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) SELECT ?, ?, ?, b.list_id, c.list_id FROM b, c",
+         "555-" + id, login, "secret");
+      return login;
+   }//end user
+
+   /**
+    * Method to create a chat of an author and other members.
+    *
+    * @param esql the session
+    * @param author the chat's creator
+    * @param members the other members
+    * @return the new chat's id
+    * @throws java.sql.SQLException when the inserts failed
+    */
+   public static String chat(Messenger esql, String author, String... members) throws SQLException {
+      String chat = esql.createChat(author);
+      List<String> logins = new ArrayList<String>();
+      for(String member : members)
+         logins.add(member);
+      esql.addChatMembers(chat, logins);
+      return chat;
+   }//end chat
+
+   /**
+    * Method to close every session opened by session().
+    */
+   public void cleanup(){
+      for(Messenger esql : this._sessions)
+         esql.cleanup();
+      this._sessions.clear();
+   }//end cleanup
+
+}//end TestDb
@@ -0,0 +1,78 @@
+/*
+ * User data export tests for Messenger
+ * ====================================
+ *
+ * Exports users of the test database into a scratch directory.
+ *
+ */
+
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * The exports are written as NDJSON without compression.
+ *
+ */
+public class UserExporterTest {
+
+   private final TestDb _db = new TestDb();
+
+   @TempDir
+   File _dir;
+
+   @AfterEach
+   public void cleanup(){
+      this._db.cleanup();
+   }//end cleanup
+
+   @Test
+   public void messagesInLeftChatsAreExported() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      String bob = TestDb.user(esql, "bob");
+      String chat = TestDb.chat(esql, alice, bob);
+      esql.sendMessage(alice, chat, "before leaving");
+      esql.sendMessage(bob, chat, "after alice left");
+      esql.shard(chat).executeUpdate("DELETE FROM CHAT_LIST WHERE chat_id=? AND member=?", Integer.parseInt(chat), alice);
+
+      assertEquals(0, export(esql, alice));
+      List<String> left = lines("left_chat_messages.ndjson");
+      assertEquals(1, left.size());
+      assertTrue(left.get(0).contains("\"msg_text\":\"before leaving\""));
+   }//end messagesInLeftChatsAreExported
+
+   @Test
+   public void deletedUsersAreNotExported() throws Exception {
+      Messenger esql = this._db.session();
+      String alice = TestDb.user(esql, "alice");
+      esql.executeUpdate("UPDATE USR SET deleted=true WHERE login=?", alice);
+      try{
+         export(esql, alice);
+         fail("exported a deleted user");
+      }catch(SQLException e){
+         assertEquals("No user " + alice, e.getMessage());
+      }
+   }//end deletedUsersAreNotExported
+
+   private int export(Messenger esql, String login) throws Exception {
+      return new UserExporter(this._dir, false, false).export(Collections.singletonList(esql), login);
+   }//end export
+
+   private List<String> lines(String file) throws Exception {
+      return Files.readAllLines(new File(this._dir, file).toPath(), StandardCharsets.UTF_8);
+   }//end lines
+
+}//end UserExporterTest
@@ -0,0 +1,8 @@
+-- ChatViewer: a chat's full history, newest first, and the read cursor
+-- update (Messenger.fetchMessagesAfter with no mark yet,
+-- Messenger.advanceReadCursor)
+-- Keep in sync with Messenger.java. Run with -M prepared (see run_pgbench.sh).
+\set c random(1, :chats)
+SELECT chat_id, member FROM BENCH_CHAT WHERE n = :c \gset
+SELECT msg_id, msg_timestamp, msg_text, sender_login AS Received, seq FROM MESSAGE WHERE chat_id = :chat_id AND seq > -1 ORDER BY seq DESC;
+INSERT INTO CHAT_READ_CURSOR (login, chat_id, last_seq) VALUES (:member, :chat_id, 1) ON CONFLICT (login, chat_id) DO UPDATE SET last_seq = EXCLUDED.last_seq WHERE CHAT_READ_CURSOR.last_seq < EXCLUDED.last_seq;
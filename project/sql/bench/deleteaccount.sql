@@ -0,0 +1,11 @@
+-- DeleteAccount: the owned chat check and the soft delete that leaves the
+-- account to DeletionReaper (Messenger.DeleteAccount), for users in no
+-- chat, as the application requires. Rolled back, so the data set stays
+-- the same.
+-- Keep in sync with Messenger.java. Run with -M prepared (see run_pgbench.sh).
+\set u random(1, :loners)
+SELECT login FROM BENCH_LONER WHERE n = :u \gset
+BEGIN;
+SELECT chat_id FROM CHAT WHERE init_sender = :login AND NOT deleted LIMIT 1;
+UPDATE USR SET deleted = true WHERE login = :login;
+ROLLBACK;
@@ -0,0 +1,12 @@
+-- ListChat: a session's first chat summary load and the unread counts
+-- (Messenger.getChatSummaries with nothing cached yet, Messenger.getUnreadCounts)
+-- and the member list of one chat.
+-- Keep in sync with Messenger.java. Run with -M prepared (see run_pgbench.sh).
+\set u random(1, :users)
+SELECT login FROM BENCH_USER WHERE n = :u \gset
+SELECT L.chat_id, C.last_seq FROM CHAT_LIST L, CHAT C WHERE L.member = :login AND C.chat_id = L.chat_id;
+SELECT chat_id, MAX(msg_timestamp) FROM MESSAGE WHERE chat_id IN (SELECT chat_id FROM CHAT_LIST WHERE member = :login) GROUP BY chat_id;
+SELECT L.chat_id, COUNT(M.msg_id) FROM CHAT_LIST L LEFT JOIN CHAT_READ_CURSOR R ON R.chat_id = L.chat_id AND R.login = L.member, MESSAGE M WHERE L.member = :login AND M.chat_id = L.chat_id AND M.seq > COALESCE(R.last_seq, 0) GROUP BY L.chat_id;
+\set c random(1, :chats)
+SELECT chat_id FROM BENCH_CHAT WHERE n = :c \gset
+SELECT member FROM CHAT_LIST WHERE chat_id = :chat_id;
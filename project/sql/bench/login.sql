@@ -0,0 +1,5 @@
+-- LogIn: the credential check (Messenger.LogIn)
+-- Keep in sync with Messenger.java. Run with -M prepared (see run_pgbench.sh).
+\set u random(1, :users)
+SELECT login, password FROM BENCH_USER WHERE n = :u \gset
+SELECT * FROM Usr WHERE login = :login AND password = :password AND NOT deleted;
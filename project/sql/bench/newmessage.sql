@@ -0,0 +1,10 @@
+-- NewMessage: the membership check and the insert (Messenger.isMember,
+-- Messenger.sendMessage). The application takes msg_id from a block
+-- reserved by one nextval per 100 messages; here every insert calls it.
+-- Every message carries a fresh client key, so the unique index on
+-- (sender_login, chat_id, client_key) is checked but never conflicts.
+-- Keep in sync with Messenger.java. Run with -M prepared (see run_pgbench.sh).
+\set c random(1, :chats)
+SELECT chat_id, member FROM BENCH_CHAT WHERE n = :c \gset
+SELECT * FROM CHAT_LIST WHERE chat_id = :chat_id AND member = :member;
+INSERT INTO MESSAGE (msg_id, msg_text, sender_login, chat_id, client_key) VALUES (nextval('message_msg_id_seq'), 'pgbench message', :member, :chat_id, md5(random()::text)) ON CONFLICT DO NOTHING RETURNING msg_id;
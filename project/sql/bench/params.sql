@@ -0,0 +1,25 @@
+-- Parameter tables for the pgbench scripts in this directory, filled by
+-- run_pgbench.sh from the files it generates out of project/data.
+DROP TABLE IF EXISTS BENCH_USER;
+DROP TABLE IF EXISTS BENCH_CHAT;
+DROP TABLE IF EXISTS BENCH_LONER;
+
+-- every user, with its lists and another user to probe them for
+CREATE TABLE BENCH_USER(
+	n integer PRIMARY KEY,
+	login text NOT NULL,
+	password text NOT NULL,
+	block_list integer,
+	contact_list integer,
+	other text NOT NULL);
+
+-- every chat membership
+CREATE TABLE BENCH_CHAT(
+	n integer PRIMARY KEY,
+	chat_id integer NOT NULL,
+	member text NOT NULL);
+
+-- the users in no chat, whose accounts DeleteAccount would delete
+CREATE TABLE BENCH_LONER(
+	n integer PRIMARY KEY,
+	login text NOT NULL);
@@ -0,0 +1,8 @@
+-- AddToContact / AddToBlock: the checks made before a user is added to a
+-- list (Messenger.verifyUser, Messenger.getUserLists, RelationGraph.load)
+-- Keep in sync with Messenger.java. Run with -M prepared (see run_pgbench.sh).
+\set u random(1, :users)
+SELECT login, other FROM BENCH_USER WHERE n = :u \gset
+SELECT * FROM USR WHERE login = :other;
+SELECT contact_list, block_list FROM USR WHERE login = :login \gset
+SELECT list_id, list_member FROM USER_LIST_CONTAINS WHERE list_id IN (:contact_list, :block_list);
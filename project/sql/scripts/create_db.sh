@@ -1,5 +1,8 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/triggers.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/cache_triggers.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/chat_triggers.sql
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
 psql -p $PGPORT $DB_NAME < $DIR/../src/load_data.sql
@@ -0,0 +1,6 @@
+#!/bin/bash
+# Creates the chat tables on a shard, e.g. SHARD_PORT=5433 SHARD_DB=messenger
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $SHARD_PORT $SHARD_DB < $DIR/../src/create_shard_tables.sql
+psql -p $SHARD_PORT $SHARD_DB < $DIR/../src/cache_triggers.sql
+psql -p $SHARD_PORT $SHARD_DB < $DIR/../src/chat_triggers.sql
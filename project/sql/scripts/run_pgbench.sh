@@ -0,0 +1,65 @@
+#!/bin/bash
+# Runs the pgbench scripts in sql/bench against a local database and records
+# TPS and latency per query shape, e.g.
+#
+#   PGPORT=5432 DB_NAME=messenger LABEL=before ./run_pgbench.sh
+#   (change the schema or indexes)
+#   PGPORT=5432 DB_NAME=messenger LABEL=after BASELINE=before ./run_pgbench.sh
+#
+# CLIENTS (default 4) and DURATION in seconds (default 30) set the load,
+# SCRIPTS limits the run to some of the scripts (default all) and OUT the
+# results directory (default bench-results). Each run appends to
+# $OUT/results.csv; with BASELINE set, the TPS of each script is compared to
+# the last run with that label. The newmessage script inserts messages; the
+# others leave the data as it was.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+BENCH=$DIR/../bench
+DATA=$DIR/../../data
+CLIENTS=${CLIENTS:-4}
+DURATION=${DURATION:-30}
+LABEL=${LABEL:-$(date +%Y%m%d-%H%M%S)}
+OUT=${OUT:-bench-results}
+SCRIPTS=${SCRIPTS:-"login listchat chatviewer user_list newmessage deleteaccount"}
+PARAMS=$OUT/params
+mkdir -p $PARAMS $OUT/$LABEL
+
+# Generates the parameter files from project/data (which has CRLF endings)
+awk -F';' '{ sub(/\r$/, "") } { login[NR] = $1; line[NR] = $1 ";" $3 ";" $5 ";" $6 }
+   END { for (i = 1; i <= NR; ++i) print i ";" line[i] ";" login[(i * 7919) % NR + 1] }' \
+   $DATA/usr.csv > $PARAMS/users.csv
+awk -F';' '{ sub(/\r$/, ""); print NR ";" $1 ";" $2 }' $DATA/chat_list.csv > $PARAMS/chats.csv
+awk -F';' '{ sub(/\r$/, "") } NR == FNR { member[$2] = 1; next } !($1 in member) { print ++n ";" $1 }' \
+   $DATA/chat_list.csv $DATA/usr.csv > $PARAMS/loners.csv
+
+# Loads them into the database
+psql -q -p $PGPORT $DB_NAME < $BENCH/params.sql || exit 1
+psql -q -p $PGPORT $DB_NAME -c "\copy BENCH_USER FROM '$PARAMS/users.csv' WITH DELIMITER ';'" || exit 1
+psql -q -p $PGPORT $DB_NAME -c "\copy BENCH_CHAT FROM '$PARAMS/chats.csv' WITH DELIMITER ';'" || exit 1
+psql -q -p $PGPORT $DB_NAME -c "\copy BENCH_LONER FROM '$PARAMS/loners.csv' WITH DELIMITER ';'" || exit 1
+psql -q -p $PGPORT $DB_NAME -c "ANALYZE BENCH_USER; ANALYZE BENCH_CHAT; ANALYZE BENCH_LONER;"
+COUNTS="-D users=$(wc -l < $PARAMS/users.csv) -D chats=$(wc -l < $PARAMS/chats.csv) -D loners=$(wc -l < $PARAMS/loners.csv)"
+
+# Runs every script; -M prepared binds the parameters like the application's
+# PreparedStatements, and -r reports the latency of every statement
+[ -f $OUT/results.csv ] || echo "label,script,clients,tps,latency_ms" > $OUT/results.csv
+for SCRIPT in $SCRIPTS; do
+   LOG=$OUT/$LABEL/$SCRIPT.log
+   echo "== $SCRIPT"
+   pgbench -n -M prepared -r -c $CLIENTS -j $CLIENTS -T $DURATION $COUNTS -f $BENCH/$SCRIPT.sql -p $PGPORT $DB_NAME > $LOG 2>&1
+   if [ $? -ne 0 ]; then
+      echo "   failed, see $LOG"
+      continue
+   fi
+   TPS=$(awk '/^tps = / { print $3; exit }' $LOG)
+   LATENCY=$(awk '/^latency average = / { print $4; exit }' $LOG)
+   echo "$LABEL,$SCRIPT,$CLIENTS,$TPS,$LATENCY" >> $OUT/results.csv
+   echo "   tps $TPS, latency $LATENCY ms"
+   # the per-statement latencies, skipping the parameter lookups
+   awk '/statement latencies/ { on = 1; next } on && !/BENCH_|\\set/ { print "   " $0 }' $LOG
+
+   if [ -n "$BASELINE" ]; then
+      awk -F',' -v base="$BASELINE" -v script="$SCRIPT" -v tps="$TPS" \
+         '$1 == base && $2 == script { old = $4 }
+          END { if (old > 0) printf "   vs %s: %.1f tps (%+.1f%%)\n", base, old, (tps - old) * 100 / old }' $OUT/results.csv
+   fi
+done
@@ -0,0 +1,70 @@
+-- Change notifications for the application's in-process caches
+-- Every change to a row an application node may have cached is sent on the
+-- messenger_cache channel as a short key naming what changed:
+--   u:<login>              a USR row was updated or deleted
+--   l:<list_id>:<member>   a USER_LIST_CONTAINS row was added or removed
+--   c:<chat_id>:<member>   a CHAT_LIST row was added or removed
+--   m:<chat_id>            a MESSAGE row was edited or deleted
+-- Postgres drops duplicate notifications within a transaction, so deleting a
+-- whole chat sends one m: key. Loaded on the directory node and on shards;
+-- the USR and USER_LIST_CONTAINS triggers are only made where those exist.
+CREATE OR REPLACE FUNCTION notify_cache() RETURNS trigger AS $cache$
+    DECLARE
+        old_row record;
+        new_row record;
+        key text;
+    BEGIN
+        IF TG_OP = 'DELETE' THEN
+            old_row := OLD;
+            new_row := OLD;
+        ELSIF TG_OP = 'INSERT' THEN
+            old_row := NEW;
+            new_row := NEW;
+        ELSE
+            old_row := OLD;
+            new_row := NEW;
+        END IF;
+        IF TG_TABLE_NAME = 'usr' THEN
+            key := 'u:' || rtrim(old_row.login);
+        ELSIF TG_TABLE_NAME = 'user_list_contains' THEN
+            key := 'l:' || old_row.list_id || ':' || rtrim(old_row.list_member);
+        ELSIF TG_TABLE_NAME = 'chat_list' THEN
+            key := 'c:' || old_row.chat_id || ':' || rtrim(old_row.member);
+        ELSE
+            key := 'm:' || old_row.chat_id;
+        END IF;
+        PERFORM pg_notify('messenger_cache', key);
+        -- an update that moves a row changes the new key too. The chat_id
+        -- test is nested, since PL/pgSQL resolves every field of a condition
+        -- and the other tables have no chat_id
+        IF TG_OP = 'UPDATE' AND TG_TABLE_NAME = 'message' THEN
+            IF new_row.chat_id IS DISTINCT FROM old_row.chat_id THEN
+                PERFORM pg_notify('messenger_cache', 'm:' || new_row.chat_id);
+            END IF;
+        END IF;
+        RETURN NULL;
+    END;
+$cache$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_list_cache ON CHAT_LIST;
+CREATE TRIGGER chat_list_cache AFTER INSERT OR UPDATE OR DELETE ON CHAT_LIST
+    FOR EACH ROW EXECUTE PROCEDURE notify_cache();
+
+DROP TRIGGER IF EXISTS message_cache ON MESSAGE;
+CREATE TRIGGER message_cache AFTER UPDATE OR DELETE ON MESSAGE
+    FOR EACH ROW EXECUTE PROCEDURE notify_cache();
+
+DO $$
+    BEGIN
+        IF to_regclass('usr') IS NOT NULL THEN
+            DROP TRIGGER IF EXISTS usr_cache ON USR;
+            CREATE TRIGGER usr_cache AFTER UPDATE OR DELETE ON USR
+                FOR EACH ROW EXECUTE PROCEDURE notify_cache();
+        END IF;
+        IF to_regclass('user_list_contains') IS NOT NULL THEN
+            DROP TRIGGER IF EXISTS user_list_contains_cache ON USER_LIST_CONTAINS;
+            CREATE TRIGGER user_list_contains_cache AFTER INSERT OR UPDATE OR DELETE ON USER_LIST_CONTAINS
+                FOR EACH ROW EXECUTE PROCEDURE notify_cache();
+        END IF;
+    END;
+$$;
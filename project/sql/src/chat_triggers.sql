@@ -0,0 +1,52 @@
+-- Member count, chat type and message numbering for CHAT
+-- CHAT.member_count follows the CHAT_LIST rows of the chat, and chat_type is
+-- derived from it: 'group' above two members, 'private' otherwise. The
+-- triggers run once per statement, so adding many members with one
+-- multi-row insert updates the chat once. Loaded on the directory node and
+-- on shards.
+CREATE OR REPLACE FUNCTION count_members() RETURNS trigger AS $members$
+    BEGIN
+        IF TG_OP = 'INSERT' THEN
+            UPDATE CHAT C
+            SET member_count = C.member_count + A.n,
+                chat_type = CASE WHEN C.member_count + A.n > 2 THEN 'group' ELSE 'private' END
+            FROM (SELECT chat_id, count(*) AS n FROM added GROUP BY chat_id) A
+            WHERE C.chat_id = A.chat_id;
+        ELSE
+            UPDATE CHAT C
+            SET member_count = C.member_count - R.n,
+                chat_type = CASE WHEN C.member_count - R.n > 2 THEN 'group' ELSE 'private' END
+            FROM (SELECT chat_id, count(*) AS n FROM removed GROUP BY chat_id) R
+            WHERE C.chat_id = R.chat_id;
+        END IF;
+        RETURN NULL;
+    END;
+$members$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_list_added ON CHAT_LIST;
+CREATE TRIGGER chat_list_added AFTER INSERT ON CHAT_LIST
+    REFERENCING NEW TABLE AS added
+    FOR EACH STATEMENT EXECUTE PROCEDURE count_members();
+
+DROP TRIGGER IF EXISTS chat_list_removed ON CHAT_LIST;
+CREATE TRIGGER chat_list_removed AFTER DELETE ON CHAT_LIST
+    REFERENCING OLD TABLE AS removed
+    FOR EACH STATEMENT EXECUTE PROCEDURE count_members();
+
+-- Every message gets the next number of its chat, taken from CHAT.last_seq.
+-- The row lock on the chat orders concurrent senders of one chat without
+-- touching any other chat; a message copied with its seq keeps it.
+CREATE OR REPLACE FUNCTION next_seq() RETURNS trigger AS $seq$
+    BEGIN
+        IF NEW.seq IS NULL THEN
+            UPDATE CHAT SET last_seq = last_seq + 1
+            WHERE chat_id = NEW.chat_id
+            RETURNING last_seq INTO NEW.seq;
+        END IF;
+        RETURN NEW;
+    END;
+$seq$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_seq ON MESSAGE;
+CREATE TRIGGER message_seq BEFORE INSERT ON MESSAGE
+    FOR EACH ROW EXECUTE PROCEDURE next_seq();
@@ -4,6 +4,8 @@
 CREATE INDEX u_login ON USR (login);
 CREATE INDEX u_contact ON USR (contact_list);
 CREATE INDEX u_block ON USR (block_list);
+-- the accounts DeletionReaper has yet to remove
+CREATE INDEX u_deleted ON USR (login) WHERE deleted;
 
 -- Indexes for USER_LIST_CONTAINS
 CREATE INDEX ulc_list ON USER_LIST_CONTAINS (list_id);
@@ -12,6 +14,8 @@ CREATE INDEX ulc_member ON USER_LIST_CONTAINS (list_member);
 -- Indexes for CHAT
 CREATE INDEX c_id ON CHAT (chat_id);
 CREATE INDEX c_is ON CHAT (init_sender);
+-- the chats DeletionReaper has yet to remove
+CREATE INDEX c_deleted ON CHAT (chat_id) WHERE deleted;
 
 -- Indexes for CHAT_LIST
 CREATE INDEX cl_id ON CHAT_LIST (chat_id);
@@ -22,4 +26,6 @@ CREATE INDEX m_id ON MESSAGE (msg_id);
 CREATE INDEX m_time ON MESSAGE (msg_timestamp);
 CREATE INDEX m_sender ON MESSAGE (sender_login);
 CREATE INDEX m_cid ON MESSAGE (chat_id);
+CREATE INDEX m_cid_seq ON MESSAGE (chat_id, seq);
+CREATE UNIQUE INDEX m_client_key ON MESSAGE (sender_login, chat_id, client_key);
 
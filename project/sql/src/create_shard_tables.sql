@@ -0,0 +1,56 @@
+-- Tables for a chat shard of database-messenger
+-- A shard holds the CHAT, CHAT_LIST, MESSAGE and CHAT_READ_CURSOR rows of the
+-- chats placed on it. USR and the USER_LIST tables stay on the directory
+-- node, so logins are not foreign keys here, and chat_id and msg_id come
+-- from the directory node's sequences.
+DROP TABLE CHAT_READ_CURSOR;
+DROP TABLE MESSAGE;
+DROP TABLE CHAT_LIST;
+DROP TABLE CHAT;
+
+CREATE TABLE CHAT(
+	chat_id integer,
+	chat_type char(50) NOT NULL,
+	init_sender char(50),
+	member_count integer NOT NULL DEFAULT 0,
+	last_seq integer NOT NULL DEFAULT 0,
+	deleted boolean NOT NULL DEFAULT false,
+	PRIMARY KEY(chat_id));
+
+CREATE TABLE CHAT_LIST(
+	chat_id integer,
+	member char(50),
+	PRIMARY KEY(chat_id,member),
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
+
+CREATE TABLE MESSAGE(
+	msg_id integer,
+	msg_text char(300) NOT NULL,
+	msg_timestamp timestamp NOT NULL DEFAULT now(),
+	sender_login char(50),
+	chat_id integer,
+	seq integer NOT NULL,
+	client_key char(36),
+	PRIMARY KEY(msg_id),
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
+
+CREATE TABLE CHAT_READ_CURSOR(
+	login char(50),
+	chat_id integer,
+	last_seq integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(login,chat_id),
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
+-- Indexes for CHAT
+CREATE INDEX c_is ON CHAT (init_sender);
+-- the chats DeletionReaper has yet to remove
+CREATE INDEX c_deleted ON CHAT (chat_id) WHERE deleted;
+
+-- Indexes for CHAT_LIST
+CREATE INDEX cl_member ON CHAT_LIST (member);
+
+-- Indexes for MESSAGE
+CREATE INDEX m_time ON MESSAGE (msg_timestamp);
+CREATE INDEX m_sender ON MESSAGE (sender_login);
+CREATE INDEX m_cid_seq ON MESSAGE (chat_id, seq);
+CREATE UNIQUE INDEX m_client_key ON MESSAGE (sender_login, chat_id, client_key);
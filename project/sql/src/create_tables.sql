@@ -1,3 +1,4 @@
+DROP TABLE CHAT_READ_CURSOR;
 DROP TABLE MESSAGE;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
@@ -17,6 +18,7 @@ CREATE TABLE USR(
 	status char(140),
 	block_list integer,
 	contact_list integer,
+	deleted boolean NOT NULL DEFAULT false,
 	Primary Key(login),
 	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
 	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
@@ -32,6 +34,9 @@ CREATE TABLE CHAT(
 	chat_id serial, 
 	chat_type char(50) NOT NULL,
 	init_sender char(50),
+	member_count integer NOT NULL DEFAULT 0,
+	last_seq integer NOT NULL DEFAULT 0,
+	deleted boolean NOT NULL DEFAULT false,
 	PRIMARY KEY(chat_id), 
 	FOREIGN KEY(init_sender) REFERENCES USR(login));
 
@@ -45,11 +50,24 @@ CREATE TABLE CHAT_LIST(
 CREATE TABLE MESSAGE(
 	msg_id serial, 
 	msg_text char(300) NOT NULL, 
-	msg_timestamp timestamp NOT NULL,
+	msg_timestamp timestamp NOT NULL DEFAULT now(),
 	sender_login char(50),
 	chat_id integer,
+	seq integer NOT NULL,
+	client_key char(36),
 	PRIMARY KEY(msg_id), 
 	FOREIGN KEY(sender_login) REFERENCES USR(login),
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
 
+CREATE TABLE CHAT_READ_CURSOR(
+	login char(50),
+	chat_id integer,
+	last_seq integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(login,chat_id),
+	FOREIGN KEY(login) REFERENCES USR(login) ON DELETE CASCADE,
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
 
+-- MESSAGE and CHAT ids are reserved by the application in blocks of 100,
+-- one nextval per block (see IdAllocator.java)
+ALTER SEQUENCE message_msg_id_seq INCREMENT BY 100;
+ALTER SEQUENCE chat_chat_id_seq INCREMENT BY 100;
@@ -5,6 +5,12 @@ WITH DELIMITER ';';
 ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
 
 COPY USR
+	(login,
+	phoneNum,
+	password,
+	status,
+	block_list,
+	contact_list)
 FROM '/class/classes/rhom001/database-messenger/project/data/usr.csv'
 WITH DELIMITER ';';
 
@@ -13,6 +19,9 @@ FROM '/class/classes/rhom001/database-messenger/project/data/usr_list_contains.c
 WITH DELIMITER ';';
 
 COPY CHAT
+	(chat_id,
+	chat_type,
+	init_sender)
 FROM '/class/classes/rhom001/database-messenger/project/data/chat.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE chat_chat_id_seq RESTART 5001;
@@ -31,3 +40,11 @@ FROM '/class/classes/rhom001/database-messenger/project/data/message.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE message_msg_id_seq RESTART 50000;
 
+-- Numbers the loaded messages of each chat in the order they were sent
+UPDATE MESSAGE M SET seq = S.n
+FROM (SELECT msg_id, row_number() OVER (PARTITION BY chat_id ORDER BY msg_timestamp, msg_id) AS n FROM MESSAGE) S
+WHERE M.msg_id = S.msg_id;
+UPDATE CHAT C SET last_seq = S.n
+FROM (SELECT chat_id, MAX(seq) AS n FROM MESSAGE GROUP BY chat_id) S
+WHERE C.chat_id = S.chat_id;
+
@@ -7,13 +7,28 @@ CREATE OR REPLACE FUNCTION new_cid() RETURNS trigger AS $cid$
         -- If the chat_id is null, then add in a number from the sequence
         IF NEW.chat_id IS NULL THEN
             NEW.chat_id := nextval('chat_chat_id_seq');
-            RETURN NEW;
         END IF;
+        RETURN NEW;
     END;
 $cid$ LANGUAGE plpgsql;
 
 CREATE TRIGGER cid BEFORE INSERT ON CHAT
     FOR EACH ROW EXECUTE PROCEDURE new_cid();
 -- Trigger and procedure for MESSAGE msg_id and msg_timestamp
+CREATE OR REPLACE FUNCTION new_mid() RETURNS trigger AS $mid$
+    BEGIN
+        -- If the msg_id is null, then add in a number from the sequence
+        IF NEW.msg_id IS NULL THEN
+            NEW.msg_id := nextval('message_msg_id_seq');
+        END IF;
+        -- Messages are stamped with the server's clock, not the client's
+        IF NEW.msg_timestamp IS NULL THEN
+            NEW.msg_timestamp := now();
+        END IF;
+        RETURN NEW;
+    END;
+$mid$ LANGUAGE plpgsql;
 
+CREATE TRIGGER mid BEFORE INSERT ON MESSAGE
+    FOR EACH ROW EXECUTE PROCEDURE new_mid();
 